@@ -0,0 +1,89 @@
+package owlery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of Interpreter.visitBinaryExpr for every operator and pair of operand types it accepts, with
+ * literal operands, so the time also holds two literal visits. Every pair gets its own nodes, whose
+ * type feedback settles on that pair like in a program. Every operator takes numbers; equality and
+ * concatenation also take strings and booleans, the other pairs are rejected or have no result. Run
+ * with "gradle jmh -Pbenchmarks=BinaryBenchmark".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BinaryBenchmark {
+    private static final int NODES = 64;
+
+    public abstract static class Nodes {
+        final Interpreter interpreter = new Interpreter();
+        // the same operands over and over would let the JIT compute the result once
+        final Expr.Binary[] nodes = new Expr.Binary[NODES];
+        int next = 0;
+
+        void create(String operator, String operands) {
+            TokenType type = TokenType.valueOf(operator);
+            String[] types = operands.split(" ");
+            for (int k = 0; k < NODES; k++) {
+                nodes[k] = new Expr.Binary(new Expr.Literal(operand(types[0], 7 + k)),
+                        new Token(type, type.name(), null, 1), new Expr.Literal(operand(types[1], 3 + k % 5)));
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Numbers extends Nodes {
+        @Param({"PLUS", "MINUS", "STAR", "SLASH", "PERCENT", "GREATER", "GREATER_EQUAL", "LESS", "LESS_EQUAL",
+                "EQUAL", "BANG_EQUAL", "VERTICAL_BAR", "DOUBLE_VERTICAL_BAR"})
+        public String operator;
+
+        @Param({"integer integer", "double double", "integer double"})
+        public String operands;
+
+        @Setup
+        public void create() {
+            create(operator, operands);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Others extends Nodes {
+        @Param({"EQUAL", "BANG_EQUAL", "VERTICAL_BAR", "DOUBLE_VERTICAL_BAR"})
+        public String operator;
+
+        @Param({"string string", "string integer", "boolean boolean"})
+        public String operands;
+
+        @Setup
+        public void create() {
+            create(operator, operands);
+        }
+    }
+
+    @Benchmark
+    public Object numbers(Numbers state) {
+        return state.nodes[state.next++ & (NODES - 1)].accept(state.interpreter);
+    }
+
+    @Benchmark
+    public Object others(Others state) {
+        return state.nodes[state.next++ & (NODES - 1)].accept(state.interpreter);
+    }
+
+    private static Object operand(String type, int k) {
+        return switch (type) {
+            case "integer" -> k;
+            case "double" -> k + 0.5;
+            case "string" -> "owl" + k;
+            default -> k % 2 == 0;
+        };
+    }
+}
@@ -0,0 +1,54 @@
+package owlery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of OFunction.call: functions that only return their first argument, so the time is the
+ * call itself (the argument list, the environment, the invocation loop), next to a builtin called
+ * the same way. Run with "gradle jmh -Pbenchmarks=CallBenchmark".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class CallBenchmark {
+    @Param({"none", "one", "three", "length"})
+    public String function;
+
+    private final Interpreter interpreter = new Interpreter();
+    private OCallable callable;
+    private List<Object> arguments;
+
+    @Setup
+    public void define() {
+        List<Stmt> statements = new Parser(new Lexer("""
+                none #callable: -> { @0 }
+                one #callable: a -> { @a }
+                three #callable: a b c -> { @a }
+                """).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        interpreter.interpret(statements);
+
+        callable = (OCallable) interpreter.globals.get(function).value;
+        arguments = switch (function) {
+            case "none" -> List.of();
+            case "one" -> List.of(1);
+            case "three" -> List.of(1, 2, 3);
+            default -> List.of("owlery");
+        };
+    }
+
+    @Benchmark
+    public Object call() {
+        return callable.call(interpreter, arguments);
+    }
+}
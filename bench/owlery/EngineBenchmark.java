@@ -0,0 +1,115 @@
+package owlery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of a run of each workload on the visitor interpreter, the closure compiler and the VM. Run
+ * with "gradle jmh -Pbenchmarks=EngineBenchmark".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class EngineBenchmark {
+    private static final Map<String, String> WORKLOADS = Map.of(
+            "range", """
+                    sum #integer: 0
+                    loop i: 0 to 200000 {
+                        sum: sum + i % 7
+                    }
+                    """,
+            "condition", """
+                    n #integer: 0
+                    d #double: 0.0
+                    loop n < 100000 {
+                        n :: + 1
+                        d :: + 0.5
+                    }
+                    """,
+            "recursion", """
+                    fib #callable: n -> {
+                        if n < 2 { @n }
+                        @ (fib! n - 1) + (fib! n - 2)
+                    }
+                    result #integer: fib! 20
+                    """,
+            "palindrome", """
+                    isPalindrome #callable: str -> {
+                        len #integer: length! str
+                        loop i: 0 to len/2 {
+                            if str[i] != str[len - i - 1] {
+                                @false
+                            }
+                        }
+                        @true
+                    }
+                    word #string: "abcdefghijklmnopqrstuvwxyzzyxwvutsrqponmlkjihgfedcba"
+                    loop 0 to 2000 {
+                        isPalindrome! word
+                    }
+                    """,
+            "triangle", """
+                    line #callable: n -> {
+                        linestr #string: ""
+                        loop 0 to n {
+                            linestr :: | "*"
+                        }
+                        @linestr
+                    }
+                    triangle #callable: n -> {
+                        if n = 0 { @ }
+                        triangle! n-1
+                        line! n
+                    }
+                    triangle! 300
+                    """,
+            "strings", """
+                    s #string: ""
+                    loop i: 0 to 2000 {
+                        s :: | "x"
+                    }
+                    r #string: reversed! s
+                    """);
+
+    @Param({"range", "condition", "recursion", "palindrome", "triangle", "strings"})
+    public String workload;
+
+    @Param({"tree", "closure", "vm"})
+    public String engine;
+
+    private Runnable run;
+
+    @Setup
+    public void compile() {
+        List<Stmt> statements = new Optimizer().optimize(new Parser(new Lexer(WORKLOADS.get(workload)).scanTokens()).parse());
+        new Resolver().resolve(statements);
+
+        Interpreter interpreter = new Interpreter();
+        run = switch (engine) {
+            case "closure" -> {
+                ClosureCompiler compiler = new ClosureCompiler(interpreter);
+                yield () -> compiler.interpret(statements);
+            }
+            case "vm" -> {
+                VM vm = new VM(interpreter);
+                yield () -> vm.interpret(statements);
+            }
+            default -> () -> interpreter.interpret(statements);
+        };
+    }
+
+    @Benchmark
+    public void run() {
+        run.run();
+    }
+}
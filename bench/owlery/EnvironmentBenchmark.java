@@ -0,0 +1,83 @@
+package owlery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading and writing variables: globals by name, and slots of local scopes at a growing
+ * distance from the current one, which is what a variable of an enclosing block costs. Run with
+ * "gradle jmh -Pbenchmarks=EnvironmentBenchmark".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EnvironmentBenchmark {
+    @State(Scope.Benchmark)
+    public static class Globals {
+        Environment globals;
+        // four variables taken in turn, the same one over and over would let the JIT read it once
+        final Token[] names = new Token[4];
+        int next = 0;
+
+        @Setup
+        public void define() {
+            globals = new Interpreter().globals;
+            for (int i = 0; i < 100; i++) {
+                globals.define("global" + i, i, OType.Integer);
+            }
+            for (int i = 0; i < 4; i++) {
+                names[i] = new Token(TokenType.IDENTIFIER, "global" + (i * 25), null, 1);
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Locals {
+        @Param({"0", "1", "2", "4", "8"})
+        public int depth;
+
+        final Token name = new Token(TokenType.IDENTIFIER, "local", null, 1);
+        Environment current;
+        int next = 0;
+
+        @Setup
+        public void define() {
+            // the variables live depth scopes out from the one the code runs in
+            Environment scope = new Environment(new Interpreter().globals, 4);
+            for (int slot = 0; slot < 4; slot++) {
+                scope.defineAt(slot, name, slot, OType.Integer);
+            }
+            for (int i = 0; i < depth; i++) {
+                scope = new Environment(scope, 4);
+            }
+            current = scope;
+        }
+    }
+
+    @Benchmark
+    public Object get(Globals state) {
+        return state.globals.get(state.names[state.next++ & 3]).value;
+    }
+
+    @Benchmark
+    public void assign(Globals state) {
+        state.globals.assign(state.names[state.next & 3], state.next++ & 127);
+    }
+
+    @Benchmark
+    public Object getAt(Locals state) {
+        return state.current.getAt(state.depth, state.next++ & 3, state.name);
+    }
+
+    @Benchmark
+    public void assignAt(Locals state) {
+        state.current.assignAt(state.depth, state.next & 3, state.name, state.next++ & 127);
+    }
+}
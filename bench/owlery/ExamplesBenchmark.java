@@ -0,0 +1,89 @@
+package owlery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end runs of the programs in examples/: lexing, parsing, the passes and the engine, on a
+ * new Interpreter every run. Programs that read get the same canned input every run, and what they
+ * print, runtime errors too, is dropped. Run with "gradle jmh -Pbenchmarks=ExamplesBenchmark" from
+ * the repository root.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ExamplesBenchmark {
+    private static final Map<String, String> INPUT = Map.of(
+            "calculator", "3\n6\n7\n",
+            "palindrome", "racecar\n",
+            "readnumber", "42\n",
+            "recognizer_automat", "abbab\n",
+            "triangle", "5\n");
+
+    @Param({"calculator", "conversion", "is", "palindrome", "readnumber", "recognizer_automat", "triangle", "types"})
+    public String program;
+
+    @Param({"tree", "closure", "vm"})
+    public String engine;
+
+    private String source;
+    private byte[] input;
+    private PrintStream out;
+    private PrintStream err;
+    private InputStream in;
+
+    @Setup
+    public void read() throws IOException {
+        source = Files.readString(Paths.get("examples", program + ".owlry"));
+        input = INPUT.getOrDefault(program, "").getBytes(StandardCharsets.UTF_8);
+
+        out = System.out;
+        err = System.err;
+        in = System.in;
+        PrintStream dropped = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(dropped);
+        System.setErr(dropped);
+    }
+
+    @TearDown
+    public void restore() {
+        System.setOut(out);
+        System.setErr(err);
+        System.setIn(in);
+    }
+
+    // what Owlery does for a file, without the exit codes
+    @Benchmark
+    public void run() {
+        System.setIn(new ByteArrayInputStream(input));
+        List<Stmt> statements = new Optimizer().optimize(new Parser(new Lexer(source).scanTokens()).parse());
+        new Resolver().resolve(statements);
+        Purity.analyze(statements);
+
+        Interpreter interpreter = new Interpreter();
+        switch (engine) {
+            case "closure" -> new ClosureCompiler(interpreter).interpret(statements);
+            case "vm" -> new VM(interpreter).interpret(statements);
+            default -> interpreter.interpret(statements);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package owlery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lexing time of generated sources of 1, 4 and 16 MB, one made of many distinct names and one that
+ * repeats the same few; the GC profiler gives the allocation per run. Run with
+ * "gradle jmh -Pbenchmarks=LexerBenchmark".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class LexerBenchmark {
+    @Param({"1", "4", "16"})
+    public int megabytes;
+
+    @Param({"distinct", "repeated"})
+    public String names;
+
+    private String source;
+
+    @Setup
+    public void generate() {
+        source = generate(megabytes * 1_000_000, names.equals("distinct"));
+    }
+
+    @Benchmark
+    public List<Token> scanTokens() {
+        return new Lexer(source).scanTokens();
+    }
+
+    // functions like the ones our generators write, with numbered names or the same names over and over
+    private static String generate(int size, boolean distinct) {
+        StringBuilder source = new StringBuilder(size + 256);
+        for (int i = 0; source.length() < size; i++) {
+            String n = distinct ? Integer.toString(i) : Integer.toString(i % 8);
+            source.append("step").append(n).append(" #callable: value").append(n).append(" limit -> {\n")
+                    .append("    -- generated step ").append(i).append('\n')
+                    .append("    total #integer: 0\n")
+                    .append("    loop i: 0 to limit {\n")
+                    .append("        if value").append(n).append(" % 2 = 0 and i >= 3 {\n")
+                    .append("            total :: + i * 2\n")
+                    .append("        } else {\n")
+                    .append("            total :: - 1.5\n")
+                    .append("        }\n")
+                    .append("    }\n")
+                    .append("    @total | \"step ").append(i).append("\"\n")
+                    .append("}\n");
+        }
+        return source.toString();
+    }
+}
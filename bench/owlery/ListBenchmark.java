@@ -0,0 +1,91 @@
+package owlery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of lists on every engine: appending n elements, then summing them once by a loop over the
+ * list and once by index, reported per element. A list of only #integer or only #double elements
+ * keeps them in an int[] or double[], the mixed one boxes every element into an Object[]; the GC
+ * profiler shows the difference. Run with "gradle jmh -Pbenchmarks=ListBenchmark".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ListBenchmark {
+    private static final int ELEMENTS = 100_000;
+
+    // the type of the sum and how the elements are appended
+    private static final Map<String, String[]> WORKLOADS = Map.of(
+            "integer", new String[] {"#integer: 0", "append! xs i"},
+            "double", new String[] {"#double: 0.0", "append! xs i * 0.5"},
+            "mixed", new String[] {"#double: 0.0", """
+                    if i % 2 = 0 {
+                                append! xs i
+                            } else {
+                                append! xs i * 0.5
+                            }"""});
+
+    private static final String PROGRAM = """
+            {
+                xs #list: []
+                loop i: 0 to %d {
+                    %s
+                }
+                sum %s
+                loop x in xs {
+                    sum :: + x
+                }
+                n #integer: length! xs
+                loop i: 0 to n {
+                    sum :: + xs[i]
+                }
+            }
+            """;
+
+    @Param({"integer", "double", "mixed"})
+    public String elements;
+
+    @Param({"tree", "closure", "vm"})
+    public String engine;
+
+    private Runnable run;
+
+    @Setup
+    public void compile() {
+        String[] workload = WORKLOADS.get(elements);
+        String source = PROGRAM.formatted(ELEMENTS, workload[1], workload[0]);
+        List<Stmt> statements = new Optimizer().optimize(new Parser(new Lexer(source).scanTokens()).parse());
+        new Resolver().resolve(statements);
+
+        Interpreter interpreter = new Interpreter();
+        run = switch (engine) {
+            case "closure" -> {
+                ClosureCompiler compiler = new ClosureCompiler(interpreter);
+                yield () -> compiler.interpret(statements);
+            }
+            case "vm" -> {
+                VM vm = new VM(interpreter);
+                yield () -> vm.interpret(statements);
+            }
+            default -> () -> interpreter.interpret(statements);
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public void run() {
+        run.run();
+    }
+}
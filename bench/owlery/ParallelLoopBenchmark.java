@@ -0,0 +1,73 @@
+package owlery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of a range loop with independent, CPU-heavy bodies on the tree engine, run as a plain loop
+ * and as a parallel one, which splits the range over the common fork/join pool. With the bodies
+ * doing this much work the parallel one should be faster by close to the number of processors. Run
+ * with "gradle jmh -Pbenchmarks=ParallelLoopBenchmark".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ParallelLoopBenchmark {
+    private static final Map<String, String> WORKLOADS = Map.of(
+            "sum", """
+                    fib #callable: n -> {
+                        if n < 2 { @n }
+                        @ (fib! n - 1) + (fib! n - 2)
+                    }
+                    sum #integer: 0
+                    loop %s i: 0 to 64 {
+                        sum: sum + (fib! 16 + i %% 4)
+                    }
+                    """,
+            "concatenation", """
+                    digits #callable: n -> {
+                        s #string: ""
+                        loop n > 0 {
+                            s: s | n %% 10
+                            n: n / 10
+                        }
+                        @s
+                    }
+                    text #string: ""
+                    loop %s i: 0 to 20000 {
+                        text: text || (digits! i * 7919)
+                    }
+                    """);
+
+    @Param({"sum", "concatenation"})
+    public String workload;
+
+    @Param({"sequential", "parallel"})
+    public String loop;
+
+    private final Interpreter interpreter = new Interpreter();
+    private List<Stmt> statements;
+
+    @Setup
+    public void compile() {
+        String source = WORKLOADS.get(workload).formatted(loop.equals("parallel") ? "parallel" : "");
+        statements = new Optimizer().optimize(new Parser(new Lexer(source).scanTokens()).parse());
+        new Resolver().resolve(statements);
+        Purity.analyze(statements);
+    }
+
+    @Benchmark
+    public void run() {
+        interpreter.interpret(statements);
+    }
+}
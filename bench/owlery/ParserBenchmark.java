@@ -0,0 +1,79 @@
+package owlery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing time of large generated sources lexed in the setup: one made of ordinary functions and
+ * one of calls with long argument lists. Run with "gradle jmh -Pbenchmarks=ParserBenchmark".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+    @Param({"functions", "calls"})
+    public String source;
+
+    @Param({"16"})
+    public int megabytes;
+
+    // names in every call of the calls source
+    @Param({"1000"})
+    public int arguments;
+
+    private List<Token> tokens;
+
+    @Setup
+    public void lex() {
+        String text = source.equals("calls") ? calls(megabytes * 1_000_000, arguments) : functions(megabytes * 1_000_000);
+        tokens = new Lexer(text).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+
+    // the same kind of functions as the LexerBenchmark, with every operator level and a function literal
+    private static String functions(int size) {
+        StringBuilder source = new StringBuilder(size + 256);
+        for (int i = 0; source.length() < size; i++) {
+            source.append("step").append(i).append(" #callable: value limit -> {\n")
+                    .append("    total #integer: 0\n")
+                    .append("    loop i: 0 to limit {\n")
+                    .append("        if value % 2 = 0 and i >= 3 or not (i < 1) {\n")
+                    .append("            total :: + i * 2 - -value / 3\n")
+                    .append("        } else {\n")
+                    .append("            total :: - length! \"step\" | i\n")
+                    .append("        }\n")
+                    .append("    }\n")
+                    .append("    twice #callable: x -> { @x * 2 }\n")
+                    .append("    @twice! total # integer\n")
+                    .append("}\n");
+        }
+        return source.toString();
+    }
+
+    // calls whose arguments are a long run of names, which parsers that look for a function's
+    // parameters past every name read over and over
+    private static String calls(int size, int arguments) {
+        StringBuilder source = new StringBuilder(size + 256);
+        while (source.length() < size) {
+            source.append("sum!");
+            for (int i = 0; i < arguments; i++) {
+                source.append(" a").append(i % 10);
+            }
+            source.append('\n');
+        }
+        return source.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package owlery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per iteration of range loops on every engine, once with the bound evaluated on every
+ * iteration (as a loop whose body could change it) and once with the bound the Resolver proved
+ * invariant evaluated a single time. Run with "gradle jmh -Pbenchmarks=RangeLoopBenchmark".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class RangeLoopBenchmark {
+    private static final int ITERATIONS_PER_RUN = 1_000_000;
+
+    private static final Map<String, String> WORKLOADS = Map.of(
+            "global", """
+                    n #integer: 500000
+                    sum #integer: 0
+                    loop i: 0 to n * 2 {
+                        sum :: + 1
+                    }
+                    """,
+            "local", """
+                    {
+                        n #integer: 500000
+                        sum #integer: 0
+                        loop i: 0 to n * 2 {
+                            sum :: + 1
+                        }
+                    }
+                    """,
+            "unnamed", """
+                    {
+                        n #integer: 500000
+                        sum #integer: 0
+                        loop 0 to n * 2 {
+                            sum :: + 1
+                        }
+                    }
+                    """);
+
+    // the counter of the loop
+    @Param({"global", "local", "unnamed"})
+    public String workload;
+
+    @Param({"every", "once"})
+    public String bound;
+
+    @Param({"tree", "closure", "vm"})
+    public String engine;
+
+    private Runnable run;
+
+    @Setup
+    public void compile() {
+        List<Stmt> statements = new Optimizer().optimize(new Parser(new Lexer(WORKLOADS.get(workload)).scanTokens()).parse());
+        new Resolver().resolve(statements);
+        if (bound.equals("every")) keepEvaluating(statements);
+
+        Interpreter interpreter = new Interpreter();
+        run = switch (engine) {
+            case "closure" -> {
+                ClosureCompiler compiler = new ClosureCompiler(interpreter);
+                yield () -> compiler.interpret(statements);
+            }
+            case "vm" -> {
+                VM vm = new VM(interpreter);
+                yield () -> vm.interpret(statements);
+            }
+            default -> () -> interpreter.interpret(statements);
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITERATIONS_PER_RUN)
+    public void run() {
+        run.run();
+    }
+
+    // the workloads only nest loops in blocks
+    private static void keepEvaluating(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Block block) keepEvaluating(block.statements);
+            if (statement instanceof Stmt.LoopRange loop) loop.invariant = false;
+        }
+    }
+}
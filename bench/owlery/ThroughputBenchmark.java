@@ -0,0 +1,76 @@
+package owlery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs per second of one compiled program through an OwleryEngine on 1, 2, 4 and 8 threads, every
+ * run with an Interpreter of its own on the shared tree. With runs that share nothing the rate
+ * should grow with the threads until the processors are busy. Run with
+ * "gradle jmh -Pbenchmarks=ThroughputBenchmark".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ThroughputBenchmark {
+    private static final int RUNS = 64;
+
+    private static final String PROGRAM = """
+            fib #callable: n -> {
+                if n < 2 { @n }
+                @ (fib! n - 1) + (fib! n - 2)
+            }
+            sum #integer: 0
+            loop i: 0 to 20000 {
+                sum: sum + i % 7
+            }
+            print! (fib! 18) + sum
+            """;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private ExecutorService executor;
+    private OwleryEngine engine;
+    private OwleryEngine.Program program;
+
+    @Setup
+    public void start() {
+        executor = Executors.newFixedThreadPool(threads);
+        engine = new OwleryEngine(executor);
+        program = engine.compile("throughput", PROGRAM);
+    }
+
+    @TearDown
+    public void stop() {
+        engine.close();
+        executor.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RUNS)
+    public void runs() {
+        List<CompletableFuture<OwleryEngine.Result>> results = new ArrayList<>(RUNS);
+        for (int i = 0; i < RUNS; i++) {
+            results.add(engine.submit(program, ""));
+        }
+        for (CompletableFuture<OwleryEngine.Result> result : results) {
+            if (!result.join().succeeded()) throw new IllegalStateException(result.join().error());
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package owlery;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Parsed scripts stored in ~/.owlery/cache, one .owlc file per source named by the SHA-256 of its
+ * bytes, so a script that did not change since its last run is read back as a tree instead of lexed
+ * and parsed again. The tree is the one the Parser builds, before the Optimizer and the Resolver
+ * change it. AstCodec, generated with Expr and Stmt, encodes the nodes; numbers are varints and
+ * every distinct string is written once, the lexer's warnings are stored with the tree and reported
+ * again on a hit. The cache is only a shortcut: a file that can not be read or written is parsed as
+ * if there was none.
+ *
+ * It is off unless "--cache" turns it on for a run from the command line; the library and an
+ * OwleryEngine always parse. The directory is kept below CAPACITY bytes by deleting the files
+ * that were least recently used, a hit counts as a use.
+ */
+final class AstCache {
+    private static final int MAGIC = 0x4f574c43; // OWLC
+    // raise the first number when the Lexer or the Parser build other trees from the same source
+    private static final int FORMAT = Objects.hash(2, AstCodec.VERSION,
+            Arrays.toString(TokenType.values()), Arrays.toString(OType.values()));
+    private static final long SEGMENT = 1L << 28;
+
+    private static final long CAPACITY = 64L << 20;
+
+    static boolean enabled = false;
+    static Path directory = Paths.get(System.getProperty("user.home"), ".owlery", "cache");
+
+    private record Warning(int line, String message) {}
+
+    // the warnings of the source being parsed, null while there is none; only the command line parses
+    // through the cache, on its one thread
+    private static List<Warning> warnings = null;
+
+    static long hits = 0;
+    static long misses = 0;
+
+    static List<Stmt> parse(Path file) throws IOException {
+        if (!enabled) return parseStream(file);
+
+        Path cached = directory.resolve(hash(file) + ".owlc");
+        List<Stmt> statements = read(cached);
+        if (statements != null) return statements;
+
+        warnings = new ArrayList<>();
+        try {
+            statements = parseStream(file);
+            if (!Owlery.hadError) write(cached, statements, warnings);
+        } finally {
+            warnings = null;
+        }
+        return statements;
+    }
+
+    // called for every warning Owlery reports, to keep the ones of the source being parsed
+    static void warned(int line, String message) {
+        if (warnings != null) warnings.add(new Warning(line, message));
+    }
+
+    static void report(PrintStream out) {
+        out.println("ast cache: " + hits + " hits, " + misses + " misses");
+    }
+
+    private static List<Stmt> parseStream(Path file) throws IOException {
+        try (TokenStream tokens = TokenStream.open(file)) {
+            return new Parser(tokens).parse();
+        }
+    }
+
+    // the file is hashed a mapped segment at a time, like a TokenStream reads it
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest = digest();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += SEGMENT) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT, size - position)));
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the cached tree, or null if there is none or it can not be read
+    private static List<Stmt> read(Path cached) {
+        if (!Files.isRegularFile(cached)) {
+            misses++;
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(cached, StandardOpenOption.READ)) {
+            Input in = new Input(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            if (in.data.getInt() != MAGIC || in.data.getInt() != FORMAT) {
+                misses++;
+                return null;
+            }
+            List<Warning> warnings = new ArrayList<>();
+            for (int i = in.number(); i > 0; i--) {
+                warnings.add(new Warning(in.number(), in.string()));
+            }
+            List<Stmt> statements = AstCodec.readStmts(in);
+            hits++;
+            for (Warning warning : warnings) {
+                Owlery.warning(warning.line, warning.message);
+            }
+            used(cached);
+            return statements;
+        } catch (IOException | RuntimeException e) {
+            misses++;
+            return null;
+        }
+    }
+
+    // written next to its final name and moved there, runs at the same time never read half a file
+    private static void write(Path cached, List<Stmt> statements, List<Warning> warnings) {
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, "owlc", ".tmp");
+            try (Output out = new Output(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16)))) {
+                out.data.writeInt(MAGIC);
+                out.data.writeInt(FORMAT);
+                out.number(warnings.size());
+                for (Warning warning : warnings) {
+                    out.number(warning.line);
+                    out.string(warning.message);
+                }
+                AstCodec.writeStmts(out, statements);
+            }
+            Files.move(temporary, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            trim();
+        } catch (IOException e) {
+            // the next run parses again
+            try {
+                if (temporary != null) Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void used(Path cached) {
+        try {
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // it is only evicted a little earlier
+        }
+    }
+
+    // deletes the least recently used files until the directory fits into CAPACITY again
+    private static void trim() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = new ArrayList<>(list.filter(path -> path.toString().endsWith(".owlc")).toList());
+        }
+        long size = 0;
+        Map<Path, FileTime> used = new HashMap<>();
+        for (Path file : files) {
+            size += Files.size(file);
+            used.put(file, Files.getLastModifiedTime(file));
+        }
+        files.sort(Comparator.comparing(used::get));
+        for (Path file : files) {
+            if (size <= CAPACITY) break;
+            size -= Files.size(file);
+            Files.deleteIfExists(file);
+        }
+    }
+
+    static final class Output implements AutoCloseable {
+        private final DataOutputStream data;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private int line = 0;
+
+        private Output(DataOutputStream data) {
+            this.data = data;
+        }
+
+        // zigzag varint, small numbers of either sign take a byte
+        void number(int value) throws IOException {
+            int bits = (value << 1) ^ (value >> 31);
+            while ((bits & ~0x7f) != 0) {
+                data.writeByte((bits & 0x7f) | 0x80);
+                bits >>>= 7;
+            }
+            data.writeByte(bits);
+        }
+
+        void flag(boolean value) throws IOException {
+            data.writeByte(value ? 1 : 0);
+        }
+
+        // 0 and the string the first time, its number + 1 after that
+        void string(String value) throws IOException {
+            Integer index = strings.get(value);
+            if (index != null) {
+                number(index + 1);
+                return;
+            }
+            strings.put(value, strings.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            number(0);
+            number(bytes.length);
+            data.write(bytes);
+        }
+
+        void type(OType type) throws IOException {
+            number(type.ordinal());
+        }
+
+        void literal(Object value) throws IOException {
+            if (value == null) {
+                data.writeByte(0);
+            } else if (value instanceof Boolean b) {
+                data.writeByte(b ? 1 : 2);
+            } else if (value instanceof Integer i) {
+                data.writeByte(3);
+                number(i);
+            } else if (value instanceof Double d) {
+                data.writeByte(4);
+                data.writeDouble(d);
+            } else if (value instanceof String s) {
+                data.writeByte(5);
+                string(s);
+            } else {
+                throw new IOException("a " + value.getClass().getSimpleName() + " literal can not be cached");
+            }
+        }
+
+        // the type with a bit for whether a literal follows, and the line as the step from the last token's
+        void token(Token token) throws IOException {
+            number(token.type.ordinal() << 1 | (token.literal != null ? 1 : 0));
+            string(token.lexeme());
+            if (token.literal != null) literal(token.literal);
+            number(token.line - line);
+            line = token.line;
+        }
+
+        void tokens(List<Token> tokens) throws IOException {
+            number(tokens.size());
+            for (Token token : tokens) {
+                token(token);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            data.close();
+        }
+    }
+
+    static final class Input {
+        private static final TokenType[] TOKEN_TYPES = TokenType.values();
+        private static final OType[] TYPES = OType.values();
+
+        private final ByteBuffer data;
+        private final List<String> strings = new ArrayList<>();
+        private int line = 0;
+
+        private Input(ByteBuffer data) {
+            this.data = data;
+        }
+
+        int number() throws IOException {
+            int bits = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = data.get() & 0xff;
+                bits |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return (bits >>> 1) ^ -(bits & 1);
+            }
+            throw new IOException("malformed number in the AST cache");
+        }
+
+        boolean flag() throws IOException {
+            return data.get() != 0;
+        }
+
+        String string() throws IOException {
+            int index = number();
+            if (index > 0) return strings.get(index - 1);
+
+            byte[] bytes = new byte[number()];
+            data.get(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        OType type() throws IOException {
+            return TYPES[number()];
+        }
+
+        Object literal() throws IOException {
+            return switch (data.get()) {
+                case 0 -> null;
+                case 1 -> true;
+                case 2 -> false;
+                case 3 -> number();
+                case 4 -> data.getDouble();
+                case 5 -> string();
+                default -> throw new IOException("unknown literal in the AST cache");
+            };
+        }
+
+        Token token() throws IOException {
+            int type = number();
+            String lexeme = string();
+            Object literal = (type & 1) != 0 ? literal() : null;
+            line += number();
+            return new Token(TOKEN_TYPES[type >>> 1], lexeme, literal, line);
+        }
+
+        List<Token> tokens() throws IOException {
+            int size = number();
+            List<Token> tokens = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                tokens.add(token());
+            }
+            return tokens;
+        }
+
+    }
+}
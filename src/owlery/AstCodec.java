@@ -0,0 +1,181 @@
+package owlery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+final class AstCodec {
+  // changes with the node types, a cache written for other ones is not read
+  static final int VERSION = -1182226242;
+
+  static void write(AstCache.Output out, Expr expr) throws IOException {
+    if (expr == null) {
+      out.number(0);
+    } else if (expr instanceof Expr.Define node) {
+      out.number(1);
+      out.token(node.name);
+      write(out, node.value);
+      out.type(node.type);
+    } else if (expr instanceof Expr.Assign node) {
+      out.number(2);
+      out.token(node.name);
+      write(out, node.value);
+    } else if (expr instanceof Expr.BooleanBinary node) {
+      out.number(3);
+      write(out, node.left);
+      out.token(node.operator);
+      write(out, node.right);
+    } else if (expr instanceof Expr.Binary node) {
+      out.number(4);
+      write(out, node.left);
+      out.token(node.operator);
+      write(out, node.right);
+    } else if (expr instanceof Expr.Grouping node) {
+      out.number(5);
+      write(out, node.expression);
+    } else if (expr instanceof Expr.Literal node) {
+      out.number(6);
+      out.literal(node.value);
+    } else if (expr instanceof Expr.Unary node) {
+      out.number(7);
+      out.token(node.operator);
+      write(out, node.right);
+    } else if (expr instanceof Expr.Variable node) {
+      out.number(8);
+      out.token(node.name);
+    } else if (expr instanceof Expr.Call node) {
+      out.number(9);
+      write(out, node.callee);
+      out.token(node.bang);
+      writeExprs(out, node.arguments);
+    } else if (expr instanceof Expr.Function node) {
+      out.number(10);
+      out.tokens(node.params);
+      writeStmts(out, node.body);
+    } else if (expr instanceof Expr.Index node) {
+      out.number(11);
+      out.token(node.name);
+      write(out, node.index);
+    } else if (expr instanceof Expr.TypeBinary node) {
+      out.number(12);
+      write(out, node.expression);
+      out.token(node.op);
+      out.type(node.type);
+    } else if (expr instanceof Expr.ListLiteral node) {
+      out.number(13);
+      out.token(node.bracket);
+      writeExprs(out, node.elements);
+    }
+  }
+
+  static Expr readExpr(AstCache.Input in) throws IOException {
+    return switch (in.number()) {
+      case 0 -> null;
+      case 1 -> new Expr.Define(in.token(), readExpr(in), in.type());
+      case 2 -> new Expr.Assign(in.token(), readExpr(in));
+      case 3 -> new Expr.BooleanBinary(readExpr(in), in.token(), readExpr(in));
+      case 4 -> new Expr.Binary(readExpr(in), in.token(), readExpr(in));
+      case 5 -> new Expr.Grouping(readExpr(in));
+      case 6 -> new Expr.Literal(in.literal());
+      case 7 -> new Expr.Unary(in.token(), readExpr(in));
+      case 8 -> new Expr.Variable(in.token());
+      case 9 -> new Expr.Call(readExpr(in), in.token(), readExprs(in));
+      case 10 -> new Expr.Function(in.tokens(), readStmts(in));
+      case 11 -> new Expr.Index(in.token(), readExpr(in));
+      case 12 -> new Expr.TypeBinary(readExpr(in), in.token(), in.type());
+      case 13 -> new Expr.ListLiteral(in.token(), readExprs(in));
+      default -> throw new IOException("unknown expr in the AST cache");
+    };
+  }
+
+  static void writeExprs(AstCache.Output out, List<Expr> exprs) throws IOException {
+    out.number(exprs.size());
+    for (Expr expr : exprs) {
+      write(out, expr);
+    }
+  }
+
+  static List<Expr> readExprs(AstCache.Input in) throws IOException {
+    int size = in.number();
+    List<Expr> exprs = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      exprs.add(readExpr(in));
+    }
+    return exprs;
+  }
+
+  static void write(AstCache.Output out, Stmt stmt) throws IOException {
+    if (stmt == null) {
+      out.number(0);
+    } else if (stmt instanceof Stmt.Expression node) {
+      out.number(1);
+      write(out, node.expression);
+    } else if (stmt instanceof Stmt.Print node) {
+      out.number(2);
+      write(out, node.expression);
+    } else if (stmt instanceof Stmt.Empty node) {
+      out.number(3);
+      out.number(node.i);
+    } else if (stmt instanceof Stmt.Block node) {
+      out.number(4);
+      writeStmts(out, node.statements);
+    } else if (stmt instanceof Stmt.If node) {
+      out.number(5);
+      write(out, node.cond);
+      write(out, node.thenBlock);
+      write(out, node.elseBlock);
+    } else if (stmt instanceof Stmt.LoopCondition node) {
+      out.number(6);
+      write(out, node.condition);
+      write(out, node.body);
+    } else if (stmt instanceof Stmt.LoopRange node) {
+      out.number(7);
+      write(out, node.from);
+      write(out, node.to);
+      write(out, node.body);
+      out.flag(node.incl);
+      out.flag(node.parallel);
+    } else if (stmt instanceof Stmt.LoopIn node) {
+      out.number(8);
+      out.token(node.name);
+      write(out, node.list);
+      write(out, node.body);
+    } else if (stmt instanceof Stmt.Return node) {
+      out.number(9);
+      out.token(node.keyword);
+      write(out, node.value);
+    }
+  }
+
+  static Stmt readStmt(AstCache.Input in) throws IOException {
+    return switch (in.number()) {
+      case 0 -> null;
+      case 1 -> new Stmt.Expression(readExpr(in));
+      case 2 -> new Stmt.Print(readExpr(in));
+      case 3 -> new Stmt.Empty(in.number());
+      case 4 -> new Stmt.Block(readStmts(in));
+      case 5 -> new Stmt.If(readExpr(in), readStmt(in), readStmt(in));
+      case 6 -> new Stmt.LoopCondition(readExpr(in), readStmt(in));
+      case 7 -> new Stmt.LoopRange(readExpr(in), readExpr(in), readStmt(in), in.flag(), in.flag());
+      case 8 -> new Stmt.LoopIn(in.token(), readExpr(in), readStmt(in));
+      case 9 -> new Stmt.Return(in.token(), readExpr(in));
+      default -> throw new IOException("unknown stmt in the AST cache");
+    };
+  }
+
+  static void writeStmts(AstCache.Output out, List<Stmt> stmts) throws IOException {
+    out.number(stmts.size());
+    for (Stmt stmt : stmts) {
+      write(out, stmt);
+    }
+  }
+
+  static List<Stmt> readStmts(AstCache.Input in) throws IOException {
+    int size = in.number();
+    List<Stmt> stmts = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      stmts.add(readStmt(in));
+    }
+    return stmts;
+  }
+}
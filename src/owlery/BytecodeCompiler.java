@@ -0,0 +1,1041 @@
+package owlery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the resolved tree into Chunks for the VM. The resolver's nested block scopes are
+ * flattened into one slot range per function: every block gets a base offset, and a variable
+ * at (depth, slot) ends up at base(depth) + slot.
+ *
+ * Names and operators go into the constants once per lexeme, the line of every instruction that
+ * names one is kept in the chunk's line table instead. Call sites keep their inline caches in a
+ * table of their own, so neither grows the constants with the length of a script.
+ *
+ * A slot whose declarations all make it an #integer or #double (see Resolver) gets the VM's
+ * primitive lane. Arithmetic on those slots and on int and double literals is compiled to typed
+ * instructions that use the lane's slots like registers, with what they compute in hidden slots,
+ * so it goes neither through the stack nor through boxes; a value is boxed only where it meets
+ * one that is not, like an argument, a global or a list element. Conditions compare and jump in
+ * one instruction, and a range loop tests and increments its counter in one per iteration.
+ */
+public class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    enum Kind { INT, DOUBLE, OBJECT }
+
+    // the lane of a slot in the low two bits of the fallback slots, see VM.defined
+    static final int OBJECT_LANE = 0;
+    static final int INT_LANE = 1;
+    static final int DOUBLE_LANE = 2;
+
+    private int[] code = new int[64];
+    private int count = 0;
+    private List<Object> constants = new ArrayList<>();
+    private Map<Object, Integer> constantIndices = new HashMap<>();
+    private int[] lines = new int[64];
+    private List<InlineCache> caches = new ArrayList<>();
+    // where the last instruction starts and the line of the last name, for the line table and errors
+    private int instruction = 0;
+    private int line = 0;
+
+    private List<Integer> bases = new ArrayList<>();
+    // the types of the slots of every scope in bases, from the Resolver
+    private List<OType[]> types = new ArrayList<>();
+    private int nextSlot = 0;
+    private int maxSlots = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+
+    // the chunk of the whole script, or null when it does not fit the instructions and got reported
+    Chunk compile(List<Stmt> statements) {
+        try {
+            for (Stmt statement : statements) {
+                compile(statement);
+            }
+            emit(OpCode.CONSTANT, 1);
+            emitShort(constant(null));
+            emit(OpCode.RETURN, -1);
+            return chunk("script", List.of());
+        } catch (LimitError e) {
+            return null;
+        }
+    }
+
+    // the chunk of a function on its own, like a FUNCTION instruction would push it
+    Chunk function(Expr.Function function) {
+        function.accept(this);
+        return (Chunk) constants.get(constants.size() - 1);
+    }
+
+    private Chunk chunk(String name, List<Token> params) {
+        return new Chunk(name, params, Arrays.copyOf(code, count), constants.toArray(), Arrays.copyOf(lines, count),
+                caches.toArray(new InlineCache[0]), maxSlots, maxStack);
+    }
+
+    private void compile(Stmt stmt) {
+        // the hidden slots a statement computes into are free again after it
+        int mark = nextSlot;
+        stmt.accept(this);
+        nextSlot = mark;
+    }
+
+    // compiles an expression that pushes its value, boxed
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void emit(byte op, int stackEffect) {
+        if (count + 8 > code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+            lines = Arrays.copyOf(lines, code.length);
+        }
+        instruction = count;
+        code[count++] = op;
+        stack += stackEffect;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void emitShort(int operand) {
+        if (operand > 0xffff) {
+            throw error("[vm] too many constants, variables or calls in one function, split it into smaller ones");
+        }
+        code[count++] = operand;
+    }
+
+    private void emitImmediate(int value) {
+        code[count++] = value;
+    }
+
+    private int emitJump(byte op, int stackEffect) {
+        emit(op, stackEffect);
+        emitShort(0);
+        return count - 1;
+    }
+
+    private void patchJump(int at) {
+        setOffset(at, count - (at + 1));
+    }
+
+    private void emitLoop(int start) {
+        emit(OpCode.JUMP, 0);
+        emitShort(0);
+        setOffset(count - 1, start - count);
+    }
+
+    private void setOffset(int at, int offset) {
+        if (offset > Short.MAX_VALUE || offset < Short.MIN_VALUE) {
+            throw error("[vm] a loop or branch is too long to jump over, move part of it into a function");
+        }
+        code[at] = offset;
+    }
+
+    private int constant(Object value) {
+        Integer index = constantIndices.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndices.put(value, index);
+        }
+        return index;
+    }
+
+    // a name or operator, the same lexeme shares one constant whatever line it is on
+    private int name(Token token) {
+        line = token.line;
+        lines[instruction] = token.line;
+        Integer index = constantIndices.get(new Name(token.type, token.lexeme()));
+        if (index == null) {
+            index = constant(new Token(token.type, token.lexeme(), token.literal, VM.NO_LINE));
+            constantIndices.put(new Name(token.type, token.lexeme()), index);
+        }
+        return index;
+    }
+
+    private record Name(TokenType type, String lexeme) {}
+
+    private int cache(Token bang) {
+        caches.add(new InlineCache(bang));
+        return caches.size() - 1;
+    }
+
+    private static class LimitError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+    private LimitError error(String message) {
+        Owlery.error(line, message);
+        return new LimitError();
+    }
+
+    private int local(int depth, int slot) {
+        return bases.get(bases.size() - 1 - depth) + slot;
+    }
+
+    private int beginScope(int slots, OType[] slotTypes) {
+        int base = nextSlot;
+        bases.add(base);
+        types.add(slotTypes);
+        nextSlot += slots;
+        maxSlots = Math.max(maxSlots, nextSlot);
+        return base;
+    }
+
+    private void endScope() {
+        nextSlot = bases.remove(bases.size() - 1);
+        types.remove(types.size() - 1);
+    }
+
+    private Kind lane(int depth, int slot) {
+        return switch (types.get(types.size() - 1 - depth)[slot]) {
+            case Integer -> Kind.INT;
+            case Double -> Kind.DOUBLE;
+            default -> Kind.OBJECT;
+        };
+    }
+
+    private int hiddenSlot() {
+        int slot = nextSlot++;
+        maxSlots = Math.max(maxSlots, nextSlot);
+        return slot;
+    }
+
+    // the Kind of an expression that can be computed in the primitive lane: int and double
+    // literals, locals of that lane that are defined for sure, arithmetic on them and assigning
+    // them to such a local of the same lane; OBJECT for everything else
+    private Kind kind(Expr expr) {
+        if (expr instanceof Expr.Literal literal) {
+            return literal.value instanceof Integer ? Kind.INT : literal.value instanceof Double ? Kind.DOUBLE : Kind.OBJECT;
+        }
+        if (expr instanceof Expr.Grouping grouping) {
+            return kind(grouping.expression);
+        }
+        if (expr instanceof Expr.Variable variable) {
+            return variable.depth == -1 || variable.fallback != null ? Kind.OBJECT : lane(variable.depth, variable.slot);
+        }
+        if (expr instanceof Expr.Assign assign) {
+            if (assign.depth == -1 || assign.fallback != null) return Kind.OBJECT;
+            Kind lane = lane(assign.depth, assign.slot);
+            return kind(assign.value) == lane ? lane : Kind.OBJECT;
+        }
+        // negating an int fails like in the other engines
+        if (expr instanceof Expr.Unary unary && unary.operator.type == TokenType.MINUS) {
+            return kind(unary.right) == Kind.DOUBLE ? Kind.DOUBLE : Kind.OBJECT;
+        }
+        if (expr instanceof Expr.Binary binary && arithmetic(binary.operator.type)) {
+            Kind left = kind(binary.left);
+            Kind right = kind(binary.right);
+            if (left == Kind.OBJECT || right == Kind.OBJECT) return Kind.OBJECT;
+            // an int and a double make a double like in Interpreter.binary
+            return left == Kind.INT && right == Kind.INT ? Kind.INT : Kind.DOUBLE;
+        }
+        return Kind.OBJECT;
+    }
+
+    private static boolean arithmetic(TokenType operator) {
+        return switch (operator) {
+            case PLUS, MINUS, STAR, SLASH, PERCENT -> true;
+            default -> false;
+        };
+    }
+
+    // the value of an int literal, or null
+    private static Integer immediate(Expr expr) {
+        if (expr instanceof Expr.Grouping grouping) return immediate(grouping.expression);
+        return expr instanceof Expr.Literal literal && literal.value instanceof Integer value ? value : null;
+    }
+
+    // whether an expression of the primitive lane is a local it reads where it is
+    private static boolean named(Expr expr) {
+        if (expr instanceof Expr.Grouping grouping) return named(grouping.expression);
+        return expr instanceof Expr.Variable || expr instanceof Expr.Assign;
+    }
+
+    // whether an expression of the primitive lane assigns a local, the only thing in it that can
+    private static boolean assigns(Expr expr) {
+        if (expr instanceof Expr.Grouping grouping) return assigns(grouping.expression);
+        if (expr instanceof Expr.Unary unary) return assigns(unary.right);
+        if (expr instanceof Expr.Binary binary) return assigns(binary.left) || assigns(binary.right);
+        return expr instanceof Expr.Assign;
+    }
+
+    // computes an expression of Kind INT or DOUBLE in the primitive lane and returns its slot: a
+    // local is read where it is, anything else is computed into target, a hidden slot if that is
+    // -1; only the last instruction writes target, so the expression may read it
+    private int register(Expr expr, int target) {
+        if (expr instanceof Expr.Grouping grouping) {
+            return register(grouping.expression, target);
+        }
+        if (expr instanceof Expr.Variable variable) {
+            return local(variable.depth, variable.slot);
+        }
+        if (expr instanceof Expr.Assign assign) {
+            int slot = local(assign.depth, assign.slot);
+            move(slot, register(assign.value, slot));
+            return slot;
+        }
+
+        int slot = target == -1 ? hiddenSlot() : target;
+        if (expr instanceof Expr.Literal literal) {
+            if (literal.value instanceof Integer value) {
+                emit(OpCode.INT, 0);
+                emitShort(slot);
+                emitImmediate(value);
+            } else {
+                emit(OpCode.DOUBLE, 0);
+                emitShort(slot);
+                emitShort(constant(literal.value));
+            }
+        } else if (expr instanceof Expr.Unary unary) {
+            int right = register(unary.right, -1);
+            emit(OpCode.NEGATE_DOUBLE, 0);
+            emitShort(slot);
+            emitShort(right);
+        } else {
+            Expr.Binary binary = (Expr.Binary) expr;
+            TokenType operator = binary.operator.type;
+            if (kind(binary) == Kind.INT) {
+                int left = operand(binary.left, binary.right, false);
+                Integer immediate = immediate(binary.right);
+                if (immediate != null) {
+                    emit(switch (operator) {
+                        case PLUS -> OpCode.ADD_INT_IMMEDIATE;
+                        case MINUS -> OpCode.SUBTRACT_INT_IMMEDIATE;
+                        case STAR -> OpCode.MULTIPLY_INT_IMMEDIATE;
+                        case SLASH -> OpCode.DIVIDE_INT_IMMEDIATE;
+                        default -> OpCode.MODULO_INT_IMMEDIATE;
+                    }, 0);
+                    emitShort(slot);
+                    emitShort(left);
+                    emitImmediate(immediate);
+                    return slot;
+                }
+                int right = register(binary.right, -1);
+                emit(switch (operator) {
+                    case PLUS -> OpCode.ADD_INT;
+                    case MINUS -> OpCode.SUBTRACT_INT;
+                    case STAR -> OpCode.MULTIPLY_INT;
+                    case SLASH -> OpCode.DIVIDE_INT;
+                    default -> OpCode.MODULO_INT;
+                }, 0);
+                emitShort(slot);
+                emitShort(left);
+                emitShort(right);
+            } else {
+                int left = operand(binary.left, binary.right, true);
+                int right = operand(binary.right, null, true);
+                emit(switch (operator) {
+                    case PLUS -> OpCode.ADD_DOUBLE;
+                    case MINUS -> OpCode.SUBTRACT_DOUBLE;
+                    case STAR -> OpCode.MULTIPLY_DOUBLE;
+                    case SLASH -> OpCode.DIVIDE_DOUBLE;
+                    default -> OpCode.MODULO_DOUBLE;
+                }, 0);
+                emitShort(slot);
+                emitShort(left);
+                emitShort(right);
+            }
+        }
+        return slot;
+    }
+
+    // the slot of an operand, converted to a double if asked to; a local is copied when the
+    // operand after it could assign it before the instruction reads both
+    private int operand(Expr expr, Expr after, boolean asDouble) {
+        int slot = register(expr, -1);
+        if (asDouble && kind(expr) == Kind.INT) {
+            int converted = hiddenSlot();
+            emit(OpCode.INT_TO_DOUBLE, 0);
+            emitShort(converted);
+            emitShort(slot);
+            return converted;
+        }
+        if (after != null && named(expr) && assigns(after)) {
+            int copy = hiddenSlot();
+            move(copy, slot);
+            return copy;
+        }
+        return slot;
+    }
+
+    private void move(int to, int from) {
+        if (to == from) return;
+        emit(OpCode.MOVE, 0);
+        emitShort(to);
+        emitShort(from);
+    }
+
+    // pushes the slot of the primitive lane boxed
+    private void box(Kind kind, int slot) {
+        emit(kind == Kind.INT ? OpCode.BOX_INT : OpCode.BOX_DOUBLE, 1);
+        emitShort(slot);
+    }
+
+    // a counter, bound or index that is not an int expression, cast like the other engines do
+    private void unbox(Expr expr, int slot) {
+        compile(expr);
+        emit(OpCode.UNBOX_INT, -1);
+        emitShort(slot);
+    }
+
+    private void emitGet(int depth, int slot, int[] fallback, Token name) {
+        if (fallback != null) {
+            emit(OpCode.GET_FALLBACK, 1);
+            emitShort(constant(slots(depth, slot, fallback)));
+            emitShort(name(name));
+        } else if (depth == -1) {
+            emit(OpCode.GET_GLOBAL, 1);
+            emitShort(name(name));
+        } else if (lane(depth, slot) != Kind.OBJECT) {
+            box(lane(depth, slot), local(depth, slot));
+        } else {
+            emit(OpCode.GET_LOCAL, 1);
+            emitShort(local(depth, slot));
+            emitShort(name(name));
+        }
+    }
+
+    // sets the variable to the value on the stack, which stays there; a value that is not of a
+    // slot's lane is type checked and unboxed, so the check reports it
+    private void emitSet(int depth, int slot, int[] fallback, Token name) {
+        if (fallback != null) {
+            emit(OpCode.SET_FALLBACK, 0);
+            emitShort(constant(slots(depth, slot, fallback)));
+        } else if (depth == -1) {
+            emit(OpCode.SET_GLOBAL, 0);
+        } else {
+            emit(lane(depth, slot) == Kind.OBJECT ? OpCode.SET_LOCAL : OpCode.SET_UNBOXED, 0);
+            emitShort(local(depth, slot));
+        }
+        emitShort(name(name));
+    }
+
+    // the slot and its fallbacks in the order they are tried, each with its lane in the low two bits
+    private int[] slots(int depth, int slot, int[] fallback) {
+        int[] slots = new int[1 + fallback.length / 2];
+        slots[0] = slot(depth, slot);
+        for (int i = 0; i < fallback.length; i += 2) {
+            slots[1 + i / 2] = slot(fallback[i], fallback[i + 1]);
+        }
+        return slots;
+    }
+
+    private int slot(int depth, int slot) {
+        int lane = switch (lane(depth, slot)) {
+            case INT -> INT_LANE;
+            case DOUBLE -> DOUBLE_LANE;
+            case OBJECT -> OBJECT_LANE;
+        };
+        return local(depth, slot) << 2 | lane;
+    }
+
+    // defines the variable in the slot (-1: the global), which leaves null on the stack unless the
+    // definition is a statement of its own
+    private void emitDefine(int slot, Token name, OType type, Expr value, boolean statement) {
+        Kind lane = slot == -1 ? Kind.OBJECT : lane(0, slot);
+        if (lane != Kind.OBJECT && kind(value) == lane) {
+            int local = local(0, slot);
+            int from = register(value, local);
+            emit(OpCode.DEFINE_PRIMITIVE, 0);
+            emitShort(local);
+            emitShort(from);
+            emitShort(type.ordinal());
+            if (!statement) {
+                emit(OpCode.CONSTANT, 1);
+                emitShort(constant(null));
+            }
+            return;
+        }
+
+        compile(value);
+        if (slot == -1) {
+            emit(OpCode.DEFINE_GLOBAL, -1);
+        } else {
+            emit(lane == Kind.OBJECT ? OpCode.DEFINE_LOCAL : OpCode.DEFINE_UNBOXED, -1);
+            emitShort(local(0, slot));
+        }
+        emitShort(name(name));
+        emitShort(type.ordinal());
+        if (!statement) {
+            emit(OpCode.CONSTANT, 1);
+            emitShort(constant(null));
+        }
+    }
+
+    @Override
+    public Void visitDefineExpr(Expr.Define expr) {
+        emitDefine(expr.slot, expr.name, expr.type, expr.value, false);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        Kind kind = kind(expr);
+        if (kind != Kind.OBJECT) {
+            box(kind, register(expr, -1));
+            return null;
+        }
+        compile(expr.value);
+        emitSet(expr.depth, expr.slot, expr.fallback, expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBooleanBinaryExpr(Expr.BooleanBinary expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.OR || expr.operator.type == TokenType.AND) {
+            int end = emitJump(expr.operator.type == TokenType.OR ? OpCode.JUMP_IF_TRUE_OR_POP : OpCode.JUMP_IF_FALSE_OR_POP, -1);
+            compile(expr.right);
+            patchJump(end);
+        } else {
+            emit(OpCode.POP, -1);
+            compile(expr.right);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        Kind kind = kind(expr);
+        if (kind != Kind.OBJECT) {
+            box(kind, register(expr, -1));
+            return null;
+        }
+        compile(expr.left);
+        compile(expr.right);
+        byte op = switch (expr.operator.type) {
+            case PLUS -> OpCode.ADD;
+            case MINUS -> OpCode.SUBTRACT;
+            case STAR -> OpCode.MULTIPLY;
+            case SLASH -> OpCode.DIVIDE;
+            case PERCENT -> OpCode.MODULO;
+            case GREATER -> OpCode.GREATER;
+            case GREATER_EQUAL -> OpCode.GREATER_EQUAL;
+            case LESS -> OpCode.LESS;
+            case LESS_EQUAL -> OpCode.LESS_EQUAL;
+            case EQUAL -> OpCode.EQUAL;
+            case BANG_EQUAL -> OpCode.NOT_EQUAL;
+            case VERTICAL_BAR -> OpCode.CONCAT;
+            case DOUBLE_VERTICAL_BAR -> OpCode.CONCAT_SPACE;
+            default -> throw new RuntimeError(expr.operator, "[vm] unsupported operator");
+        };
+        emit(op, -1);
+        emitShort(name(expr.operator));
+        return null;
+    }
+
+    // compiles a condition into instructions that jump when it does not hold, and returns where
+    // the offset of that jump goes; comparisons jump in the instruction that compares
+    private int jumpUnless(Expr condition) {
+        if (condition instanceof Expr.Grouping grouping) {
+            return jumpUnless(grouping.expression);
+        }
+        if (!(condition instanceof Expr.Binary binary) || comparison(binary.operator.type) == -1) {
+            compile(condition);
+            return emitJump(OpCode.JUMP_IF_FALSE, -1);
+        }
+
+        TokenType operator = binary.operator.type;
+        Expr left = binary.left;
+        Expr right = binary.right;
+        Kind leftKind = kind(left);
+        Kind rightKind = kind(right);
+        if (leftKind == Kind.INT && rightKind == Kind.INT) {
+            // a literal has no effects, so it can go to the right where it is an imm
+            if (immediate(left) != null && immediate(right) == null) {
+                left = binary.right;
+                right = binary.left;
+                operator = switch (operator) {
+                    case GREATER -> TokenType.LESS;
+                    case GREATER_EQUAL -> TokenType.LESS_EQUAL;
+                    case LESS -> TokenType.GREATER;
+                    case LESS_EQUAL -> TokenType.GREATER_EQUAL;
+                    default -> operator;
+                };
+            }
+            int a = operand(left, right, false);
+            Integer immediate = immediate(right);
+            if (immediate != null) {
+                emit((byte) (OpCode.JUMP_UNLESS_GREATER_INT_IMMEDIATE + comparison(operator)), 0);
+                emitShort(a);
+                emitImmediate(immediate);
+            } else {
+                int b = register(right, -1);
+                emit((byte) (OpCode.JUMP_UNLESS_GREATER_INT + comparison(operator)), 0);
+                emitShort(a);
+                emitShort(b);
+            }
+        } else if (leftKind != Kind.OBJECT && rightKind != Kind.OBJECT
+                && operator != TokenType.EQUAL && operator != TokenType.BANG_EQUAL) {
+            int a = operand(left, right, true);
+            int b = operand(right, null, true);
+            emit((byte) (OpCode.JUMP_UNLESS_GREATER_DOUBLE + comparison(operator)), 0);
+            emitShort(a);
+            emitShort(b);
+        } else {
+            compile(left);
+            compile(right);
+            emit((byte) (OpCode.JUMP_UNLESS_GREATER + comparison(operator)), -2);
+            emitShort(name(binary.operator));
+        }
+        emitShort(0);
+        return count - 1;
+    }
+
+    // the place of a comparison in each group of JUMP_UNLESS instructions, -1 for other operators
+    private static int comparison(TokenType operator) {
+        return switch (operator) {
+            case GREATER -> 0;
+            case GREATER_EQUAL -> 1;
+            case LESS -> 2;
+            case LESS_EQUAL -> 3;
+            case EQUAL -> 4;
+            case BANG_EQUAL -> 5;
+            default -> -1;
+        };
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        emit(OpCode.CONSTANT, 1);
+        emitShort(constant(expr.value));
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (kind(expr) == Kind.DOUBLE) {
+            box(Kind.DOUBLE, register(expr, -1));
+            return null;
+        }
+        compile(expr.right);
+        switch (expr.operator.type) {
+            case MINUS -> {
+                emit(OpCode.NEGATE, 0);
+                emitShort(name(expr.operator));
+            }
+            case NOT -> emit(OpCode.NOT, 0);
+            default -> {
+                emit(OpCode.POP, -1);
+                visitLiteralExpr(new Expr.Literal(null));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        emitGet(expr.depth, expr.slot, expr.fallback, expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        emit(OpCode.CALL, -expr.arguments.size());
+        emitShort(expr.arguments.size());
+        emitShort(name(expr.bang));
+        emitShort(cache(expr.bang));
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+        int[] enclosingCode = code;
+        int enclosingCount = count;
+        List<Object> enclosingConstants = constants;
+        Map<Object, Integer> enclosingIndices = constantIndices;
+        int[] enclosingLines = lines;
+        List<InlineCache> enclosingCaches = caches;
+        int enclosingInstruction = instruction;
+        List<Integer> enclosingBases = bases;
+        List<OType[]> enclosingTypes = types;
+        int enclosingNextSlot = nextSlot, enclosingMaxSlots = maxSlots;
+        int enclosingStack = stack, enclosingMaxStack = maxStack;
+
+        code = new int[64];
+        count = 0;
+        constants = new ArrayList<>();
+        constantIndices = new HashMap<>();
+        lines = new int[64];
+        caches = new ArrayList<>();
+        bases = new ArrayList<>();
+        types = new ArrayList<>();
+        nextSlot = 0;
+        maxSlots = 0;
+        stack = 0;
+        maxStack = 0;
+
+        beginScope(expr.slots, expr.types);
+        for (Stmt statement : expr.body) {
+            compile(statement);
+        }
+        emit(OpCode.CONSTANT, 1);
+        emitShort(constant(null));
+        emit(OpCode.RETURN, -1);
+        Chunk chunk = chunk("function", expr.params);
+
+        code = enclosingCode;
+        count = enclosingCount;
+        constants = enclosingConstants;
+        constantIndices = enclosingIndices;
+        lines = enclosingLines;
+        caches = enclosingCaches;
+        instruction = enclosingInstruction;
+        bases = enclosingBases;
+        types = enclosingTypes;
+        nextSlot = enclosingNextSlot;
+        maxSlots = enclosingMaxSlots;
+        stack = enclosingStack;
+        maxStack = enclosingMaxStack;
+
+        emit(OpCode.FUNCTION, 1);
+        emitShort(constant(chunk));
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        if (kind(expr.index) == Kind.INT && expr.fallback == null && expr.depth != -1
+                && lane(expr.depth, expr.slot) == Kind.OBJECT) {
+            int index = register(expr.index, -1);
+            emit(OpCode.INDEX_LOCAL_INT, 1);
+            emitShort(local(expr.depth, expr.slot));
+            emitShort(index);
+            emitShort(name(expr.name));
+            return null;
+        }
+        emitGet(expr.depth, expr.slot, expr.fallback, expr.name);
+        if (kind(expr.index) == Kind.INT) {
+            int index = register(expr.index, -1);
+            emit(OpCode.INDEX_INT, 0);
+            emitShort(index);
+        } else {
+            compile(expr.index);
+            emit(OpCode.INDEX, -1);
+        }
+        emitShort(name(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitListLiteralExpr(Expr.ListLiteral expr) {
+        for (Expr element : expr.elements) {
+            compile(element);
+        }
+        emit(OpCode.LIST, 1 - expr.elements.size());
+        emitShort(expr.elements.size());
+        return null;
+    }
+
+    @Override
+    public Void visitTypeBinaryExpr(Expr.TypeBinary expr) {
+        compile(expr.expression);
+        if (expr.op.type == TokenType.IS) {
+            emit(OpCode.IS, 0);
+            emitShort(expr.type.ordinal());
+        } else {
+            emit(OpCode.CONVERT, 0);
+            emitShort(expr.type.ordinal());
+            emitShort(name(expr.op));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        // assignments and definitions in the primitive lane leave nothing on the stack to drop,
+        // neither do definitions and updates
+        if (stmt.expression instanceof Expr.Assign assign && kind(assign) != Kind.OBJECT) {
+            register(assign, -1);
+        } else if (stmt.expression instanceof Expr.Assign assign && update(assign)) {
+            Expr.Binary binary = (Expr.Binary) assign.value;
+            compile(binary.right);
+            if (assign.depth == -1) {
+                emit(OpCode.UPDATE_GLOBAL, -1);
+            } else {
+                emit(OpCode.UPDATE_LOCAL, -1);
+                emitShort(local(assign.depth, assign.slot));
+            }
+            emitShort(name(assign.name));
+            emitShort(name(binary.operator));
+        } else if (stmt.expression instanceof Expr.Define define) {
+            emitDefine(define.slot, define.name, define.type, define.value, true);
+        } else {
+            compile(stmt.expression);
+            emit(OpCode.POP, -1);
+        }
+        return null;
+    }
+
+    // whether an assignment is `x: x op e` for a global or an object lane local, with an operator
+    // UPDATE can apply and an e that can not assign x before x is read
+    private boolean update(Expr.Assign assign) {
+        if (assign.fallback != null || !(assign.value instanceof Expr.Binary binary)) return false;
+        if (!arithmetic(binary.operator.type) && binary.operator.type != TokenType.VERTICAL_BAR
+                && binary.operator.type != TokenType.DOUBLE_VERTICAL_BAR) return false;
+        if (!(binary.left instanceof Expr.Variable variable) || variable.fallback != null) return false;
+        if (assign.depth == -1) {
+            return variable.depth == -1 && variable.name.lexeme().equals(assign.name.lexeme()) && !writes(binary.right, true);
+        }
+        return variable.depth == assign.depth && variable.slot == assign.slot
+                && lane(assign.depth, assign.slot) == Kind.OBJECT && !writes(binary.right, false);
+    }
+
+    // whether evaluating an expression can assign a variable; a call can only assign globals,
+    // functions do not see the locals of their caller
+    private static boolean writes(Expr expr, boolean global) {
+        if (expr instanceof Expr.Assign || expr instanceof Expr.Define) return true;
+        if (expr instanceof Expr.Call call) {
+            if (global || writes(call.callee, false)) return true;
+            for (Expr argument : call.arguments) {
+                if (writes(argument, false)) return true;
+            }
+            return false;
+        }
+        if (expr instanceof Expr.Grouping grouping) return writes(grouping.expression, global);
+        if (expr instanceof Expr.Unary unary) return writes(unary.right, global);
+        if (expr instanceof Expr.Binary binary) return writes(binary.left, global) || writes(binary.right, global);
+        if (expr instanceof Expr.BooleanBinary binary) return writes(binary.left, global) || writes(binary.right, global);
+        if (expr instanceof Expr.Index index) return writes(index.index, global);
+        if (expr instanceof Expr.TypeBinary binary) return writes(binary.expression, global);
+        if (expr instanceof Expr.ListLiteral list) {
+            for (Expr element : list.elements) {
+                if (writes(element, global)) return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitEmptyStmt(Stmt.Empty stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // a block that declares nothing has no scope, the Resolver did not count it in the depths
+        if (stmt.slots == 0) {
+            for (Stmt statement : stmt.statements) {
+                compile(statement);
+            }
+            return null;
+        }
+
+        int base = beginScope(stmt.slots, stmt.types);
+        if (stmt.slots > 0) {
+            emit(OpCode.CLEAR, 0);
+            emitShort(base);
+            emitShort(stmt.slots);
+        }
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int otherwise = jumpUnless(stmt.cond);
+        compile(stmt.thenBlock);
+        if (stmt.elseBlock == null) {
+            patchJump(otherwise);
+        } else {
+            int end = emitJump(OpCode.JUMP, 0);
+            patchJump(otherwise);
+            compile(stmt.elseBlock);
+            patchJump(end);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLoopConditionStmt(Stmt.LoopCondition stmt) {
+        int start = count;
+        int exit = jumpUnless(stmt.condition);
+        compile(stmt.body);
+        emitLoop(start);
+        patchJump(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitLoopRangeStmt(Stmt.LoopRange stmt) {
+        Expr.Assign assignment = stmt.from instanceof Expr.Assign assign ? assign : null;
+        int incl = assignment != null && stmt.incl ? 1 : 0;
+        if (assignment != null && assignment.depth == -1 && stmt.invariant) {
+            // the body runs in a scope of its own and can not redefine the global, so the VM
+            // increments the Value it looked up once
+            emitDefine(-1, assignment.name, OType.Integer, assignment.value, true);
+            int bound = bound(stmt.to, incl);
+            emit(OpCode.GLOBAL_LOOP_TEST, 0);
+            emitShort(name(assignment.name));
+            emitShort(bound);
+            emitShort(0);
+            int exit = count - 1;
+            int start = count;
+            compile(stmt.body);
+            emit(OpCode.GLOBAL_LOOP_NEXT, 0);
+            emitShort(name(assignment.name));
+            emitShort(bound);
+            emitShort(0);
+            setOffset(count - 1, start - count);
+            patchJump(exit);
+            return null;
+        }
+        if (assignment != null && (assignment.depth == -1 || lane(0, assignment.slot) != Kind.INT)) {
+            // a global counter goes through its Value like any other global, so does a local one
+            // in a slot that is declared with another type too
+            emitDefine(assignment.slot, assignment.name, OType.Integer, assignment.value, true);
+            int bound = -1;
+            if (stmt.invariant) {
+                bound = hiddenSlot();
+                compile(stmt.to);
+                emit(OpCode.STORE, -1);
+                emitShort(bound);
+            }
+
+            int start = count;
+            emitGet(assignment.depth, assignment.slot, null, assignment.name);
+            if (bound == -1) {
+                compile(stmt.to);
+            } else {
+                emit(OpCode.LOAD, 1);
+                emitShort(bound);
+            }
+            emit(OpCode.RANGE_LESS, -1);
+            emitShort(incl);
+            int exit = emitJump(OpCode.JUMP_IF_FALSE, -1);
+            compile(stmt.body);
+            emitGet(assignment.depth, assignment.slot, null, assignment.name);
+            emit(OpCode.INCREMENT, 0);
+            emitSet(assignment.depth, assignment.slot, null, assignment.name);
+            emit(OpCode.POP, -1);
+            emitLoop(start);
+            patchJump(exit);
+            return null;
+        }
+
+        // local counters are always integers (the body is its own scope and can not redefine them),
+        // so they are tested and incremented in the primitive lane without type checks; the unnamed
+        // form uses a hidden slot
+        int counter;
+        if (assignment != null) {
+            emitDefine(assignment.slot, assignment.name, OType.Integer, assignment.value, true);
+            counter = local(0, assignment.slot);
+        } else {
+            counter = hiddenSlot();
+            if (kind(stmt.from) == Kind.INT) {
+                move(counter, register(stmt.from, counter));
+            } else {
+                unbox(stmt.from, counter);
+            }
+        }
+
+        if (stmt.invariant) {
+            int bound = bound(stmt.to, incl);
+            emit(OpCode.JUMP_UNLESS_LESS_INT, 0);
+            emitShort(counter);
+            emitShort(bound);
+            emitShort(0);
+            int exit = count - 1;
+            int start = count;
+            compile(stmt.body);
+            emit(OpCode.LOOP_NEXT, 0);
+            emitShort(counter);
+            emitShort(bound);
+            emitShort(0);
+            setOffset(count - 1, start - count);
+            patchJump(exit);
+        } else {
+            int start = count;
+            int bound = bound(stmt.to, incl);
+            emit(OpCode.JUMP_UNLESS_LESS_INT, 0);
+            emitShort(counter);
+            emitShort(bound);
+            emitShort(0);
+            int exit = count - 1;
+            compile(stmt.body);
+            emit(OpCode.ADD_INT_IMMEDIATE, 0);
+            emitShort(counter);
+            emitShort(counter);
+            emitImmediate(1);
+            emitLoop(start);
+            patchJump(exit);
+        }
+        return null;
+    }
+
+    // evaluates the bound of a range loop plus incl into a hidden slot of the primitive lane
+    private int bound(Expr to, int incl) {
+        int bound = hiddenSlot();
+        int value = bound;
+        if (kind(to) == Kind.INT) {
+            value = register(to, bound);
+        } else {
+            unbox(to, bound);
+        }
+        if (incl != 0) {
+            emit(OpCode.ADD_INT_IMMEDIATE, 0);
+            emitShort(bound);
+            emitShort(value);
+            emitImmediate(incl);
+        } else {
+            move(bound, value);
+        }
+        return bound;
+    }
+
+    @Override
+    public Void visitLoopInStmt(Stmt.LoopIn stmt) {
+        // the list, the next index and the size at the start
+        int slot = hiddenSlot();
+        hiddenSlot();
+        hiddenSlot();
+        compile(stmt.list);
+        emit(OpCode.ITERATE, -1);
+        emitShort(slot);
+        emitShort(name(stmt.name));
+
+        int start = count;
+        emit(OpCode.NEXT, 0);
+        emitShort(slot);
+        emitShort(stmt.slot == -1 ? 0xffff : local(0, stmt.slot));
+        emitShort(name(stmt.name));
+        emitShort(0);
+        int exit = count - 1;
+        compile(stmt.body);
+        emitLoop(start);
+        patchJump(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            emit(OpCode.CONSTANT, 1);
+            emitShort(constant(null));
+        } else {
+            compile(stmt.value);
+        }
+        emit(OpCode.RETURN, -1);
+        return null;
+    }
+}
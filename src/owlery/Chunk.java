@@ -0,0 +1,34 @@
+package owlery;
+
+import java.util.List;
+
+/**
+ * Compiled body of an Owlery function (or of a whole script) as produced by the BytecodeCompiler.
+ */
+public class Chunk {
+    final String name;
+    final List<Token> params;
+    final int[] code;
+    final Object[] constants;
+    // line of every instruction that names a token, by the offset it starts at
+    final int[] lines;
+    // inline cache of every call site, by the index its CALL instruction carries
+    final InlineCache[] caches;
+    // the Value of every global the VM looked up, by the index of its name in the constants
+    final Value[] cells;
+    final int slots;
+    final int maxStack;
+
+    Chunk(String name, List<Token> params, int[] code, Object[] constants, int[] lines, InlineCache[] caches,
+          int slots, int maxStack) {
+        this.name = name;
+        this.params = params;
+        this.code = code;
+        this.constants = constants;
+        this.lines = lines;
+        this.caches = caches;
+        this.cells = new Value[constants.length];
+        this.slots = slots;
+        this.maxStack = maxStack;
+    }
+}
@@ -0,0 +1,733 @@
+package owlery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static owlery.Interpreter.checkNumberOperand;
+import static owlery.Interpreter.checkNumberOperands;
+import static owlery.Interpreter.isEqual;
+import static owlery.Interpreter.isTruthy;
+import static owlery.Interpreter.stringify;
+
+/**
+ * Alternative execution engine. Instead of walking the tree on every evaluation, the resolved
+ * tree is compiled once into nested closures. Operators, variable coordinates and operand handling
+ * are picked while compiling, so running a node is a single interface call.
+ */
+public class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Node>, Stmt.Visitor<ClosureCompiler.Action> {
+    interface Node {
+        Object run(Environment environment);
+    }
+
+    // completes with false, or with true once a return statement ran, see Interpreter.execute
+    interface Action {
+        boolean run(Environment environment);
+    }
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+    // the value of the last return statement
+    private Object returnValue = null;
+    // the closure and arguments of a returned call, pending until Closure.run runs them
+    private Closure tailCallee = null;
+    private Object[] tailArguments = null;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    void interpret(List<Stmt> statements) {
+        try {
+            Action[] program = compile(statements);
+            for (Action action : program) {
+                if (action.run(globals)) break;
+            }
+            returnValue = null;
+            Value mainFunction = globals.defined("main");
+
+            if (mainFunction != null && (mainFunction.value instanceof Closure || mainFunction.value instanceof OFunction)) {
+                ((OCallable) mainFunction.value).call(interpreter, List.of(0));
+            }
+        } catch (RuntimeError e) {
+            Owlery.runtimeError(e);
+        }
+    }
+
+    Action[] compile(List<Stmt> statements) {
+        Action[] actions = new Action[statements.size()];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = statements.get(i).accept(this);
+        }
+        return actions;
+    }
+
+    private Node compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Object returned() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
+    static class Closure implements OCallable {
+        private final Expr.Function function;
+        private final Action[] body;
+        private final ClosureCompiler compiler;
+        private final Memo memo;
+
+        Closure(Expr.Function function, Action[] body, ClosureCompiler compiler) {
+            this.function = function;
+            this.body = body;
+            this.compiler = compiler;
+            this.memo = Memo.of(function);
+        }
+
+        @Override
+        public int arity() {
+            return function.params.size();
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> args) {
+            if (memo == null) return run(args);
+
+            List<Object> key = Memo.key(args);
+            if (key == null) return run(args);
+            Object result = memo.get(key);
+            if (result == Memo.MISSING) {
+                result = run(args);
+                memo.put(key, result);
+            }
+            return result;
+        }
+
+        private Object run(List<Object> args) {
+            Environment environment = new Environment(compiler.globals, function.slots);
+            int argCount = 0;
+            for (Token param : function.params) {
+                environment.defineAt(argCount, param, args.get(argCount++), OType.Flexible);
+            }
+            return run(environment);
+        }
+
+        // evaluates the arguments in the caller's environment, for call sites that already checked the arity
+        Object call(Node[] arguments, Environment caller) {
+            if (memo != null) return call(compiler.interpreter, arguments(arguments, caller));
+            Environment environment = new Environment(compiler.globals, function.slots);
+            for (int i = 0; i < arguments.length; i++) {
+                environment.defineAt(i, function.params.get(i), arguments[i].run(caller), OType.Flexible);
+            }
+            return run(environment);
+        }
+
+        // a call the body returns comes back as tailCallee and runs in the same loop, see Interpreter.run
+        private Object run(Environment environment) {
+            Closure closure = this;
+            while (closure.execute(environment)) {
+                ClosureCompiler compiler = closure.compiler;
+                Closure callee = compiler.tailCallee;
+                if (callee == null) return compiler.returned();
+                Object[] args = compiler.tailArguments;
+                compiler.tailCallee = null;
+                compiler.tailArguments = null;
+
+                if (callee.function == closure.function) {
+                    environment.clear();
+                } else {
+                    environment = new Environment(callee.compiler.globals, callee.function.slots);
+                }
+                closure = callee;
+                for (int i = 0; i < args.length; i++) {
+                    environment.defineAt(i, closure.function.params.get(i), args[i], OType.Flexible);
+                }
+            }
+            return null;
+        }
+
+        // true if a return statement ended the body
+        private boolean execute(Environment environment) {
+            for (Action action : body) {
+                if (action.run(environment)) return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public Node visitDefineExpr(Expr.Define expr) {
+        Node value = compile(expr.value);
+        Token name = expr.name;
+        OType type = expr.type;
+        int slot = expr.slot;
+        if (slot == -1) {
+            return environment -> {
+                globals.define(name, value.run(environment), type);
+                return null;
+            };
+        }
+        return environment -> {
+            environment.defineAt(slot, name, value.run(environment), type);
+            return null;
+        };
+    }
+
+    @Override
+    public Node visitAssignExpr(Expr.Assign expr) {
+        Node value = compile(expr.value);
+        Token name = expr.name;
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int[] fallback = expr.fallback;
+        if (depth == -1) {
+            return environment -> {
+                Object result = value.run(environment);
+                globals.assign(name, result);
+                return result;
+            };
+        }
+        if (fallback != null) {
+            return environment -> {
+                Object result = value.run(environment);
+                environment.assignAt(depth, slot, fallback, name, result);
+                return result;
+            };
+        }
+        return environment -> {
+            Object result = value.run(environment);
+            environment.assignAt(depth, slot, name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Node visitBooleanBinaryExpr(Expr.BooleanBinary expr) {
+        Node left = compile(expr.left);
+        Node right = compile(expr.right);
+        return switch (expr.operator.type) {
+            case OR -> environment -> {
+                Object l = left.run(environment);
+                return isTruthy(l) ? l : right.run(environment);
+            };
+            case AND -> environment -> {
+                Object l = left.run(environment);
+                return !isTruthy(l) ? l : right.run(environment);
+            };
+            default -> environment -> {
+                left.run(environment);
+                return right.run(environment);
+            };
+        };
+    }
+
+    @Override
+    public Node visitBinaryExpr(Expr.Binary expr) {
+        Node left = compile(expr.left);
+        Node right = compile(expr.right);
+        Token op = expr.operator;
+
+        return switch (op.type) {
+            case EQUAL -> environment -> isEqual(left.run(environment), right.run(environment));
+            case BANG_EQUAL -> environment -> !isEqual(left.run(environment), right.run(environment));
+            case VERTICAL_BAR -> environment -> Rope.concat(left.run(environment), "", right.run(environment));
+            case DOUBLE_VERTICAL_BAR -> environment -> Rope.concat(left.run(environment), " ", right.run(environment));
+            case GREATER -> environment -> {
+                Object l = left.run(environment);
+                Object r = right.run(environment);
+                if (l instanceof Integer a && r instanceof Integer b) return a > b;
+                checkNumberOperands(op, l, r);
+                return ((Number) l).doubleValue() > ((Number) r).doubleValue();
+            };
+            case GREATER_EQUAL -> environment -> {
+                Object l = left.run(environment);
+                Object r = right.run(environment);
+                if (l instanceof Integer a && r instanceof Integer b) return a >= b;
+                checkNumberOperands(op, l, r);
+                return ((Number) l).doubleValue() >= ((Number) r).doubleValue();
+            };
+            case LESS -> environment -> {
+                Object l = left.run(environment);
+                Object r = right.run(environment);
+                if (l instanceof Integer a && r instanceof Integer b) return a < b;
+                checkNumberOperands(op, l, r);
+                return ((Number) l).doubleValue() < ((Number) r).doubleValue();
+            };
+            case LESS_EQUAL -> environment -> {
+                Object l = left.run(environment);
+                Object r = right.run(environment);
+                if (l instanceof Integer a && r instanceof Integer b) return a <= b;
+                checkNumberOperands(op, l, r);
+                return ((Number) l).doubleValue() <= ((Number) r).doubleValue();
+            };
+            case MINUS -> environment -> {
+                Object l = left.run(environment);
+                Object r = right.run(environment);
+                if (l instanceof Integer a && r instanceof Integer b) return a - b;
+                checkNumberOperands(op, l, r);
+                return ((Number) l).doubleValue() - ((Number) r).doubleValue();
+            };
+            case PLUS -> environment -> {
+                Object l = left.run(environment);
+                Object r = right.run(environment);
+                if (l instanceof Integer a && r instanceof Integer b) return a + b;
+                checkNumberOperands(op, l, r);
+                return ((Number) l).doubleValue() + ((Number) r).doubleValue();
+            };
+            case SLASH -> environment -> {
+                Object l = left.run(environment);
+                Object r = right.run(environment);
+                if (l instanceof Integer a && r instanceof Integer b) return a / b;
+                checkNumberOperands(op, l, r);
+                return ((Number) l).doubleValue() / ((Number) r).doubleValue();
+            };
+            case STAR -> environment -> {
+                Object l = left.run(environment);
+                Object r = right.run(environment);
+                if (l instanceof Integer a && r instanceof Integer b) return a * b;
+                checkNumberOperands(op, l, r);
+                return ((Number) l).doubleValue() * ((Number) r).doubleValue();
+            };
+            case PERCENT -> environment -> {
+                Object l = left.run(environment);
+                Object r = right.run(environment);
+                if (l instanceof Integer a && r instanceof Integer b) return a % b;
+                checkNumberOperands(op, l, r);
+                return ((Number) l).doubleValue() % ((Number) r).doubleValue();
+            };
+            default -> environment -> {
+                Object l = left.run(environment);
+                Object r = right.run(environment);
+                checkNumberOperands(op, l, r);
+                return null;
+            };
+        };
+    }
+
+    @Override
+    public Node visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Node visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return environment -> value;
+    }
+
+    @Override
+    public Node visitUnaryExpr(Expr.Unary expr) {
+        Node right = compile(expr.right);
+        Token op = expr.operator;
+        return switch (op.type) {
+            case MINUS -> environment -> {
+                Object r = right.run(environment);
+                checkNumberOperand(op, r);
+                return -(double) r;
+            };
+            case NOT -> environment -> !isTruthy(right.run(environment));
+            default -> environment -> {
+                right.run(environment);
+                return null;
+            };
+        };
+    }
+
+    @Override
+    public Node visitVariableExpr(Expr.Variable expr) {
+        Token name = expr.name;
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int[] fallback = expr.fallback;
+        if (depth == -1) {
+            return environment -> globals.get(name).value;
+        }
+        if (fallback != null) {
+            return environment -> environment.getAt(depth, slot, fallback, name);
+        }
+        return environment -> environment.getAt(depth, slot, name);
+    }
+
+    @Override
+    public Node visitCallExpr(Expr.Call expr) {
+        Node callee = compile(expr.callee);
+        Node[] arguments = new Node[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token bang = expr.bang;
+        InlineCache cache = new InlineCache(bang);
+
+        return environment -> call(callee.run(environment), arguments, cache, bang, environment);
+    }
+
+    private Object call(Object function, Node[] arguments, InlineCache cache, Token bang, Environment environment) {
+        if (cache.hit(function)) {
+            // checked before, a closure gets its arguments bound straight into its environment
+            if (function instanceof Closure closure) return closure.call(arguments, environment);
+            return ((OCallable) function).call(interpreter, arguments(arguments, environment));
+        }
+
+        List<Object> args = arguments(arguments, environment);
+
+        if (!(function instanceof OCallable callable)) {
+            throw new RuntimeError(bang, "only functions and classes can be called.");
+        }
+
+        if (args.size() != callable.arity()) {
+            throw new RuntimeError(bang, "expected: " + callable.arity() + "arguments\nbut got " + args.size());
+        }
+
+        cache.add(callable);
+        return callable.call(interpreter, args);
+    }
+
+    private static List<Object> arguments(Node[] arguments, Environment environment) {
+        List<Object> args = new ArrayList<>(arguments.length);
+        for (Node argument : arguments) {
+            args.add(argument.run(environment));
+        }
+        return args;
+    }
+
+    @Override
+    public Node visitFunctionExpr(Expr.Function expr) {
+        Action[] body = compile(expr.body);
+        return environment -> new Closure(expr, body, this);
+    }
+
+    @Override
+    public Node visitIndexExpr(Expr.Index expr) {
+        Node indexNode = compile(expr.index);
+        Token name = expr.name;
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int[] fallback = expr.fallback;
+
+        return environment -> {
+            Object value = depth == -1 ? globals.get(name).value
+                    : fallback != null ? environment.getAt(depth, slot, fallback, name) : environment.getAt(depth, slot, name);
+            if (indexNode.run(environment) instanceof Integer index) {
+                if (value instanceof CharSequence str) {
+                    if (index >= 0 && index < str.length()) {
+                        return "" + str.charAt(index);
+                    } else {
+                        throw new RuntimeError(name, "index out of bounds for the given string");
+                    }
+                }
+                if (value instanceof OList list) {
+                    return list.get(name, index);
+                }
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public Node visitListLiteralExpr(Expr.ListLiteral expr) {
+        Node[] elements = new Node[expr.elements.size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = compile(expr.elements.get(i));
+        }
+        return environment -> {
+            OList list = new OList();
+            for (Node element : elements) {
+                Object value = element.run(environment);
+                list.add(value instanceof Rope rope ? rope.toString() : value);
+            }
+            return list;
+        };
+    }
+
+    @Override
+    public Node visitTypeBinaryExpr(Expr.TypeBinary expr) {
+        Node expression = compile(expr.expression);
+        Token op = expr.op;
+
+        if (op.type == TokenType.IS) {
+            OType type = expr.type;
+            return environment -> new Value(OType.Flexible, expression.run(environment)).is(type);
+        }
+
+        return switch (expr.type) {
+            case String -> environment -> stringify(expression.run(environment));
+            case Integer -> environment -> {
+                Object value = expression.run(environment);
+                if (value instanceof CharSequence s) {
+                    try {
+                        return Integer.parseInt(s.toString());
+                    } catch (NumberFormatException e) {
+                        throw new RuntimeError(op, "given string can not be converted to an integer");
+                    }
+                }
+                if (value instanceof Double d) return d.intValue();
+                if (value instanceof Integer i) return i;
+                if (value instanceof Boolean b) return b ? 1 : 0;
+                return null;
+            };
+            case Double -> environment -> {
+                Object value = expression.run(environment);
+                if (value instanceof CharSequence s) {
+                    try {
+                        return Double.parseDouble(s.toString());
+                    } catch (NumberFormatException e) {
+                        throw new RuntimeError(op, "given string can not be converted to an integer");
+                    }
+                }
+                if (value instanceof Double d) return d;
+                if (value instanceof Integer i) return (double) i;
+                if (value instanceof Boolean b) return b ? 1.0 : 0.0;
+                return null;
+            };
+            case Boolean -> environment -> isTruthy(expression.run(environment));
+            default -> environment -> null;
+        };
+    }
+
+    @Override
+    public Action visitExpressionStmt(Stmt.Expression stmt) {
+        Node expression = compile(stmt.expression);
+        return environment -> {
+            expression.run(environment);
+            return false;
+        };
+    }
+
+    @Override
+    public Action visitPrintStmt(Stmt.Print stmt) {
+        Node expression = compile(stmt.expression);
+        return environment -> {
+            interpreter.out().println(stringify(expression.run(environment)));
+            return false;
+        };
+    }
+
+    @Override
+    public Action visitEmptyStmt(Stmt.Empty stmt) {
+        return environment -> false;
+    }
+
+    @Override
+    public Action visitBlockStmt(Stmt.Block stmt) {
+        Action[] statements = compile(stmt.statements);
+        int slots = stmt.slots;
+        if (slots == 0) {
+            return environment -> {
+                for (Action statement : statements) {
+                    if (statement.run(environment)) return true;
+                }
+                return false;
+            };
+        }
+        return environment -> {
+            Environment scope = new Environment(environment, slots);
+            for (Action statement : statements) {
+                if (statement.run(scope)) return true;
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public Action visitIfStmt(Stmt.If stmt) {
+        Node cond = compile(stmt.cond);
+        Action thenBlock = stmt.thenBlock.accept(this);
+        if (stmt.elseBlock == null) {
+            return environment -> isTruthy(cond.run(environment)) && thenBlock.run(environment);
+        }
+        Action elseBlock = stmt.elseBlock.accept(this);
+        return environment -> isTruthy(cond.run(environment)) ? thenBlock.run(environment) : elseBlock.run(environment);
+    }
+
+    @Override
+    public Action visitLoopConditionStmt(Stmt.LoopCondition stmt) {
+        Node condition = compile(stmt.condition);
+        Action body = loopBody(stmt.body);
+        int slots = loopSlots(stmt.body);
+        return environment -> {
+            Environment scope = loopScope(environment, slots);
+            while (isTruthy(condition.run(environment))) {
+                if (body.run(scope)) return true;
+            }
+            return false;
+        };
+    }
+
+    @Override
+    public Action visitLoopRangeStmt(Stmt.LoopRange stmt) {
+        Node to = compile(stmt.to);
+        Action body = loopBody(stmt.body);
+        int slots = loopSlots(stmt.body);
+        int incl = stmt.incl ? 1 : 0;
+        boolean invariant = stmt.invariant;
+
+        if (stmt.from instanceof Expr.Assign assignment) {
+            Node from = compile(assignment.value);
+            Token name = assignment.name;
+            int slot = assignment.slot;
+            if (slot == -1) {
+                // the body runs in a scope of its own and can not redefine the global, so its Value stays the same
+                if (invariant) {
+                    return environment -> {
+                        Environment scope = loopScope(environment, slots);
+                        globals.define(name, from.run(environment), OType.Integer);
+                        Value counter = globals.get(name);
+                        int bound = (int) to.run(environment) + incl;
+                        while ((int) counter.value < bound) {
+                            if (body.run(scope)) return true;
+                            counter.value = (int) counter.value + 1;
+                        }
+                        return false;
+                    };
+                }
+                return environment -> {
+                    Environment scope = loopScope(environment, slots);
+                    globals.define(name, from.run(environment), OType.Integer);
+                    Value counter = globals.get(name);
+                    while ((int) counter.value < (int) to.run(environment) + incl) {
+                        if (body.run(scope)) return true;
+                        counter.value = (int) counter.value + 1;
+                    }
+                    return false;
+                };
+            }
+            // the body is a block of its own, so the counter stays an #integer in this scope
+            if (invariant) {
+                return environment -> {
+                    Environment scope = loopScope(environment, slots);
+                    environment.defineAt(slot, name, from.run(environment), OType.Integer);
+                    int bound = (int) to.run(environment) + incl;
+                    while (environment.intAt(0, slot) < bound) {
+                        if (body.run(scope)) return true;
+                        environment.incrementAt(0, slot);
+                    }
+                    return false;
+                };
+            }
+            return environment -> {
+                Environment scope = loopScope(environment, slots);
+                environment.defineAt(slot, name, from.run(environment), OType.Integer);
+                while (environment.intAt(0, slot) < (int) to.run(environment) + incl) {
+                    if (body.run(scope)) return true;
+                    environment.incrementAt(0, slot);
+                }
+                return false;
+            };
+        }
+
+        Node from = compile(stmt.from);
+        if (invariant) {
+            return environment -> {
+                Environment scope = loopScope(environment, slots);
+                for (int i = (int) from.run(environment), bound = (int) to.run(environment); i < bound; i++) {
+                    if (body.run(scope)) return true;
+                }
+                return false;
+            };
+        }
+        return environment -> {
+            Environment scope = loopScope(environment, slots);
+            for (int i = (int) from.run(environment); i < (int) to.run(environment); i++) {
+                if (body.run(scope)) return true;
+            }
+            return false;
+        };
+    }
+
+    // see Interpreter.loopIn
+    @Override
+    public Action visitLoopInStmt(Stmt.LoopIn stmt) {
+        Node list = compile(stmt.list);
+        Action body = loopBody(stmt.body);
+        int slots = loopSlots(stmt.body);
+        Token name = stmt.name;
+        int slot = stmt.slot;
+
+        return environment -> {
+            if (!(list.run(environment) instanceof OList elements)) throw new RuntimeError(name, "can only loop over a list");
+            Environment scope = loopScope(environment, slots);
+            for (int i = 0, size = elements.size(); i < size; i++) {
+                OType type = elements.type();
+                if (slot == -1) {
+                    globals.define(name, elements.get(i), type);
+                } else if (type == OType.Integer) {
+                    environment.defineIntAt(slot, elements.intAt(i));
+                } else if (type == OType.Double) {
+                    environment.defineDoubleAt(slot, elements.doubleAt(i));
+                } else {
+                    environment.defineAt(slot, name, elements.get(i), OType.Flexible);
+                }
+                if (body.run(scope)) return true;
+            }
+            return false;
+        };
+    }
+
+    // a loop body that declares variables runs in one scope for the whole loop, cleared on every
+    // iteration, see Interpreter.loopScope
+    private Action loopBody(Stmt body) {
+        if (!(body instanceof Stmt.Block block) || block.slots == 0) return body.accept(this);
+        Action[] statements = compile(block.statements);
+        return scope -> {
+            scope.clear();
+            for (Action statement : statements) {
+                if (statement.run(scope)) return true;
+            }
+            return false;
+        };
+    }
+
+    private static int loopSlots(Stmt body) {
+        return body instanceof Stmt.Block block ? block.slots : 0;
+    }
+
+    private static Environment loopScope(Environment environment, int slots) {
+        return slots == 0 ? environment : new Environment(environment, slots);
+    }
+
+    @Override
+    public Action visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return environment -> {
+                returnValue = null;
+                return true;
+            };
+        }
+        if (stmt.tail) return tailCall((Expr.Call) stmt.value);
+
+        Node value = compile(stmt.value);
+        return environment -> {
+            returnValue = value.run(environment);
+            return true;
+        };
+    }
+
+    // a returned call to a closure is left for Closure.run instead of running on top of the caller
+    private Action tailCall(Expr.Call expr) {
+        Node callee = compile(expr.callee);
+        Node[] arguments = new Node[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token bang = expr.bang;
+        InlineCache cache = new InlineCache(bang);
+
+        return environment -> {
+            Object function = callee.run(environment);
+            if (!(function instanceof Closure closure) || closure.arity() != arguments.length) {
+                returnValue = call(function, arguments, cache, bang, environment);
+                return true;
+            }
+
+            if (!cache.hit(closure)) cache.add(closure);
+            Object[] args = new Object[arguments.length];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = arguments[i].run(environment);
+            }
+            tailCallee = closure;
+            tailArguments = args;
+            return true;
+        };
+    }
+}
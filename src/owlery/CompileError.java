@@ -0,0 +1,19 @@
+package owlery;
+
+import java.util.List;
+
+// a program an OwleryEngine could not compile, with what the lexer, parser and resolver reported
+public class CompileError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final List<String> errors;
+
+    CompileError(String name, List<String> errors) {
+        super(name + ": " + String.join("\n", errors));
+        this.errors = List.copyOf(errors);
+    }
+
+    public List<String> errors() {
+        return errors;
+    }
+}
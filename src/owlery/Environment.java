@@ -1,47 +1,72 @@
 package owlery;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
 
 public class Environment {
-    private final Map<String, Value> values = new HashMap<>();
+    private static final OType[] NO_TYPES = {};
+    private static final Object[] NO_OBJECTS = {};
+    private static final long[] NO_PRIMITIVES = {};
+
+    // globals are looked up by name, every other scope is a slot array laid out by the Resolver
+    private final Map<String, Value> values;
+    // a null type marks an undefined slot; #integer and #double values are kept unboxed in
+    // primitives (doubles as raw bits), everything else in objects
+    private final OType[] types;
+    private final Object[] objects;
+    private final long[] primitives;
     final Environment enclosing;
+    // makes the value of a library function for the globals' engine, see Library
+    private Function<Expr.Function, Object> library;
 
     Environment() {
         enclosing = null;
+        values = new HashMap<>();
+        types = null;
+        objects = null;
+        primitives = null;
     }
 
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        values = null;
+        types = size == 0 ? NO_TYPES : new OType[size];
+        objects = size == 0 ? NO_OBJECTS : new Object[size];
+        primitives = size == 0 ? NO_PRIMITIVES : new long[size];
+    }
+
+    // globals the program looks up but never defined come from the Library, made by library
+    void library(Function<Expr.Function, Object> library) {
+        this.library = library;
     }
 
     boolean contains(String name) {
         return values.containsKey(name);
     }
 
-
     void assign(Token name, Object value) {
-        Environment defined = isDefined(name.lexeme);
-        if (defined == null || defined == this) {
-            Value definedValue = get(name);
-            if (definedValue == null) {
-                throw new RuntimeError(name, "target of assignment is not defined");
-            }
+        // a name that was never defined is reported by the lookup, as it always was
+        Value definedValue = get(name);
 
-            if (definedValue.compatibleTypes(value)) {
-                values.put(name.lexeme, new Value(definedValue.type, value));
-            } else {
-                throw new RuntimeError(name, "incompatible types");
-            }
+        if (definedValue.compatibleTypes(value)) {
+            definedValue.value = value;
         } else {
-            defined.assign(name, value);
+            throw new RuntimeError(name, "incompatible types");
         }
     }
 
     void define(Token name, Object value, OType type) {
-        Value checker = new Value(type, null);
-        if (checker.compatibleTypes(value)) {
-            values.put(name.lexeme, new Value(type, value));
+        if (Value.compatible(type, value)) {
+            // a redefinition keeps the Value, the VM holds on to the ones it looked up
+            Value defined = values.get(name.lexeme());
+            if (defined == null) {
+                values.put(name.lexeme(), new Value(type, value));
+            } else {
+                defined.type = type;
+                defined.value = value;
+            }
             return;
         }
 
@@ -53,37 +78,202 @@ public class Environment {
     }
 
     Value get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        Value value = get(name.lexeme());
+        if (value != null) {
+            return value;
         }
 
-        if (enclosing != null) {
-            return enclosing.get(name);
+        throw new RuntimeError(name, "variable <" + name.lexeme() +"> is not defined in this scope.");
+    }
+
+    Value get(String name) {
+        Value value = values.get(name);
+        if (value == null && library != null) {
+            Expr.Define definition = Library.definition(name);
+            if (definition != null) {
+                value = new Value(definition.type, library.apply((Expr.Function) definition.value));
+                values.put(name, value);
+            }
         }
+        return value;
+    }
 
-        throw new RuntimeError(name, "variable <" + name.lexeme +"> is not defined in this scope.");
+    // only what the program defined so far, without loading the Library for a name it does not have
+    Value defined(String name) {
+        return values.get(name);
     }
 
-    Value get(String name) {
-        if (values.containsKey(name)) {
-            return values.get(name);
+    void assignAt(int depth, int slot, Token name, Object value) {
+        Environment environment = ancestor(depth);
+        OType type = environment.types[slot];
+        if (type == null) {
+            throw new RuntimeError(name, "variable <" + name.lexeme() +"> is not defined in this scope.");
+        }
+
+        if (!Value.compatible(type, value)) {
+            throw new RuntimeError(name, "incompatible types");
+        }
+        environment.store(slot, type, value);
+    }
+
+    void defineAt(int slot, Token name, Object value, OType type) {
+        if (!Value.compatible(type, value)) {
+            throw new RuntimeError(name, "incompatible types");
+        }
+        types[slot] = type;
+        store(slot, type, value);
+    }
+
+    // defines an #integer or #double in this scope without boxing it, for the variable of a loop over a list
+    void defineIntAt(int slot, int value) {
+        types[slot] = OType.Integer;
+        primitives[slot] = value;
+    }
+
+    void defineDoubleAt(int slot, double value) {
+        types[slot] = OType.Double;
+        primitives[slot] = Double.doubleToRawLongBits(value);
+    }
+
+    Object getAt(int depth, int slot, Token name) {
+        Environment environment = ancestor(depth);
+        switch (environment.type(slot, name)) {
+            case Integer -> {
+                return (int) environment.primitives[slot];
+            }
+            case Double -> {
+                return Double.longBitsToDouble(environment.primitives[slot]);
+            }
+            default -> {
+                return environment.objects[slot];
+            }
+        }
+    }
+
+    // a variable whose definition at (depth, slot) might not have run, see Resolver.fallback: the
+    // first defined slot of it and the ones at the fallback coordinates is used, else the global
+    Object getAt(int depth, int slot, int[] fallback, Token name) {
+        int at = defined(depth, slot, fallback);
+        if (at == -1) return root().get(name).value;
+        return at == fallback.length ? getAt(depth, slot, name) : getAt(fallback[at], fallback[at + 1], name);
+    }
+
+    void assignAt(int depth, int slot, int[] fallback, Token name, Object value) {
+        int at = defined(depth, slot, fallback);
+        if (at == -1) {
+            root().assign(name, value);
+        } else if (at == fallback.length) {
+            assignAt(depth, slot, name, value);
+        } else {
+            assignAt(fallback[at], fallback[at + 1], name, value);
         }
+    }
 
-        if (enclosing != null) {
-            return enclosing.get(name);
+    // fallback.length if the slot itself is defined, the index of the first defined fallback, or -1
+    private int defined(int depth, int slot, int[] fallback) {
+        if (ancestor(depth).types[slot] != null) return fallback.length;
+        for (int i = 0; i < fallback.length; i += 2) {
+            if (ancestor(fallback[i]).types[fallback[i + 1]] != null) return i;
         }
-        return null;
+        return -1;
+    }
+
+    // the globals every scope ends in
+    private Environment root() {
+        Environment environment = this;
+        while (environment.enclosing != null) {
+            environment = environment.enclosing;
+        }
+        return environment;
+    }
+
+    // copies of the globals and of a scope with the scopes around it, for a worker of a parallel loop
+    // that must not see what the others write; a rope shares its builder with the ropes appended to
+    // it, so a copy gets its text instead. Lists are shared, the Resolver lets the loop append only
+    // to the lists it makes
+    Environment copy() {
+        Environment copy = new Environment();
+        values.forEach((name, value) -> copy.values.put(name, new Value(value.type, flat(value.value))));
+        copy.library = library;
+        return copy;
+    }
+
+    Environment copy(Environment globals) {
+        Environment copy = new Environment(enclosing.values != null ? globals : enclosing.copy(globals), types.length);
+        System.arraycopy(types, 0, copy.types, 0, types.length);
+        System.arraycopy(primitives, 0, copy.primitives, 0, primitives.length);
+        for (int i = 0; i < objects.length; i++) {
+            copy.objects[i] = flat(objects[i]);
+        }
+        return copy;
+    }
+
+    private static Object flat(Object value) {
+        return value instanceof Rope rope ? rope.toString() : value;
+    }
+
+    // how many scopes out of this one ancestor is
+    int depthOf(Environment ancestor) {
+        int depth = 0;
+        for (Environment environment = this; environment != ancestor; environment = environment.enclosing) {
+            depth++;
+        }
+        return depth;
+    }
+
+    // undefines every slot, for a function that runs again in the same environment
+    void clear() {
+        Arrays.fill(types, null);
+        Arrays.fill(objects, null);
+    }
+
+    // unboxed access for callers that checked typeAt first; loop counters are always #integer
+    OType typeAt(int depth, int slot) {
+        return ancestor(depth).types[slot];
+    }
+
+    int intAt(int depth, int slot) {
+        return (int) ancestor(depth).primitives[slot];
+    }
+
+    double doubleAt(int depth, int slot) {
+        return Double.longBitsToDouble(ancestor(depth).primitives[slot]);
+    }
+
+    void setIntAt(int depth, int slot, int value) {
+        ancestor(depth).primitives[slot] = value;
     }
 
-    Environment isDefined(String name) {
-        if (values.containsKey(name)) {
-            return this;
+    void setDoubleAt(int depth, int slot, double value) {
+        ancestor(depth).primitives[slot] = Double.doubleToRawLongBits(value);
+    }
+
+    void incrementAt(int depth, int slot) {
+        ancestor(depth).primitives[slot]++;
+    }
+
+    private void store(int slot, OType type, Object value) {
+        switch (type) {
+            case Integer -> primitives[slot] = (Integer) value;
+            case Double -> primitives[slot] = Double.doubleToRawLongBits((Double) value);
+            default -> objects[slot] = value;
         }
+    }
 
-        if (enclosing != null) {
-            return enclosing.isDefined(name);
+    private OType type(int slot, Token name) {
+        OType type = types[slot];
+        if (type != null) {
+            return type;
         }
 
-        return null;
+        throw new RuntimeError(name, "variable <" + name.lexeme() +"> is not defined in this scope.");
+    }
+
+    private Environment ancestor(int depth) {
+        Environment environment = this;
+        for (int i = 0; i < depth; i++) {
+            environment = environment.enclosing;
+        }
+        return environment;
     }
 }
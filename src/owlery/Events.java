@@ -0,0 +1,109 @@
+package owlery;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events of the tree engine, so a recording shows Owlery functions and lines
+ * next to the GC and thread events of the same time. Until a recording enables them, JFR leaves
+ * their methods empty: isEnabled() and shouldCommit() return false and the JIT drops the unused
+ * event objects, so the interpreter runs as without them. Any recording enables them; calls and
+ * loops are only recorded from 10 ms on, like the JDK's own frequent events, a settings file can
+ * lower the threshold of owlery.FunctionCall, owlery.BuiltinCall and owlery.Loop. The interpreter
+ * only follows which function runs while owlery.FunctionCall or --profile is on, the other events
+ * name it from that.
+ */
+final class Events {
+    private Events() {
+    }
+
+    @Name("owlery.FunctionCall")
+    @Label("Owlery Function Call")
+    @Category("Owlery")
+    @Description("A call of an Owlery function, until it returns; calls it returns run in it")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class FunctionCall extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        @Description("Line of the function definition")
+        int line;
+    }
+
+    @Name("owlery.BuiltinCall")
+    @Label("Owlery Builtin Call")
+    @Category("Owlery")
+    @Description("A call of a builtin function like read or length")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class BuiltinCall extends Event {
+        @Label("Builtin")
+        String builtin;
+
+        @Label("Function")
+        @Description("The Owlery function calling it")
+        String function;
+
+        @Label("Line")
+        @Description("Line of the call")
+        int line;
+    }
+
+    @Name("owlery.Loop")
+    @Label("Owlery Loop")
+    @Category("Owlery")
+    @Description("A range, condition or list loop, from its first condition to its end")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class Loop extends Event {
+        @Label("Kind")
+        String kind;
+
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        int line;
+
+        @Label("Iterations")
+        long iterations;
+    }
+
+    @Name("owlery.RuntimeError")
+    @Label("Owlery Runtime Error")
+    @Category("Owlery")
+    @Description("A runtime error ending an Owlery program")
+    static final class RuntimeError extends Event {
+        @Label("Message")
+        String message;
+
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        int line;
+    }
+
+    static void runtimeError(owlery.RuntimeError error, String function) {
+        RuntimeError event = new RuntimeError();
+        if (event.shouldCommit()) {
+            event.message = error.getMessage();
+            event.function = function;
+            event.line = error.token != null ? error.token.line : 0;
+            event.commit();
+        }
+    }
+
+    // the top level of a program is no function and has no name
+    static String name(Expr.Function function) {
+        if (function == null) return "<script>";
+        return function.name != null ? function.name.lexeme() : "anonymous";
+    }
+}
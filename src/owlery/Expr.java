@@ -16,6 +16,7 @@ abstract class Expr {
     R visitFunctionExpr(Function expr);
     R visitIndexExpr(Index expr);
     R visitTypeBinaryExpr(TypeBinary expr);
+    R visitListLiteralExpr(ListLiteral expr);
   }
   static class Define extends Expr {
     Define(Token name, Expr value, OType type) {
@@ -32,6 +33,8 @@ abstract class Expr {
     final Token name;
     final Expr value;
     final OType type;
+
+    int slot = -1;
   }
   static class Assign extends Expr {
     Assign(Token name, Expr value) {
@@ -46,6 +49,11 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    int depth = -1;
+    int slot = -1;
+    int[] fallback = null;
+    boolean reduction = false;
   }
   static class BooleanBinary extends Expr {
     BooleanBinary(Expr left, Token operator, Expr right) {
@@ -78,6 +86,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    int feedback = 0;
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -128,6 +138,10 @@ abstract class Expr {
     }
 
     final Token name;
+
+    int depth = -1;
+    int slot = -1;
+    int[] fallback = null;
   }
   static class Call extends Expr {
     Call(Expr callee, Token bang, List<Expr> arguments) {
@@ -144,6 +158,8 @@ abstract class Expr {
     final Expr callee;
     final Token bang;
     final List<Expr> arguments;
+
+    InlineCache cache = null;
   }
   static class Function extends Expr {
     Function(List<Token> params, List<Stmt> body) {
@@ -158,6 +174,12 @@ abstract class Expr {
 
     final List<Token> params;
     final List<Stmt> body;
+
+    int slots = 0;
+    boolean[] fixed = null;
+    OType[] types = null;
+    boolean pure = false;
+    Token name = null;
   }
   static class Index extends Expr {
     Index(Token name, Expr index) {
@@ -172,6 +194,10 @@ abstract class Expr {
 
     final Token name;
     final Expr index;
+
+    int depth = -1;
+    int slot = -1;
+    int[] fallback = null;
   }
   static class TypeBinary extends Expr {
     TypeBinary(Expr expression, Token op, OType type) {
@@ -189,6 +215,20 @@ abstract class Expr {
     final Token op;
     final OType type;
   }
+  static class ListLiteral extends Expr {
+    ListLiteral(Token bracket, List<Expr> elements) {
+      this.bracket = bracket;
+      this.elements = elements;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitListLiteralExpr(this);
+    }
+
+    final Token bracket;
+    final List<Expr> elements;
+  }
 
   abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,88 @@
+package owlery;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inline cache of a call site. It remembers up to POLYMORPHIC callables that already passed the
+ * callable and arity checks at the site, so calling one of them again only costs an identity
+ * comparison. A site that sees more callables than that is megamorphic and takes the full checks
+ * for every callable it does not remember. Every engine keeps one cache per call site; the hit and
+ * miss counters are reported by --stats.
+ *
+ * Threads running the same program share its call sites, see OwleryEngine. Each one has functions
+ * of its own for the same declarations, so a function is remembered by its declaration, which
+ * fixes its arity. The cache may miss a callable another thread just added, never hit a wrong one.
+ */
+final class InlineCache {
+    static final int POLYMORPHIC = 4;
+
+    // the caches created while tracking is on, so --stats can report on them
+    private static final List<InlineCache> sites = new ArrayList<>();
+    static boolean tracking = false;
+
+    private final Token bang;
+    private final Object[] targets = new Object[POLYMORPHIC];
+    private int size = 0;
+    private boolean megamorphic = false;
+    long hits = 0;
+    long misses = 0;
+
+    InlineCache(Token bang) {
+        this.bang = bang;
+        if (tracking) sites.add(this);
+    }
+
+    // whether the callee already passed the checks at this site
+    boolean hit(Object callee) {
+        Object target = target(callee);
+        Object[] targets = this.targets;
+        for (int i = 0; i < size; i++) {
+            if (targets[i] == target) {
+                hits++;
+                return true;
+            }
+        }
+        misses++;
+        return false;
+    }
+
+    // remembers a callee that passed the checks
+    void add(OCallable callee) {
+        // read once, two threads adding at the same time must not write past the end
+        int size = this.size;
+        if (size < targets.length) {
+            targets[size] = target(callee);
+            this.size = size + 1;
+        } else {
+            megamorphic = true;
+        }
+    }
+
+    private static Object target(Object callee) {
+        return callee instanceof OFunction function ? function.function : callee;
+    }
+
+    static void report(PrintStream out) {
+        int unused = 0, monomorphic = 0, polymorphic = 0, megamorphic = 0;
+        long hits = 0, misses = 0;
+        for (InlineCache site : sites) {
+            hits += site.hits;
+            misses += site.misses;
+            if (site.megamorphic) megamorphic++;
+            else if (site.size > 1) polymorphic++;
+            else if (site.size == 1) monomorphic++;
+            else unused++;
+        }
+        out.println("inline caches: " + sites.size() + " call sites (" + monomorphic + " monomorphic, "
+                + polymorphic + " polymorphic, " + megamorphic + " megamorphic, " + unused + " not called), "
+                + hits + " hits, " + misses + " misses");
+        for (InlineCache site : sites) {
+            if (site.size > 1) {
+                out.println("  [line " + site.bang.line + "] " + (site.megamorphic ? "megamorphic" : site.size + " callables")
+                        + ", " + site.hits + " hits, " + site.misses + " misses");
+            }
+        }
+    }
+}
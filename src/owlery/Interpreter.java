@@ -1,34 +1,72 @@
 package owlery;
 
-import java.io.File;
-import java.io.IOException;
-import java.net.URL;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-
-    final Environment globals = new Environment();
-    private Environment environment = globals;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Boolean> {
+
+    final Environment globals;
+    private Environment environment;
+    // the value of the last return statement, see execute
+    private Object returnValue = null;
+    // the function and arguments of a returned call, pending until invoke() runs them
+    private OFunction tailCallee = null;
+    private Object[] tailArguments = null;
+    // the statement and functions running, published for --profile; null when not profiling
+    Profiler profiler = null;
+    // the function running while a profile or recording follows the calls, null at the top level
+    private Expr.Function running = null;
+    // loop bodies run by the innermost loop an Events.Loop records
+    private long iterations = 0;
+    // what the reductions of a worker of a parallel loop added, by variable, and the environment
+    // around the loop; null in any other Interpreter
+    private Map<String, Partial> partials = null;
+    private Environment around = null;
+
+    private static final Map<String, OCallable> BUILTINS = builtins();
+
+    // where print and read go, see out() and input()
+    private final PrintStream out;
+    private final Scanner input;
+    // one Scanner for every read of standard in, a new one would lose the lines the last one
+    // buffered ahead; a new one only when System.in was replaced, like a benchmark feeding canned input does
+    private static Scanner stdin;
+    private static InputStream stdinSource;
 
     Interpreter() {
-        try {
-            URL url = Owlery.class.getResource("lib.owlry");
-            File lib = new File(url.getPath());
-            byte[] libBytes = Files.readAllBytes(lib.toPath());
-            Lexer lexer = new Lexer(new String(libBytes, Charset.defaultCharset()));
-            List<Token> tokens = lexer.scanTokens();
-            Parser parser = new Parser(tokens);
-            List<Stmt> statements = parser.parse();
-            interpret(statements);
-        } catch (IOException e) {
+        this((PrintStream) null, null);
+    }
 
-        }
+    // an Interpreter printing to out and reading lines from input, standard out and in if null
+    Interpreter(PrintStream out, Scanner input) {
+        this.out = out;
+        this.input = input;
+        globals = environment = new Environment();
+        globals.library(OFunction::new);
+        BUILTINS.forEach((name, builtin) -> globals.define(name, builtin, OType.Callable));
+    }
+
+    // a worker of a parallel loop, see parallel()
+    private Interpreter(Interpreter parent, Environment globals) {
+        this.out = parent.out;
+        this.input = parent.input;
+        this.globals = globals;
+        this.running = parent.running;
+    }
 
-        globals.define("error", new OCallable() {
+    // the builtins keep no state, so every Interpreter shares them and an inline cache that saw
+    // one hits for the Interpreters of other threads running the same program too
+    private static Map<String, OCallable> builtins() {
+        Map<String, OCallable> builtins = new HashMap<>();
+        builtins.put("error", new OCallable() {
             @Override
             public int arity() {
                 return 1;
@@ -36,13 +74,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
             @Override
             public Object call(Interpreter interpreter, List<Object> args) {
-                if (args.get(0) instanceof String str)
+                if (args.get(0) instanceof CharSequence str)
                     throw new RuntimeError("[lib] " + str);
                 return null;
             }
-        }, OType.Callable);
+        });
 
-        globals.define("time", new OCallable() {
+        builtins.put("time", new OCallable() {
             @Override
             public int arity() {
                 return 0;
@@ -52,9 +90,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             public Object call(Interpreter interpreter, List<Object> args) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
-        }, OType.Callable);
+        });
 
-        globals.define("print", new OCallable() {
+        builtins.put("print", new OCallable() {
             @Override
             public int arity() {
                 return 1;
@@ -62,12 +100,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
             @Override
             public Object call(Interpreter interpreter, List<Object> args) {
-                System.out.println(stringify(args.get(0)));
+                interpreter.out().println(stringify(args.get(0)));
                 return args.get(0);
             }
-        }, OType.Callable);
+        });
 
-        globals.define("printnl", new OCallable() {
+        builtins.put("printnl", new OCallable() {
             @Override
             public int arity() {
                 return 1;
@@ -75,12 +113,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
             @Override
             public Object call(Interpreter interpreter, List<Object> args) {
-                System.out.print(stringify(args.get(0)));
+                interpreter.out().print(stringify(args.get(0)));
                 return args.get(0);
             }
-        }, OType.Callable);
+        });
 
-        globals.define("read", new OCallable() {
+        builtins.put("read", new OCallable() {
             @Override
             public int arity() {
                 return 0;
@@ -88,12 +126,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
             @Override
             public Object call(Interpreter interpreter, List<Object> args) {
-                Scanner scan = new Scanner(System.in);
-                return scan.nextLine();
+                return interpreter.input().nextLine();
             }
-        }, OType.Callable);
+        });
 
-        globals.define("length", new OCallable() {
+        builtins.put("length", new OCallable() {
             @Override
             public int arity() {
                 return 1;
@@ -102,44 +139,91 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             @Override
             public Object call(Interpreter interpreter, List<Object> args) {
                 Object arg = args.get(0);
-                if (arg instanceof String str) {
+                if (arg instanceof CharSequence str) {
                     return str.length();
                 }
+                if (arg instanceof OList list) {
+                    return list.size();
+                }
                 return 0;
             }
-        }, OType.Callable);
-    }
+        });
 
-    void interpret(List<Stmt> statements) {
-        try {
-            for (Stmt statement : statements) {
-                execute(statement);
+        builtins.put("append", new OCallable() {
+            @Override
+            public int arity() {
+                return 2;
             }
-            Value mainFunction = environment.get("main");
 
-            if (mainFunction != null && mainFunction.value instanceof OFunction fun ) {
-                fun.call(this, List.of(0));
+            // appends to the list itself, every variable holding it sees the element
+            @Override
+            public Object call(Interpreter interpreter, List<Object> args) {
+                if (args.get(0) instanceof OList list) {
+                    Object element = args.get(1);
+                    // a rope shares its builder with the ropes appended to it, the list keeps its text
+                    list.add(element instanceof Rope rope ? rope.toString() : element);
+                    return list;
+                }
+                return null;
             }
+        });
+        return builtins;
+    }
+
+    PrintStream out() {
+        return out != null ? out : System.out;
+    }
+
+    private Scanner input() {
+        if (input != null) return input;
+        if (stdin == null || stdinSource != System.in) {
+            stdinSource = System.in;
+            stdin = new Scanner(stdinSource);
+        }
+        return stdin;
+    }
+
+    void interpret(List<Stmt> statements) {
+        try {
+            execute(statements);
         } catch (RuntimeError e) {
             Owlery.runtimeError(e);
         }
     }
 
-    private String stringify(Object object) {
+    // runs a program and its main function, a runtime error ends it and is thrown
+    void execute(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (execute(statement)) break;
+        }
+        returnValue = null;
+        Value mainFunction = environment.defined("main");
+
+        if (mainFunction != null && mainFunction.value instanceof OFunction fun ) {
+            fun.call(this, List.of(0));
+        }
+    }
+
+    static String stringify(Object object) {
         if (object == null) return "nothing";
         return object.toString();
     }
 
     @Override
     public Object visitDefineExpr(Expr.Define expr) {
-        environment.define(expr.name, evaluate(expr.value), expr.type);
+        define(expr.slot, expr.name, evaluate(expr.value), expr.type);
         return null;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
+        if (expr.reduction && partials != null) return reduce(expr);
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        if (expr.fallback != null) {
+            environment.assignAt(expr.depth, expr.slot, expr.fallback, expr.name, value);
+        } else {
+            assign(expr.depth, expr.slot, expr.name, value);
+        }
         return value;
     }
 
@@ -155,11 +239,189 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.right);
     }
 
+    // type feedback of Expr.Binary: a node specializes to the operand types it sees first and
+    // goes generic for good once a guard fails, see visitBinaryExpr
+    private static final int UNINITIALIZED = 0;
+    private static final int INT_INT = 1;
+    private static final int DOUBLE_DOUBLE = 2;
+    private static final int MIXED = 3;
+    private static final int GENERIC = 4;
+
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object l = evaluate(expr.left);
-        Object r = evaluate(expr.right);
+        switch (expr.feedback) {
+            case INT_INT -> {
+                int a = evaluateInt(expr.left);
+                if (misfit) return specialize(expr, misfitValue, evaluate(expr.right));
+                int b = evaluateInt(expr.right);
+                if (misfit) return specialize(expr, a, misfitValue);
+                return intOperation(expr.operator.type, a, b);
+            }
+            case DOUBLE_DOUBLE -> {
+                double a = evaluateDouble(expr.left);
+                if (misfit) return specialize(expr, misfitValue, evaluate(expr.right));
+                double b = evaluateDouble(expr.right);
+                if (misfit) return specialize(expr, a, misfitValue);
+                return doubleOperation(expr.operator.type, a, b);
+            }
+            case MIXED -> {
+                Object l = evaluate(expr.left);
+                Object r = evaluate(expr.right);
+                if (l instanceof Number a && r instanceof Number b && !(a instanceof Integer && b instanceof Integer)) {
+                    return doubleOperation(expr.operator.type, a.doubleValue(), b.doubleValue());
+                }
+                return specialize(expr, l, r);
+            }
+            case GENERIC -> {
+                return binary(expr, evaluate(expr.left), evaluate(expr.right));
+            }
+        }
+        return specialize(expr, evaluate(expr.left), evaluate(expr.right));
+    }
+
+    // evaluateInt and evaluateDouble read #integer and #double locals, literals and specialized
+    // arithmetic without boxing; a value of any other type is handed back in misfitValue
+    private boolean misfit;
+    private Object misfitValue;
+
+    private int evaluateInt(Expr expr) {
+        if (expr instanceof Expr.Variable variable && variable.depth != -1
+                && environment.typeAt(variable.depth, variable.slot) == OType.Integer) {
+            misfit = false;
+            return environment.intAt(variable.depth, variable.slot);
+        }
+        if (expr instanceof Expr.Index index && lookUp(index.depth, index.slot, index.fallback, index.name) instanceof OList list
+                && list.type() == OType.Integer) {
+            int i = evaluateInt(index.index);
+            // like visitIndexExpr, an index that is no #integer gives nothing
+            if (misfit) return fitInt(null);
+            list.check(index.name, i);
+            return list.intAt(i);
+        }
+        if (expr instanceof Expr.Grouping grouping) {
+            return evaluateInt(grouping.expression);
+        }
+        if (expr instanceof Expr.Binary binary && binary.feedback == INT_INT && isArithmetic(binary.operator.type)) {
+            int a = evaluateInt(binary.left);
+            if (misfit) return fitInt(specialize(binary, misfitValue, evaluate(binary.right)));
+            int b = evaluateInt(binary.right);
+            if (misfit) return fitInt(specialize(binary, a, misfitValue));
+            return intArithmetic(binary.operator.type, a, b);
+        }
+        return fitInt(evaluate(expr));
+    }
+
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Variable variable && variable.depth != -1
+                && environment.typeAt(variable.depth, variable.slot) == OType.Double) {
+            misfit = false;
+            return environment.doubleAt(variable.depth, variable.slot);
+        }
+        if (expr instanceof Expr.Index index && lookUp(index.depth, index.slot, index.fallback, index.name) instanceof OList list
+                && list.type() == OType.Double) {
+            int i = evaluateInt(index.index);
+            if (misfit) return fitDouble(null);
+            list.check(index.name, i);
+            return list.doubleAt(i);
+        }
+        if (expr instanceof Expr.Grouping grouping) {
+            return evaluateDouble(grouping.expression);
+        }
+        if (expr instanceof Expr.Binary binary && binary.feedback == DOUBLE_DOUBLE && isArithmetic(binary.operator.type)) {
+            double a = evaluateDouble(binary.left);
+            if (misfit) return fitDouble(specialize(binary, misfitValue, evaluate(binary.right)));
+            double b = evaluateDouble(binary.right);
+            if (misfit) return fitDouble(specialize(binary, a, misfitValue));
+            return doubleArithmetic(binary.operator.type, a, b);
+        }
+        return fitDouble(evaluate(expr));
+    }
+
+    private int fitInt(Object value) {
+        misfit = !(value instanceof Integer);
+        if (misfit) {
+            misfitValue = value;
+            return 0;
+        }
+        return (Integer) value;
+    }
+
+    private double fitDouble(Object value) {
+        misfit = !(value instanceof Double);
+        if (misfit) {
+            misfitValue = value;
+            return 0;
+        }
+        return (Double) value;
+    }
+
+    private Object specialize(Expr.Binary expr, Object l, Object r) {
+        int seen = GENERIC;
+        switch (expr.operator.type) {
+            case PLUS, MINUS, STAR, SLASH, PERCENT, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                if (l instanceof Integer && r instanceof Integer) {
+                    seen = INT_INT;
+                } else if (l instanceof Double && r instanceof Double) {
+                    seen = DOUBLE_DOUBLE;
+                } else if (l instanceof Number && r instanceof Number) {
+                    seen = MIXED;
+                }
+            }
+        }
+        expr.feedback = expr.feedback == UNINITIALIZED ? seen : GENERIC;
+        return binary(expr, l, r);
+    }
+
+    private static boolean isArithmetic(TokenType operator) {
+        return switch (operator) {
+            case PLUS, MINUS, STAR, SLASH, PERCENT -> true;
+            default -> false;
+        };
+    }
+
+    private static Object intOperation(TokenType operator, int a, int b) {
+        return switch (operator) {
+            case GREATER -> a > b;
+            case GREATER_EQUAL -> a >= b;
+            case LESS -> a < b;
+            case LESS_EQUAL -> a <= b;
+            default -> intArithmetic(operator, a, b);
+        };
+    }
+
+    private static int intArithmetic(TokenType operator, int a, int b) {
+        return switch (operator) {
+            case PLUS -> a + b;
+            case MINUS -> a - b;
+            case STAR -> a * b;
+            case SLASH -> a / b;
+            case PERCENT -> a % b;
+            default -> throw new IllegalArgumentException("not an arithmetic operator: " + operator);
+        };
+    }
+
+    private static Object doubleOperation(TokenType operator, double a, double b) {
+        return switch (operator) {
+            case GREATER -> a > b;
+            case GREATER_EQUAL -> a >= b;
+            case LESS -> a < b;
+            case LESS_EQUAL -> a <= b;
+            default -> doubleArithmetic(operator, a, b);
+        };
+    }
 
+    private static double doubleArithmetic(TokenType operator, double a, double b) {
+        return switch (operator) {
+            case PLUS -> a + b;
+            case MINUS -> a - b;
+            case STAR -> a * b;
+            case SLASH -> a / b;
+            case PERCENT -> a % b;
+            default -> throw new IllegalArgumentException("not an arithmetic operator: " + operator);
+        };
+    }
+
+    static Object binary(Expr.Binary expr, Object l, Object r) {
         if (expr.operator.type != TokenType.VERTICAL_BAR
                 && expr.operator.type != TokenType.DOUBLE_VERTICAL_BAR
                 && expr.operator.type != TokenType.EQUAL
@@ -338,10 +600,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 }
             }
             case VERTICAL_BAR -> {
-                return stringify(l) + stringify(r);
+                return Rope.concat(l, "", r);
             }
             case DOUBLE_VERTICAL_BAR -> {
-                return stringify(l) + " " + stringify(r);
+                return Rope.concat(l, " ", r);
             }
         };
         return null;
@@ -372,17 +634,26 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name).value;
+        return lookUp(expr.depth, expr.slot, expr.fallback, expr.name);
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
-        List<Object> args = new ArrayList<>();
-        for (Expr arg : expr.arguments) {
-            args.add(evaluate(arg));
+        return call(expr, evaluate(expr.callee));
+    }
+
+    private Object call(Expr.Call expr, Object callee) {
+        InlineCache cache = expr.cache;
+        if (cache == null) cache = expr.cache = new InlineCache(expr.bang);
+
+        if (cache.hit(callee)) {
+            // checked before, a function gets its arguments bound straight into its environment
+            if (callee instanceof OFunction function) return call(function, expr.arguments);
+            return builtin(expr, (OCallable) callee, arguments(expr.arguments));
         }
 
+        List<Object> args = arguments(expr.arguments);
+
         if (!(callee instanceof OCallable)) {
             throw new RuntimeError(expr.bang, "only functions and classes can be called.");
         }
@@ -393,7 +664,96 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(expr.bang, "expected: " + function.arity() + "arguments\nbut got " + args.size());
         }
 
-        return function.call(this, args);
+        cache.add(function);
+        if (function instanceof OFunction) return function.call(this, args);
+        return builtin(expr, function, args);
+    }
+
+    private Object builtin(Expr.Call expr, OCallable builtin, List<Object> args) {
+        Events.BuiltinCall event = new Events.BuiltinCall();
+        event.begin();
+        Object result = builtin.call(this, args);
+        event.end();
+        if (event.shouldCommit()) {
+            event.builtin = expr.callee instanceof Expr.Variable variable ? variable.name.lexeme() : null;
+            event.function = Events.name(running);
+            event.line = expr.bang.line;
+            event.commit();
+        }
+        return result;
+    }
+
+    private List<Object> arguments(List<Expr> arguments) {
+        List<Object> args = new ArrayList<>(arguments.size());
+        for (Expr arg : arguments) {
+            args.add(evaluate(arg));
+        }
+        return args;
+    }
+
+    private Object call(OFunction function, List<Expr> arguments) {
+        if (function.memo != null) return function.call(this, arguments(arguments));
+        Expr.Function declaration = function.function;
+        Environment environment = new Environment(globals, declaration.slots);
+        for (int i = 0; i < arguments.size(); i++) {
+            environment.defineAt(i, declaration.params.get(i), evaluate(arguments.get(i)), OType.Flexible);
+        }
+        return invoke(declaration, environment);
+    }
+
+    // runs a function body, as a frame of the profiler's stack when profiling and as an
+    // Events.FunctionCall when a recording wants one
+    Object invoke(Expr.Function declaration, Environment environment) {
+        Events.FunctionCall event = new Events.FunctionCall();
+        if (profiler == null && !event.isEnabled()) return run(declaration, environment, false);
+
+        Expr.Function caller = running;
+        running = declaration;
+        if (profiler != null) profiler.enter(declaration);
+        event.begin();
+        try {
+            return run(declaration, environment, true);
+        } catch (RuntimeError e) {
+            // the innermost function is where the error happened
+            if (e.function == null) e.function = running;
+            throw e;
+        } finally {
+            if (profiler != null) profiler.exit();
+            running = caller;
+            event.end();
+            if (event.shouldCommit()) {
+                event.function = Events.name(declaration);
+                event.line = declaration.name != null ? declaration.name.line : 0;
+                event.commit();
+            }
+        }
+    }
+
+    // a call the body returns comes back as tailCallee and runs in the same loop, so tail
+    // recursion takes no Java stack and a self call reuses the environment
+    private Object run(Expr.Function declaration, Environment environment, boolean followed) {
+        while (executeBlock(declaration.body, environment)) {
+            OFunction callee = tailCallee;
+            if (callee == null) return returned();
+            Object[] args = tailArguments;
+            tailCallee = null;
+            tailArguments = null;
+
+            if (callee.function == declaration) {
+                environment.clear();
+            } else {
+                declaration = callee.function;
+                environment = new Environment(globals, declaration.slots);
+                if (followed) {
+                    running = declaration;
+                    if (profiler != null) profiler.replace(declaration);
+                }
+            }
+            for (int i = 0; i < args.length; i++) {
+                environment.defineAt(i, declaration.params.get(i), args[i], OType.Flexible);
+            }
+        }
+        return null;
     }
 
     @Override
@@ -403,20 +763,33 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitIndexExpr(Expr.Index expr) {
-        Object value = environment.get(expr.name).value;
+        Object value = lookUp(expr.depth, expr.slot, expr.fallback, expr.name);
         if (evaluate(expr.index) instanceof Integer indexInInt) {
             int index = indexInInt.intValue();
-            if (value instanceof String str) {
+            if (value instanceof CharSequence str) {
                 if (index >= 0 && index < str.length()) {
                     return "" + str.charAt(index);
                 } else {
                     throw new RuntimeError(expr.name, "index out of bounds for the given string");
                 }
             }
+            if (value instanceof OList list) {
+                return list.get(expr.name, index);
+            }
         }
         return null;
     }
 
+    @Override
+    public Object visitListLiteralExpr(Expr.ListLiteral expr) {
+        OList list = new OList();
+        for (Expr element : expr.elements) {
+            Object value = evaluate(element);
+            list.add(value instanceof Rope rope ? rope.toString() : value);
+        }
+        return list;
+    }
+
     @Override
     public Object visitTypeBinaryExpr(Expr.TypeBinary expr) {
         switch (expr.op.type) {
@@ -427,9 +800,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     }
 
                     case Integer -> {
-                        if (evaluate(expr.expression) instanceof String s) {
+                        if (evaluate(expr.expression) instanceof CharSequence s) {
                             try {
-                                return Integer.parseInt(s);
+                                return Integer.parseInt(s.toString());
                             } catch (NumberFormatException e) {
                                 throw new RuntimeError(expr.op, "given string can not be converted to an integer");
                             }
@@ -449,9 +822,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     }
 
                     case Double -> {
-                        if (evaluate(expr.expression) instanceof String s) {
+                        if (evaluate(expr.expression) instanceof CharSequence s) {
                             try {
-                                return Double.parseDouble(s);
+                                return Double.parseDouble(s.toString());
                             } catch (NumberFormatException e) {
                                 throw new RuntimeError(expr.op, "given string can not be converted to an integer");
                             }
@@ -483,120 +856,526 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    private Object lookUp(int depth, int slot, Token name) {
+        if (depth == -1) {
+            return globals.get(name).value;
+        }
+        return environment.getAt(depth, slot, name);
+    }
+
+    private Object lookUp(int depth, int slot, int[] fallback, Token name) {
+        if (fallback != null) return environment.getAt(depth, slot, fallback, name);
+        return lookUp(depth, slot, name);
+    }
+
+    private void assign(int depth, int slot, Token name, Object value) {
+        if (depth == -1) {
+            globals.assign(name, value);
+        } else {
+            environment.assignAt(depth, slot, name, value);
+        }
+    }
+
+    private void define(int slot, Token name, Object value, OType type) {
+        if (slot == -1) {
+            globals.define(name, value, type);
+        } else {
+            environment.defineAt(slot, name, value, type);
+        }
+    }
+
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // statements complete with false, or with true once a return statement ran; the true is passed up
+    // through every enclosing block and loop to the function call, without unwinding the stack
+    private boolean execute(Stmt stmt) {
+        if (profiler != null) profiler.statement = stmt;
+        return stmt.accept(this);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Number) return;
         throw new RuntimeError(operator, "operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object operand1, Object operand2) {
+    static void checkNumberOperands(Token operator, Object operand1, Object operand2) {
         if (operand1 instanceof Number && operand2 instanceof Number) return;
         throw new RuntimeError(operator, "both operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         if (object instanceof Double num && num.equals(0)) return false;
         if (object instanceof Integer num && num.equals(0)) return false;
-        if (object instanceof String s && s.isEmpty()) return false;
+        if (object instanceof CharSequence s && s.length() == 0) return false;
+        if (object instanceof OList list && list.size() == 0) return false;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
+        if (a instanceof Rope || b instanceof Rope) {
+            return a instanceof CharSequence && b instanceof CharSequence && a.toString().equals(b.toString());
+        }
 
         return a.equals(b);
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
-        return null;
+    public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign assignment && assignment.depth != -1 && assignment.fallback == null
+                && !assignment.reduction) {
+            assignStatement(assignment);
+        } else {
+            evaluate(stmt.expression);
+        }
+        return false;
+    }
+
+    // the value of an assignment statement is dropped, so #integer and #double locals are stored without boxing
+    private void assignStatement(Expr.Assign expr) {
+        OType type = environment.typeAt(expr.depth, expr.slot);
+        if (type == OType.Integer) {
+            int value = evaluateInt(expr.value);
+            if (misfit) {
+                assign(expr.depth, expr.slot, expr.name, misfitValue);
+            } else if (environment.typeAt(expr.depth, expr.slot) == OType.Integer) {
+                environment.setIntAt(expr.depth, expr.slot, value);
+            } else {
+                assign(expr.depth, expr.slot, expr.name, value);
+            }
+        } else if (type == OType.Double) {
+            double value = evaluateDouble(expr.value);
+            if (misfit) {
+                assign(expr.depth, expr.slot, expr.name, misfitValue);
+            } else if (environment.typeAt(expr.depth, expr.slot) == OType.Double) {
+                environment.setDoubleAt(expr.depth, expr.slot, value);
+            } else {
+                assign(expr.depth, expr.slot, expr.name, value);
+            }
+        } else {
+            visitAssignExpr(expr);
+        }
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Boolean visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+        out().println(stringify(value));
+        return false;
     }
 
     @Override
-    public Void visitEmptyStmt(Stmt.Empty stmt) {
-        return null;
+    public Boolean visitEmptyStmt(Stmt.Empty stmt) {
+        return false;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Boolean visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.slots == 0) {
+            for (Stmt statement : stmt.statements) {
+                if (execute(statement)) return true;
+            }
+            return false;
+        }
+        return executeBlock(stmt.statements, new Environment(environment, stmt.slots));
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Boolean visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.cond))) {
-            execute(stmt.thenBlock);
+            return execute(stmt.thenBlock);
         } else if (stmt.elseBlock != null) {
-            execute(stmt.elseBlock);
+            return execute(stmt.elseBlock);
         }
 
-        return null;
+        return false;
     }
 
     @Override
-    public Void visitLoopConditionStmt(Stmt.LoopCondition stmt) {
+    public Boolean visitLoopConditionStmt(Stmt.LoopCondition stmt) {
+        Events.Loop event = new Events.Loop();
+        if (event.isEnabled()) return recorded(stmt, event, "condition");
+        return loopCondition(stmt);
+    }
+
+    private boolean loopCondition(Stmt.LoopCondition stmt) {
+        Environment scope = loopScope(stmt.body);
         while(isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            if (execute(stmt.body, scope)) return true;
         }
-        return null;
+        return false;
     }
 
     @Override
-    public Void visitLoopRangeStmt(Stmt.LoopRange stmt) {
-        if (stmt.from instanceof Expr.Assign assignment) {
-            environment.define(assignment.name.lexeme, evaluate(assignment.value), OType.Integer);
-            while((int) environment.get(assignment.name).value < (int) evaluate(stmt.to) + (stmt.incl ? 1 : 0)) {
-                execute(stmt.body);
-                environment.assign(assignment.name, (int) environment.get(assignment.name).value+ 1);
+    public Boolean visitLoopRangeStmt(Stmt.LoopRange stmt) {
+        Events.Loop event = new Events.Loop();
+        if (event.isEnabled()) return recorded(stmt, event, "range");
+        return loopRange(stmt);
+    }
+
+    private boolean loopRange(Stmt.LoopRange stmt) {
+        if (stmt.parallel) return parallel(stmt);
+        Environment scope = loopScope(stmt.body);
+        if (!(stmt.from instanceof Expr.Assign assignment)) {
+            // the unnamed form keeps its counter in a Java int, nothing can read or write it
+            int from = evaluateBound(stmt.from);
+            if (stmt.invariant) {
+                for (int i = from, to = evaluateBound(stmt.to); i < to; i++) {
+                    if (execute(stmt.body, scope)) return true;
+                }
+            } else {
+                for (int i = from; i < evaluateBound(stmt.to); i++) {
+                    if (execute(stmt.body, scope)) return true;
+                }
+            }
+            return false;
+        }
+
+        int incl = stmt.incl ? 1 : 0;
+        define(assignment.slot, assignment.name, evaluate(assignment.value), OType.Integer);
+        if (assignment.depth == -1) {
+            // the body runs in a scope of its own and can not redefine the global, so its Value stays the same
+            Value counter = globals.get(assignment.name);
+            if (stmt.invariant) {
+                int to = (int) evaluate(stmt.to) + incl;
+                while ((int) counter.value < to) {
+                    if (execute(stmt.body, scope)) return true;
+                    counter.value = (int) counter.value + 1;
+                }
+            } else {
+                while ((int) counter.value < (int) evaluate(stmt.to) + incl) {
+                    if (execute(stmt.body, scope)) return true;
+                    counter.value = (int) counter.value + 1;
+                }
+            }
+        } else {
+            // the body is a block of its own, so the counter stays an #integer in this scope
+            int slot = assignment.slot;
+            if (stmt.invariant) {
+                int to = evaluateBound(stmt.to) + incl;
+                while (environment.intAt(0, slot) < to) {
+                    if (execute(stmt.body, scope)) return true;
+                    environment.incrementAt(0, slot);
+                }
+            } else {
+                while (environment.intAt(0, slot) < evaluateBound(stmt.to) + incl) {
+                    if (execute(stmt.body, scope)) return true;
+                    environment.incrementAt(0, slot);
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visitLoopInStmt(Stmt.LoopIn stmt) {
+        Events.Loop event = new Events.Loop();
+        if (event.isEnabled()) return recorded(stmt, event, "in");
+        return loopIn(stmt);
+    }
+
+    // runs the body for the elements the list has when the loop starts, the ones it appends are left
+    // out; the variable is defined again for every element, with the type the list keeps them in
+    private boolean loopIn(Stmt.LoopIn stmt) {
+        if (!(evaluate(stmt.list) instanceof OList list)) throw new RuntimeError(stmt.name, "can only loop over a list");
+        Environment scope = loopScope(stmt.body);
+        for (int i = 0, size = list.size(); i < size; i++) {
+            OType type = list.type();
+            if (stmt.slot == -1) {
+                globals.define(stmt.name, list.get(i), type);
+            } else if (type == OType.Integer) {
+                environment.defineIntAt(stmt.slot, list.intAt(i));
+            } else if (type == OType.Double) {
+                environment.defineDoubleAt(stmt.slot, list.doubleAt(i));
+            } else {
+                environment.defineAt(stmt.slot, stmt.name, list.get(i), OType.Flexible);
+            }
+            if (execute(stmt.body, scope)) return true;
+        }
+        return false;
+    }
+
+    // a parallel loop splits its range into parts for the common fork/join pool, a few per processor.
+    // Every part runs in a worker Interpreter with copies of the globals and of the scopes around the
+    // loop, made once per thread, so the bodies read what was there before the loop and never write
+    // the same variable; the Resolver lets them assign the variables around the loop only in
+    // reductions and Purity lets them call only pure functions, which write no global. Once the parts
+    // are done, the variables are reduced with what the bodies gave them in range order, the order
+    // the other engines run the bodies in, so a double sum comes out the same on every engine. The
+    // bounds are evaluated once, before any body runs.
+    private boolean parallel(Stmt.LoopRange stmt) {
+        int from;
+        if (stmt.from instanceof Expr.Assign counter) {
+            define(counter.slot, counter.name, evaluate(counter.value), OType.Integer);
+            from = (int) lookUp(counter.depth, counter.slot, counter.name);
+        } else {
+            from = evaluateBound(stmt.from);
+        }
+        int to = evaluateBound(stmt.to) + (stmt.incl ? 1 : 0);
+
+        if (to > from) {
+            int parts = 4 * Runtime.getRuntime().availableProcessors();
+            int grain = Math.max(1, (to - from + parts - 1) / parts);
+            Map<Thread, Interpreter> workers = new ConcurrentHashMap<>();
+            Map<String, Partial> reductions = ForkJoinPool.commonPool().invoke(new Part(stmt, from, to, grain, workers));
+            for (Partial partial : reductions.values()) {
+                Expr.Assign assignment = partial.assignment;
+                Object value = lookUp(partial.depth, assignment.slot, assignment.name);
+                assign(partial.depth, assignment.slot, assignment.name, partial.reduce(value));
+            }
+            iterations += to - from;
+        }
+        if (stmt.from instanceof Expr.Assign counter) define(counter.slot, counter.name, Math.max(from, to), OType.Integer);
+        return false;
+    }
+
+    private final class Part extends RecursiveTask<Map<String, Partial>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Stmt.LoopRange loop;
+        private final int from;
+        private final int to;
+        private final int grain;
+        // the idle worker of every thread that ran a part
+        private final Map<Thread, Interpreter> workers;
+
+        Part(Stmt.LoopRange loop, int from, int to, int grain, Map<Thread, Interpreter> workers) {
+            this.loop = loop;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.workers = workers;
+        }
+
+        @Override
+        protected Map<String, Partial> compute() {
+            if (to - from <= grain) {
+                // a thread waiting in a nested parallel loop can run another part, which then gets
+                // a worker of its own
+                Thread thread = Thread.currentThread();
+                Interpreter worker = workers.remove(thread);
+                if (worker == null) worker = worker();
+                try {
+                    return worker.range(loop, from, to);
+                } finally {
+                    workers.put(thread, worker);
+                }
+            }
+
+            int middle = from + (to - from) / 2;
+            Part left = new Part(loop, from, middle, grain, workers);
+            left.fork();
+            Map<String, Partial> right = new Part(loop, middle, to, grain, workers).compute();
+            Map<String, Partial> reductions = left.join();
+            // the left part comes first, the order of the range
+            right.forEach((name, partial) -> reductions.merge(name, partial, (l, r) -> {
+                l.addAll(r);
+                return l;
+            }));
+            return reductions;
+        }
+    }
+
+    private Interpreter worker() {
+        Interpreter worker = new Interpreter(this, globals.copy());
+        worker.environment = worker.around = environment == globals ? worker.globals : environment.copy(worker.globals);
+        return worker;
+    }
+
+    // runs the bodies of a part of a parallel loop in a worker, the counter going from from to to - 1
+    private Map<String, Partial> range(Stmt.LoopRange stmt, int from, int to) {
+        partials = new HashMap<>();
+        Environment scope = loopScope(stmt.body);
+        if (!(stmt.from instanceof Expr.Assign counter)) {
+            for (int i = from; i < to; i++) {
+                execute(stmt.body, scope);
+            }
+        } else if (counter.depth == -1) {
+            Value value = globals.get(counter.name);
+            for (int i = from; i < to; i++) {
+                value.value = i;
+                execute(stmt.body, scope);
             }
         } else {
-            int from = (int) evaluate(stmt.from);
-            while (from < (int) evaluate(stmt.to)) {
-                execute(stmt.body);
-                from = from + 1;
+            for (int i = from; i < to; i++) {
+                environment.setIntAt(0, counter.slot, i);
+                execute(stmt.body, scope);
             }
         }
+        return partials;
+    }
+
+    // a reduction <v: v op x> in a worker only notes x for v
+    private Object reduce(Expr.Assign expr) {
+        Object value = evaluate(((Expr.Binary) expr.value).right);
+        Partial partial = partials.get(expr.name.lexeme());
+        if (partial == null) {
+            // the variable is around the loop, its depth from there stays the same in every scope of the body
+            int depth = expr.depth == -1 ? -1 : expr.depth - environment.depthOf(around);
+            partial = new Partial(expr, depth, lookUp(expr.depth, expr.slot, expr.name));
+            partials.put(expr.name.lexeme(), partial);
+        }
+        partial.add(value);
         return null;
     }
 
+    // the operands a part of a parallel loop reduces a variable with, in range order, unboxed while
+    // they are all #integer or all #double, see OList
+    private static final class Partial {
+        final Expr.Assign assignment;
+        final int depth;
+        private final OList operands = new OList();
+        // neighbouring operands are combined where that gives what reducing by them one by one does:
+        // texts always, integers when the variable is one too, since they wrap around in any order;
+        // the run being combined is kept apart until it ends
+        private final boolean texts;
+        private final boolean integers;
+        private Object run = null;
+
+        Partial(Expr.Assign assignment, int depth, Object start) {
+            this.assignment = assignment;
+            this.depth = depth;
+            TokenType operator = ((Expr.Binary) assignment.value).operator.type;
+            texts = operator == TokenType.VERTICAL_BAR || operator == TokenType.DOUBLE_VERTICAL_BAR;
+            integers = start instanceof Integer;
+        }
+
+        void add(Object operand) {
+            if (run != null && (texts || integers && run instanceof Integer && operand instanceof Integer)) {
+                run = binary((Expr.Binary) assignment.value, run, operand);
+                return;
+            }
+            if (run != null) operands.add(run);
+            run = operand;
+        }
+
+        void addAll(Partial partial) {
+            for (int i = 0; i < partial.operands.size(); i++) {
+                add(partial.operands.get(i));
+            }
+            if (partial.run != null) add(partial.run);
+        }
+
+        // the value reduced by every operand, one by one
+        Object reduce(Object value) {
+            Expr.Binary binary = (Expr.Binary) assignment.value;
+            int i = 0;
+            if (operands.type() == OType.Double && binary.operator.type == TokenType.PLUS) {
+                if (operands.size() > 0 && !(value instanceof Double)) value = binary(binary, value, operands.get(i++));
+                if (value instanceof Double d) {
+                    double sum = d;
+                    for (; i < operands.size(); i++) {
+                        sum += operands.doubleAt(i);
+                    }
+                    value = sum;
+                }
+            }
+            for (; i < operands.size(); i++) {
+                value = binary(binary, value, operands.get(i));
+            }
+            return run == null ? value : binary(binary, value, run);
+        }
+    }
+
+    // counts the bodies the loop runs; a loop in the body counts its own and then goes on with these
+    private boolean recorded(Stmt loop, Events.Loop event, String kind) {
+        long outer = iterations;
+        iterations = 0;
+        event.begin();
+        boolean returned;
+        if (loop instanceof Stmt.LoopRange range) {
+            returned = loopRange(range);
+        } else if (loop instanceof Stmt.LoopIn in) {
+            returned = loopIn(in);
+        } else {
+            returned = loopCondition((Stmt.LoopCondition) loop);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.function = Events.name(running);
+            event.line = Profiler.line(loop);
+            event.iterations = iterations;
+            event.commit();
+        }
+        iterations = outer;
+        return returned;
+    }
+
+    // a loop body that declares variables runs in one scope for the whole loop, cleared on every
+    // iteration; functions only enclose the globals, so nothing can hold on to the scope of an iteration
+    private Environment loopScope(Stmt body) {
+        return body instanceof Stmt.Block block && block.slots > 0 ? new Environment(environment, block.slots) : null;
+    }
+
+    private boolean execute(Stmt body, Environment scope) {
+        iterations++;
+        if (scope == null) return execute(body);
+        scope.clear();
+        return executeBlock(((Stmt.Block) body).statements, scope);
+    }
+
+    private int evaluateBound(Expr to) {
+        int bound = evaluateInt(to);
+        return misfit ? (int) misfitValue : bound;
+    }
+
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Boolean visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tail) return tailCall((Expr.Call) stmt.value);
+
         Object value = null;
         if (stmt.value != null) {
             value = evaluate(stmt.value);
         }
 
-        throw new Return(value);
+        returnValue = value;
+        return true;
+    }
+
+    // a returned call to a function is left for invoke() instead of running on top of the caller
+    private boolean tailCall(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+        if (!(callee instanceof OFunction function) || function.arity() != expr.arguments.size()) {
+            returnValue = call(expr, callee);
+            return true;
+        }
+
+        InlineCache cache = expr.cache;
+        if (cache == null) cache = expr.cache = new InlineCache(expr.bang);
+        if (!cache.hit(function)) cache.add(function);
+
+        Object[] args = new Object[expr.arguments.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = evaluate(expr.arguments.get(i));
+        }
+        tailCallee = function;
+        tailArguments = args;
+        return true;
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    // true if a return statement ended the block, its value is left for returned()
+    boolean executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
             for (Stmt statement : statements) {
-                execute(statement);
+                if (execute(statement)) return true;
             }
+            return false;
         } finally {
             this.environment = previous;
         }
     }
+
+    Object returned() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
 }
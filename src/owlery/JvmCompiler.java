@@ -0,0 +1,910 @@
+package owlery;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Ahead of time compiler behind "owlery compile <file>". The resolved tree is translated into the
+ * source of a single class extending Script, which the system Java compiler turns into a class file,
+ * so HotSpot sees the program itself instead of an interpreter. Functions only enclose the globals,
+ * so every function becomes a static method; top level functions that are defined once and never
+ * reassigned are called directly. Fixed locals declared as #integer or #double become primitives.
+ *
+ * The top level is split into methods of about CHUNK characters each, so long scripts stay below
+ * the size javac allows for one method; they return false once a top level return ends the script.
+ * The tokens errors are reported at are interned by lexeme and line into one table that is read from
+ * a few string constants, so they do not use up the constant pool either.
+ */
+public class JvmCompiler implements Expr.Visitor<JvmCompiler.Code>, Stmt.Visitor<Void> {
+    enum Kind { INT, DOUBLE, BOOLEAN, OBJECT }
+
+    // text can always be used as an operand, statement is set if the expression is a valid Java statement
+    record Code(String text, Kind kind, String statement) {
+        Code(String text, Kind kind) {
+            this(text, kind, null);
+        }
+    }
+
+    // locals that are not fixed (kind == null) live in a Script.Slot
+    private record Local(String name, Kind kind, OType type) {}
+
+    private static class Scope {
+        final Scope enclosing;
+        final boolean[] fixed;
+        final Local[] locals;
+        // declarations are inserted at the start of the scope once all of them are known
+        final int at;
+        final String indent;
+        final StringBuilder declarations = new StringBuilder();
+
+        Scope(Scope enclosing, boolean[] fixed, int at, String indent) {
+            this.enclosing = enclosing;
+            this.fixed = fixed;
+            this.locals = new Local[fixed.length];
+            this.at = at;
+            this.indent = indent;
+        }
+    }
+
+    private static final Set<String> RESERVED = Set.of("Object", "String", "Integer", "Double", "Boolean", "System");
+    private static final int CHUNK = 20_000;
+
+    private record Name(String lexeme, int line) {}
+
+    private final StringBuilder fields = new StringBuilder();
+    private final StringBuilder methods = new StringBuilder();
+    private final Map<Name, Integer> tokens = new HashMap<>();
+    private final List<Name> table = new ArrayList<>();
+    private Map<String, Expr.Function> direct = Map.of();
+    private int names = 0;
+
+    // the method that is being generated
+    private StringBuilder out;
+    private int indent;
+    private Scope scope;
+    private Scope root;
+    private boolean inFunction;
+    // false after a return, what follows in the same block is generated but left out
+    private boolean reachable;
+
+    static String className(Path file) {
+        String name = file.getFileName().toString();
+        if (name.contains(".")) name = name.substring(0, name.lastIndexOf('.'));
+        name = name.replaceAll("[^A-Za-z0-9_]", "_");
+        if (name.isEmpty() || Character.isDigit(name.charAt(0))) name = "_" + name;
+        name = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        return RESERVED.contains(name) ? name + "_" : name;
+    }
+
+    /** Generates the class for the given program and writes it into the directory, returns false if javac failed. */
+    static boolean compile(Path file, List<Stmt> statements) {
+        String className = className(file);
+        JvmCompiler compiler = new JvmCompiler();
+        String source = compiler.generate(className, statements);
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            System.out.println("compiling needs a JDK, there is no Java compiler in this runtime.");
+            return false;
+        }
+
+        JavaFileObject unit = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        Path directory = file.toAbsolutePath().getParent();
+        List<String> options = List.of("-classpath", System.getProperty("java.class.path"), "-d", directory.toString());
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        if (javac.getTask(null, null, diagnostics, options, null, List.of(unit)).call()) return true;
+
+        // the generated source is no use to the author of the script, only where it came from is
+        String[] lines = source.split("\n");
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() != Diagnostic.Kind.ERROR) continue;
+            Owlery.error(compiler.line(lines, (int) diagnostic.getLineNumber()),
+                    "[aot] the generated class does not compile: " + diagnostic.getMessage(null));
+        }
+        return false;
+    }
+
+    String generate(String className, List<Stmt> statements) {
+        direct = directFunctions(statements);
+
+        List<String> chunks = new ArrayList<>();
+        beginMethod(new boolean[0], false);
+        for (Stmt statement : statements) {
+            statement(statement);
+            // a chunk that ends with a return leaves the rest in it, to be left out
+            if (reachable && out.length() > CHUNK) {
+                chunks.add(endChunk(chunks.size()));
+                beginMethod(new boolean[0], false);
+            }
+        }
+        chunks.add(endChunk(chunks.size()));
+
+        StringBuilder run = new StringBuilder();
+        for (String chunk : chunks) {
+            run.append("        if (!").append(chunk).append("()) return;\n");
+        }
+        methods.append("\n    private static void run$() {\n").append(run).append("    }\n");
+
+        return "public class " + className + " extends owlery.Script {\n"
+                + "    private static final owlery.Token[] tok$ = tokens(" + tokenTable() + ");\n"
+                + fields
+                + "\n    public static void main(String[] args) {\n"
+                + "        run(" + className + "::run$);\n"
+                + "    }\n"
+                + methods
+                + "}\n";
+    }
+
+    // top level functions that are written exactly once, by their own definition
+    static Map<String, Expr.Function> directFunctions(List<Stmt> statements) {
+        Map<String, Integer> writes = globalWrites(statements);
+        Map<String, Expr.Function> direct = new HashMap<>();
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Expression expression
+                    && expression.expression instanceof Expr.Define define
+                    && define.slot == -1
+                    && define.value instanceof Expr.Function function
+                    && writes.get(define.name.lexeme()) == 1) {
+                direct.put(define.name.lexeme(), function);
+            }
+        }
+        return direct;
+    }
+
+    // how often each global is defined or assigned in the program text
+    static Map<String, Integer> globalWrites(List<Stmt> statements) {
+        Map<String, Integer> writes = new HashMap<>();
+        for (Stmt statement : statements) {
+            countWrites(statement, writes);
+        }
+        return writes;
+    }
+
+    private static void countWrites(Stmt stmt, Map<String, Integer> writes) {
+        if (stmt instanceof Stmt.Expression s) {
+            countWrites(s.expression, writes);
+        } else if (stmt instanceof Stmt.Print s) {
+            countWrites(s.expression, writes);
+        } else if (stmt instanceof Stmt.Block s) {
+            for (Stmt statement : s.statements) countWrites(statement, writes);
+        } else if (stmt instanceof Stmt.If s) {
+            countWrites(s.cond, writes);
+            countWrites(s.thenBlock, writes);
+            if (s.elseBlock != null) countWrites(s.elseBlock, writes);
+        } else if (stmt instanceof Stmt.LoopCondition s) {
+            countWrites(s.condition, writes);
+            countWrites(s.body, writes);
+        } else if (stmt instanceof Stmt.LoopRange s) {
+            countWrites(s.from, writes);
+            countWrites(s.to, writes);
+            countWrites(s.body, writes);
+        } else if (stmt instanceof Stmt.LoopIn s) {
+            if (s.slot == -1) writes.merge(s.name.lexeme(), 1, Integer::sum);
+            countWrites(s.list, writes);
+            countWrites(s.body, writes);
+        } else if (stmt instanceof Stmt.Return s && s.value != null) {
+            countWrites(s.value, writes);
+        }
+    }
+
+    private static void countWrites(Expr expr, Map<String, Integer> writes) {
+        if (expr instanceof Expr.Define e) {
+            if (e.slot == -1) writes.merge(e.name.lexeme(), 1, Integer::sum);
+            countWrites(e.value, writes);
+        } else if (expr instanceof Expr.Assign e) {
+            // with a fallback it writes the global when the local definition did not run
+            if (e.depth == -1 || e.fallback != null) writes.merge(e.name.lexeme(), 1, Integer::sum);
+            countWrites(e.value, writes);
+        } else if (expr instanceof Expr.BooleanBinary e) {
+            countWrites(e.left, writes);
+            countWrites(e.right, writes);
+        } else if (expr instanceof Expr.Binary e) {
+            countWrites(e.left, writes);
+            countWrites(e.right, writes);
+        } else if (expr instanceof Expr.Grouping e) {
+            countWrites(e.expression, writes);
+        } else if (expr instanceof Expr.Unary e) {
+            countWrites(e.right, writes);
+        } else if (expr instanceof Expr.Call e) {
+            countWrites(e.callee, writes);
+            for (Expr argument : e.arguments) countWrites(argument, writes);
+        } else if (expr instanceof Expr.Function e) {
+            for (Stmt statement : e.body) countWrites(statement, writes);
+        } else if (expr instanceof Expr.Index e) {
+            countWrites(e.index, writes);
+        } else if (expr instanceof Expr.TypeBinary e) {
+            countWrites(e.expression, writes);
+        } else if (expr instanceof Expr.ListLiteral e) {
+            for (Expr element : e.elements) countWrites(element, writes);
+        }
+    }
+
+    private void beginMethod(boolean[] fixed, boolean function) {
+        out = new StringBuilder();
+        indent = 2;
+        inFunction = function;
+        reachable = true;
+        scope = root = new Scope(null, fixed, 0, "        ");
+    }
+
+    private String endChunk(int index) {
+        if (reachable) line("return true;");
+        String name = "run$" + index;
+        methods.append("\n    private static boolean ").append(name).append("() {\n").append(endMethod()).append("    }\n");
+        return name;
+    }
+
+    private String endMethod() {
+        out.insert(root.at, root.declarations);
+        return out.toString();
+    }
+
+    private String compileFunction(Expr.Function function, String method) {
+        StringBuilder enclosingOut = out;
+        int enclosingIndent = indent;
+        Scope enclosingScope = scope;
+        Scope enclosingRoot = root;
+        boolean enclosingInFunction = inFunction;
+        boolean enclosingReachable = reachable;
+
+        beginMethod(function.fixed, true);
+        List<String> params = new ArrayList<>();
+        for (int i = 0; i < function.params.size(); i++) {
+            Token param = function.params.get(i);
+            if (function.fixed[i]) {
+                Local local = new Local(fresh(param.lexeme()), Kind.OBJECT, OType.Flexible);
+                scope.locals[i] = local;
+                params.add("Object " + local.name);
+            } else {
+                String arg = fresh("arg");
+                params.add("Object " + arg);
+                Local local = declare(i, param, OType.Flexible);
+                line(local.name + ".define(" + token(param) + ", " + arg + ", " + type(OType.Flexible) + ");");
+            }
+        }
+        for (Stmt statement : function.body) {
+            statement(statement);
+        }
+        if (reachable) line("return null;");
+        methods.append("\n    private static Object ").append(method).append("(").append(String.join(", ", params)).append(") {\n")
+                .append(endMethod())
+                .append("    }\n");
+
+        out = enclosingOut;
+        indent = enclosingIndent;
+        scope = enclosingScope;
+        root = enclosingRoot;
+        inFunction = enclosingInFunction;
+        reachable = enclosingReachable;
+        return method;
+    }
+
+    // a Script.Function that forwards to the static method
+    private String functionValue(Expr.Function function, String method) {
+        List<String> args = new ArrayList<>();
+        for (int i = 0; i < function.params.size(); i++) {
+            args.add("a.get(" + i + ")");
+        }
+        return "new owlery.Script.Function(" + args.size() + ", a -> " + method + "(" + String.join(", ", args) + "))";
+    }
+
+    private void block(String head, Stmt stmt) {
+        block(head, null, stmt);
+    }
+
+    // first is a statement that runs before the body, in the scope around it
+    private void block(String head, String first, Stmt stmt) {
+        line(head + "{");
+        indent++;
+        if (first != null) line(first);
+        // the Optimizer unwraps bodies that declare nothing, those need no scope
+        if (!(stmt instanceof Stmt.Block block)) {
+            statement(stmt);
+            indent--;
+            line("}");
+            return;
+        }
+        // neither does a block the Resolver gave no slots
+        if (block.slots == 0) {
+            for (Stmt statement : block.statements) {
+                statement(statement);
+            }
+            indent--;
+            line("}");
+            return;
+        }
+        scope = new Scope(scope, block.fixed, out.length(), "    ".repeat(indent));
+        for (Stmt statement : block.statements) {
+            statement(statement);
+        }
+        out.insert(scope.at, scope.declarations);
+        scope = scope.enclosing;
+        indent--;
+        line("}");
+    }
+
+    private Local declare(int slot, Token name, OType type) {
+        Local local = scope.locals[slot];
+        if (local != null) return local;
+
+        String javaName = fresh(name.lexeme());
+        if (!scope.fixed[slot]) {
+            local = new Local(javaName, null, type);
+            scope.declarations.append(scope.indent).append("owlery.Script.Slot ").append(javaName).append(" = new owlery.Script.Slot();\n");
+        } else if (type == OType.Integer) {
+            local = new Local(javaName, Kind.INT, type);
+            scope.declarations.append(scope.indent).append("int ").append(javaName).append(" = 0;\n");
+        } else if (type == OType.Double) {
+            local = new Local(javaName, Kind.DOUBLE, type);
+            scope.declarations.append(scope.indent).append("double ").append(javaName).append(" = 0;\n");
+        } else {
+            local = new Local(javaName, Kind.OBJECT, type);
+            scope.declarations.append(scope.indent).append("Object ").append(javaName).append(" = null;\n");
+        }
+        scope.locals[slot] = local;
+        return local;
+    }
+
+    private Local local(int depth, int slot) {
+        Scope scope = this.scope;
+        for (int i = 0; i < depth; i++) {
+            scope = scope.enclosing;
+        }
+        return scope.locals[slot];
+    }
+
+    private Code read(int depth, int slot, Token name) {
+        if (depth == -1) {
+            return call("global(" + token(name) + ")", Kind.OBJECT);
+        }
+        Local local = local(depth, slot);
+        if (local.kind == null) {
+            return call(local.name + ".get(" + token(name) + ")", Kind.OBJECT);
+        }
+        return new Code(local.name, local.kind);
+    }
+
+    // a variable whose definition might not have run, see Resolver.fallback; such a definition is
+    // never fixed, so it is a Slot that tells whether it is defined, and so is every fallback but the last
+    private Code read(int depth, int slot, int[] fallback, Token name) {
+        if (fallback == null) return read(depth, slot, name);
+        String text = "global(" + token(name) + ")";
+        for (int i = fallback.length - 2; i >= -2; i -= 2) {
+            int d = i < 0 ? depth : fallback[i];
+            int s = i < 0 ? slot : fallback[i + 1];
+            Local local = local(d, s);
+            Code read = read(d, s, name);
+            text = local.kind == null ? "(" + local.name + ".defined() ? " + read.text + " : " + text + ")" : read.text;
+        }
+        return new Code(text, Kind.OBJECT);
+    }
+
+    private Code assign(int depth, int slot, int[] fallback, Token name, Code value) {
+        if (fallback == null) return assign(depth, slot, name, value);
+        String temp = temp();
+        Code assigned = new Code(temp, Kind.OBJECT);
+        String text = "assignGlobal(" + token(name) + ", " + temp + ")";
+        for (int i = fallback.length - 2; i >= -2; i -= 2) {
+            int d = i < 0 ? depth : fallback[i];
+            int s = i < 0 ? slot : fallback[i + 1];
+            Local local = local(d, s);
+            Code assignment = assign(d, s, name, assigned);
+            text = local.kind == null ? "(" + local.name + ".defined() ? " + assignment.text + " : " + text + ")" : assignment.text;
+        }
+        return call("second(" + temp + " = " + value.text + ", " + text + ")", Kind.OBJECT);
+    }
+
+    // the value converted to what a fixed local of that type can hold, or an incompatible types error
+    private String coerce(Local local, Token name, Code value) {
+        if (local.kind == Kind.INT) {
+            return value.kind == Kind.INT ? value.text : "asInt(" + token(name) + ", " + value.text + ")";
+        }
+        if (local.kind == Kind.DOUBLE) {
+            return value.kind == Kind.DOUBLE ? value.text : "asDouble(" + token(name) + ", " + value.text + ")";
+        }
+        if (local.type == OType.Flexible) {
+            return value.text;
+        }
+        return "checked(" + token(name) + ", " + type(local.type) + ", " + value.text + ")";
+    }
+
+    private Code define(Local local, Token name, Code value, OType type) {
+        if (local.kind == null) {
+            return call(local.name + ".define(" + token(name) + ", " + value.text + ", " + type(type) + ")", Kind.OBJECT);
+        }
+        String assignment = local.name + " = " + coerce(local, name, value);
+        return new Code("nothing(" + assignment + ")", Kind.OBJECT, assignment);
+    }
+
+    private Code assign(int depth, int slot, Token name, Code value) {
+        if (depth == -1) {
+            return call("assignGlobal(" + token(name) + ", " + value.text + ")", Kind.OBJECT);
+        }
+        Local local = local(depth, slot);
+        if (local.kind == null) {
+            return call(local.name + ".assign(" + token(name) + ", " + value.text + ")", Kind.OBJECT);
+        }
+        String assignment = local.name + " = " + coerce(local, name, value);
+        return new Code("(" + assignment + ")", local.kind, assignment);
+    }
+
+    private static Code call(String text, Kind kind) {
+        return new Code(text, kind, text);
+    }
+
+    private static boolean numeric(Code code) {
+        return code.kind == Kind.INT || code.kind == Kind.DOUBLE;
+    }
+
+    private static String condition(Code code) {
+        // a method call also keeps javac from treating constant loop conditions as unreachable code
+        return "isTruthy(" + code.text + ")";
+    }
+
+    private static String integer(Code code) {
+        return code.kind == Kind.INT ? code.text : "((int) (Object) " + code.text + ")";
+    }
+
+    private String temp() {
+        String name = fresh("t");
+        root.declarations.append(root.indent).append("Object ").append(name).append(" = null;\n");
+        return name;
+    }
+
+    private String fresh(String name) {
+        return name + "$" + names++;
+    }
+
+    private String token(Token token) {
+        Name name = new Name(token.lexeme(), token.line);
+        Integer index = tokens.get(name);
+        if (index == null) {
+            index = table.size();
+            tokens.put(name, index);
+            table.add(name);
+        }
+        return "tok$[" + index + "]";
+    }
+
+    // the arguments of tokens(), split so no string constant gets too long for a class file
+    private String tokenTable() {
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        for (Name name : table) {
+            part.append(name.line).append(' ').append(name.lexeme).append('\n');
+            if (part.length() > 8_000) {
+                parts.add(quote(part.toString()));
+                part.setLength(0);
+            }
+        }
+        if (part.length() > 0) parts.add(quote(part.toString()));
+        return String.join(",\n            ", parts);
+    }
+
+    // the Owlery line of the last token named at or before a line of the generated source, or of the
+    // first one after it when that line starts a method, like the error of a method that got too large
+    private int line(String[] lines, int line) {
+        int at = Math.min(line, lines.length) - 1;
+        boolean method = at >= 0 && lines[at].startsWith("    private static");
+        for (int i = at; i >= 0 && i < lines.length; i += method ? 1 : -1) {
+            int token = lines[i].lastIndexOf("tok$[");
+            if (token != -1) {
+                return table.get(Integer.parseInt(lines[i].substring(token + 5, lines[i].indexOf(']', token)))).line;
+            }
+        }
+        return 0;
+    }
+
+    private static String type(OType type) {
+        return "owlery.OType." + type.name();
+    }
+
+    private static String quote(String string) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (char c : string.toCharArray()) {
+            switch (c) {
+                case '"' -> builder.append("\\\"");
+                case '\\' -> builder.append("\\\\");
+                case '\n' -> builder.append("\\n");
+                case '\r' -> builder.append("\\r");
+                case '\t' -> builder.append("\\t");
+                default -> {
+                    if (c < 0x20 || c > 0x7e) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    private void line(String line) {
+        out.append("    ".repeat(indent)).append(line).append('\n');
+    }
+
+    private Code evaluate(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void execute(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // javac rejects code after a return, so once the block can not go on it is generated into nothing;
+    // its functions still become methods, earlier calls may name them
+    private void statement(Stmt stmt) {
+        if (reachable) {
+            execute(stmt);
+            return;
+        }
+        StringBuilder live = out;
+        out = new StringBuilder();
+        execute(stmt);
+        out = live;
+        reachable = false;
+    }
+
+    @Override
+    public Code visitDefineExpr(Expr.Define expr) {
+        Code value = evaluate(expr.value);
+        if (expr.slot == -1) {
+            return call("defineGlobal(" + token(expr.name) + ", " + value.text + ", " + type(expr.type) + ")", Kind.OBJECT);
+        }
+        return define(declare(expr.slot, expr.name, expr.type), expr.name, value, expr.type);
+    }
+
+    @Override
+    public Code visitAssignExpr(Expr.Assign expr) {
+        return assign(expr.depth, expr.slot, expr.fallback, expr.name, evaluate(expr.value));
+    }
+
+    @Override
+    public Code visitBooleanBinaryExpr(Expr.BooleanBinary expr) {
+        Code left = evaluate(expr.left);
+        Code right = evaluate(expr.right);
+        switch (expr.operator.type) {
+            case OR -> {
+                if (left.kind == Kind.BOOLEAN && right.kind == Kind.BOOLEAN) {
+                    return new Code("(" + left.text + " || " + right.text + ")", Kind.BOOLEAN);
+                }
+                String temp = temp();
+                return new Code("(isTruthy(" + temp + " = " + left.text + ") ? " + temp + " : " + right.text + ")", Kind.OBJECT);
+            }
+            case AND -> {
+                if (left.kind == Kind.BOOLEAN && right.kind == Kind.BOOLEAN) {
+                    return new Code("(" + left.text + " && " + right.text + ")", Kind.BOOLEAN);
+                }
+                String temp = temp();
+                return new Code("(!isTruthy(" + temp + " = " + left.text + ") ? " + temp + " : " + right.text + ")", Kind.OBJECT);
+            }
+            default -> {
+                return new Code("second(" + left.text + ", " + right.text + ")", Kind.OBJECT);
+            }
+        }
+    }
+
+    @Override
+    public Code visitBinaryExpr(Expr.Binary expr) {
+        Code l = evaluate(expr.left);
+        Code r = evaluate(expr.right);
+        String operator = token(expr.operator);
+        boolean numbers = numeric(l) && numeric(r);
+        Kind arithmetic = l.kind == Kind.INT && r.kind == Kind.INT ? Kind.INT : Kind.DOUBLE;
+
+        switch (expr.operator.type) {
+            case EQUAL, BANG_EQUAL -> {
+                boolean equal = expr.operator.type == TokenType.EQUAL;
+                // Integer.equals(Double) is false, so only identical primitive kinds compare with ==
+                if (l.kind == r.kind && (l.kind == Kind.INT || l.kind == Kind.BOOLEAN)) {
+                    return new Code("(" + l.text + (equal ? " == " : " != ") + r.text + ")", Kind.BOOLEAN);
+                }
+                return new Code((equal ? "" : "!") + "isEqual(" + l.text + ", " + r.text + ")", Kind.BOOLEAN);
+            }
+            case VERTICAL_BAR -> {
+                return new Code("concat(" + l.text + ", \"\", " + r.text + ")", Kind.OBJECT);
+            }
+            case DOUBLE_VERTICAL_BAR -> {
+                return new Code("concat(" + l.text + ", \" \", " + r.text + ")", Kind.OBJECT);
+            }
+            case PLUS -> {
+                if (numbers) return new Code("(" + l.text + " + " + r.text + ")", arithmetic);
+                return new Code("add(" + operator + ", " + l.text + ", " + r.text + ")", Kind.OBJECT);
+            }
+            case MINUS -> {
+                if (numbers) return new Code("(" + l.text + " - " + r.text + ")", arithmetic);
+                return new Code("subtract(" + operator + ", " + l.text + ", " + r.text + ")", Kind.OBJECT);
+            }
+            case STAR -> {
+                if (numbers) return new Code("(" + l.text + " * " + r.text + ")", arithmetic);
+                return new Code("multiply(" + operator + ", " + l.text + ", " + r.text + ")", Kind.OBJECT);
+            }
+            case SLASH -> {
+                if (numbers) return new Code("(" + l.text + " / " + r.text + ")", arithmetic);
+                return new Code("divide(" + operator + ", " + l.text + ", " + r.text + ")", Kind.OBJECT);
+            }
+            case PERCENT -> {
+                if (numbers) return new Code("(" + l.text + " % " + r.text + ")", arithmetic);
+                return new Code("modulo(" + operator + ", " + l.text + ", " + r.text + ")", Kind.OBJECT);
+            }
+            case GREATER -> {
+                if (numbers) return new Code("(" + l.text + " > " + r.text + ")", Kind.BOOLEAN);
+                return new Code("greater(" + operator + ", " + l.text + ", " + r.text + ")", Kind.BOOLEAN);
+            }
+            case GREATER_EQUAL -> {
+                if (numbers) return new Code("(" + l.text + " >= " + r.text + ")", Kind.BOOLEAN);
+                return new Code("greaterEqual(" + operator + ", " + l.text + ", " + r.text + ")", Kind.BOOLEAN);
+            }
+            case LESS -> {
+                if (numbers) return new Code("(" + l.text + " < " + r.text + ")", Kind.BOOLEAN);
+                return new Code("less(" + operator + ", " + l.text + ", " + r.text + ")", Kind.BOOLEAN);
+            }
+            case LESS_EQUAL -> {
+                if (numbers) return new Code("(" + l.text + " <= " + r.text + ")", Kind.BOOLEAN);
+                return new Code("lessEqual(" + operator + ", " + l.text + ", " + r.text + ")", Kind.BOOLEAN);
+            }
+        }
+        return new Code("nothing(second(" + l.text + ", " + r.text + "))", Kind.OBJECT);
+    }
+
+    @Override
+    public Code visitGroupingExpr(Expr.Grouping expr) {
+        return evaluate(expr.expression);
+    }
+
+    @Override
+    public Code visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof Integer i) return new Code(i.toString(), Kind.INT);
+        if (expr.value instanceof Double d) return new Code(literal(d), Kind.DOUBLE);
+        if (expr.value instanceof Boolean b) return new Code(b.toString(), Kind.BOOLEAN);
+        if (expr.value instanceof String s) return new Code(quote(s), Kind.OBJECT);
+        // the cast keeps a lone nothing argument from being taken as the varargs array of call()
+        return new Code("((Object) null)", Kind.OBJECT);
+    }
+
+    // Infinity and NaN are no Java literals, the Optimizer folds them from 1 / 0.0; the class could be
+    // named Double, so the constants are qualified
+    private static String literal(double d) {
+        if (d == Double.POSITIVE_INFINITY) return "java.lang.Double.POSITIVE_INFINITY";
+        if (d == Double.NEGATIVE_INFINITY) return "java.lang.Double.NEGATIVE_INFINITY";
+        if (Double.isNaN(d)) return "java.lang.Double.NaN";
+        return Double.toString(d);
+    }
+
+    @Override
+    public Code visitUnaryExpr(Expr.Unary expr) {
+        Code r = evaluate(expr.right);
+        switch (expr.operator.type) {
+            case MINUS -> {
+                if (r.kind == Kind.DOUBLE) return new Code("(-" + r.text + ")", Kind.DOUBLE);
+                return new Code("negate(" + token(expr.operator) + ", " + r.text + ")", Kind.OBJECT);
+            }
+            case NOT -> {
+                return new Code("(!isTruthy(" + r.text + "))", Kind.BOOLEAN);
+            }
+        }
+        return new Code("nothing(" + r.text + ")", Kind.OBJECT);
+    }
+
+    @Override
+    public Code visitVariableExpr(Expr.Variable expr) {
+        return read(expr.depth, expr.slot, expr.fallback, expr.name);
+    }
+
+    @Override
+    public Code visitCallExpr(Expr.Call expr) {
+        Code callee = evaluate(expr.callee);
+        List<String> args = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            args.add(evaluate(argument).text);
+        }
+
+        if (expr.callee instanceof Expr.Variable variable && variable.depth == -1) {
+            Expr.Function function = direct.get(variable.name.lexeme());
+            if (function != null && function.params.size() == args.size()) {
+                String name = variable.name.lexeme();
+                // until the definition has run the global is undefined, which undefined() reports like a lookup
+                return new Code("(" + name + "$value != null ? " + name + "$(" + String.join(", ", args) + ") : undefined(" + token(variable.name) + "))", Kind.OBJECT);
+            }
+        }
+
+        StringBuilder call = new StringBuilder("call(").append(token(expr.bang)).append(", ").append(callee.text);
+        for (String arg : args) {
+            call.append(", ").append(arg);
+        }
+        return call(call.append(")").toString(), Kind.OBJECT);
+    }
+
+    @Override
+    public Code visitFunctionExpr(Expr.Function expr) {
+        return call(functionValue(expr, compileFunction(expr, fresh("lambda"))), Kind.OBJECT);
+    }
+
+    @Override
+    public Code visitIndexExpr(Expr.Index expr) {
+        Code value = read(expr.depth, expr.slot, expr.fallback, expr.name);
+        return call("index(" + token(expr.name) + ", " + value.text + ", " + evaluate(expr.index).text + ")", Kind.OBJECT);
+    }
+
+    @Override
+    public Code visitListLiteralExpr(Expr.ListLiteral expr) {
+        List<String> elements = new ArrayList<>();
+        for (Expr element : expr.elements) {
+            elements.add(evaluate(element).text);
+        }
+        return call("list(" + String.join(", ", elements) + ")", Kind.OBJECT);
+    }
+
+    @Override
+    public Code visitTypeBinaryExpr(Expr.TypeBinary expr) {
+        Code value = evaluate(expr.expression);
+        if (expr.op.type == TokenType.IS) {
+            return new Code("is(" + type(expr.type) + ", " + value.text + ")", Kind.BOOLEAN);
+        }
+
+        switch (expr.type) {
+            case Integer -> {
+                if (value.kind == Kind.INT) return value;
+            }
+            case Double -> {
+                if (value.kind == Kind.DOUBLE) return value;
+                if (value.kind == Kind.INT) return new Code("((double) " + value.text + ")", Kind.DOUBLE);
+            }
+            case String -> {
+                return new Code("stringify(" + value.text + ")", Kind.OBJECT);
+            }
+            case Boolean -> {
+                if (value.kind == Kind.BOOLEAN) return value;
+            }
+        }
+        return call("convert(" + token(expr.op) + ", " + type(expr.type) + ", " + value.text + ")", Kind.OBJECT);
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (!inFunction
+                && stmt.expression instanceof Expr.Define define
+                && define.slot == -1
+                && direct.get(define.name.lexeme()) == define.value) {
+            Expr.Function function = (Expr.Function) define.value;
+            String name = define.name.lexeme();
+            compileFunction(function, name + "$");
+            fields.append("    private static owlery.Script.Function ").append(name).append("$value;\n");
+            line("defineGlobal(" + token(define.name) + ", " + name + "$value = " + functionValue(function, name + "$") + ", " + type(define.type) + ");");
+            return null;
+        }
+
+        Code code = evaluate(stmt.expression);
+        line((code.statement != null ? code.statement : "discard(" + code.text + ")") + ";");
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        line("System.out.println(stringify(" + evaluate(stmt.expression).text + "));");
+        return null;
+    }
+
+    @Override
+    public Void visitEmptyStmt(Stmt.Empty stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        block("", stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        block("if (" + condition(evaluate(stmt.cond)) + ") ", stmt.thenBlock);
+        boolean then = reachable;
+        reachable = true;
+        if (stmt.elseBlock != null) {
+            block("else ", stmt.elseBlock);
+            reachable |= then;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLoopConditionStmt(Stmt.LoopCondition stmt) {
+        block("while (" + condition(evaluate(stmt.condition)) + ") ", stmt.body);
+        reachable = true;
+        return null;
+    }
+
+    @Override
+    public Void visitLoopRangeStmt(Stmt.LoopRange stmt) {
+        if (!(stmt.from instanceof Expr.Assign assignment)) {
+            String counter = fresh("i");
+            String from = integer(evaluate(stmt.from));
+            if (stmt.invariant) {
+                String bound = fresh("to");
+                block("for (int " + counter + " = " + from + ", " + bound + " = " + integer(evaluate(stmt.to)) + "; "
+                        + counter + " < " + bound + "; " + counter + "++) ", stmt.body);
+            } else {
+                block("for (int " + counter + " = " + from + "; " + counter + " < " + integer(evaluate(stmt.to)) + "; " + counter + "++) ", stmt.body);
+            }
+            reachable = true;
+            return null;
+        }
+
+        Token name = assignment.name;
+        Code from = evaluate(assignment.value);
+        String init;
+        if (assignment.slot == -1) {
+            init = "defineGlobal(" + token(name) + ", " + from.text + ", " + type(OType.Integer) + ")";
+        } else {
+            init = define(declare(assignment.slot, name, OType.Integer), name, from, OType.Integer).statement;
+        }
+        Code counter = read(assignment.depth, assignment.slot, name);
+        String to = integer(evaluate(stmt.to)) + (stmt.incl ? " + 1" : "");
+        if (stmt.invariant) {
+            // defined after the counter, so the bound is still evaluated after the start
+            line(init + ";");
+            init = "";
+            String bound = fresh("to");
+            line("int " + bound + " = " + to + ";");
+            to = bound;
+        }
+        String test = integer(counter) + " < " + to;
+        String increment = assign(assignment.depth, assignment.slot, name, new Code(integer(counter) + " + 1", Kind.INT)).statement;
+        block("for (" + init + "; " + test + "; " + increment + ") ", stmt.body);
+        reachable = true;
+        return null;
+    }
+
+    @Override
+    public Void visitLoopInStmt(Stmt.LoopIn stmt) {
+        Token name = stmt.name;
+        String list = fresh("list");
+        String i = fresh("i");
+        String size = fresh("size");
+        line("Object " + list + " = iterated(" + token(name) + ", " + evaluate(stmt.list).text + ");");
+
+        // the variable takes the type of the elements, so it is never fixed and lives in a Slot
+        String element = "element(" + list + ", " + i + "), elementType(" + list + ")";
+        String define;
+        if (stmt.slot == -1) {
+            define = "defineGlobal(" + token(name) + ", " + element + ");";
+        } else {
+            define = declare(stmt.slot, name, OType.Flexible).name + ".define(" + token(name) + ", " + element + ");";
+        }
+        block("for (int " + i + " = 0, " + size + " = size(" + list + "); " + i + " < " + size + "; " + i + "++) ", define, stmt.body);
+        reachable = true;
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        // a return at the top level ends the script, so its chunk tells run$ not to go on
+        if (!inFunction) {
+            line("return false;");
+        } else if (stmt.value == null) {
+            line("return null;");
+        } else {
+            line("return " + evaluate(stmt.value).text + ";");
+        }
+        reachable = false;
+        return null;
+    }
+}
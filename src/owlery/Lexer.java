@@ -1,48 +1,42 @@
 package owlery;
 
+import java.nio.CharBuffer;
 import java.util.*;
 
+/**
+ * Scans the source as a char array. Tokens only remember where they are in it and cut out their
+ * lexeme when asked for one, except identifiers, which are interned while scanning so that equal
+ * names share one String and every name after the first allocates nothing.
+ * A lexer for a TokenStream scans the source a piece at a time instead, see scan.
+ */
 public class Lexer {
-    private final String source;
-    private final List<Token> tokens;
+    private char[] source;
+    private int end;
+    private CharSequence chars;
+    private List<Token> tokens;
 
     private int start, current, line;
 
-    private static final Map<String, TokenType> keywords;
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", TokenType.AND);
-        keywords.put("or", TokenType.OR);
-        keywords.put("xor", TokenType.XOR);
-        keywords.put("not", TokenType.NOT);
-        keywords.put("AND", TokenType.BIT_AND);
-        keywords.put("OR", TokenType.BIT_OR);
-        keywords.put("XOR", TokenType.BIT_XOR);
-        keywords.put("NOT", TokenType.BIT_NOT);
-        keywords.put("class", TokenType.CLASS);
-        keywords.put("AND", TokenType.BIT_AND);
-        keywords.put("loop", TokenType.LOOP);
-        keywords.put("to", TokenType.TO);
-        keywords.put("in", TokenType.IN);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("if", TokenType.IF);
-        keywords.put("else", TokenType.ELSE);
-        keywords.put("nothing", TokenType.NOTHING);
-        keywords.put("true", TokenType.TRUE);
-        keywords.put("false", TokenType.FALSE);
-        keywords.put("hoot", TokenType.PRINT);
-        keywords.put("incl", TokenType.INCL);
-        keywords.put("integer", TokenType.T_INTEGER);
-        keywords.put("double", TokenType.T_DOUBLE);
-        keywords.put("string", TokenType.T_STRING);
-        keywords.put("boolean", TokenType.T_BOOLEAN);
-        keywords.put("list", TokenType.T_LIST);
-        keywords.put("callable", TokenType.T_CALLABLE);
-        keywords.put("is", TokenType.IS);
-    }
+    // a stream reuses its buffer for the next piece, so its tokens can not point into it
+    private final boolean streaming;
+    // whether the source ends where the script ends
+    private boolean last = true;
+    // a string that goes on past the piece, scanning stops at its start
+    private boolean unfinished = false;
+
+    // open addressing table of the identifiers seen so far, its size is a power of two
+    private String[] names = new String[64];
+    private int nameCount = 0;
 
     Lexer(String source) {
+        this(source.toCharArray());
+    }
+
+    Lexer(char[] source) {
         this.source = source;
+        this.end = source.length;
+        this.chars = CharBuffer.wrap(source);
+        this.streaming = false;
         tokens = new ArrayList<>();
 
         start = 0;
@@ -50,6 +44,12 @@ public class Lexer {
         line = 1;
     }
 
+    // a lexer for a stream, see scan
+    Lexer() {
+        this.streaming = true;
+        line = 1;
+    }
+
     List<Token> scanTokens() {
         while (!isAtEnd()) {
             start = current;
@@ -60,8 +60,28 @@ public class Lexer {
         return tokens;
     }
 
+    // scans source[0, length) into tokens and returns how much of it was scanned: everything but a
+    // string that goes on past a piece which is not the last one
+    int scan(char[] source, int length, boolean last, List<Token> tokens) {
+        this.source = source;
+        this.end = length;
+        this.chars = CharBuffer.wrap(source);
+        this.last = last;
+        this.tokens = tokens;
+
+        current = 0;
+        unfinished = false;
+        while (!isAtEnd() && !unfinished) {
+            start = current;
+            scanToken();
+        }
+
+        if (last) tokens.add(new Token(TokenType.EOF, "", null, line));
+        return current;
+    }
+
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= end;
     }
 
     private void scanToken() {
@@ -139,14 +159,14 @@ public class Lexer {
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (source[current] != expected) return false;
 
         current++;
         return true;
     }
 
     private char advance() {
-        return source.charAt(current++);
+        return source[current++];
     }
 
     private void addToken(TokenType type) {
@@ -154,13 +174,19 @@ public class Lexer {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        if (!streaming) {
+            tokens.add(new Token(type, source, start, current - start, literal, line));
+        } else if (literal != null) {
+            tokens.add(new Token(type, new String(source, start, current - start), literal, line));
+        } else {
+            // the few distinct punctuation and keyword lexemes are shared like names
+            tokens.add(new Token(type, intern(), null, line));
+        }
     }
 
     private char peek (int lookahead) {
-        if (current + lookahead >= source.length()) return '\0';
-        return source.charAt(current + lookahead);
+        if (current + lookahead >= end) return '\0';
+        return source[current + lookahead];
     }
 
     private boolean isDigit(char c) {
@@ -185,6 +211,12 @@ public class Lexer {
             advance();
         }
 
+        if (isAtEnd() && !last) {
+            current = start;
+            unfinished = true;
+            return;
+        }
+
         if (isAtEnd()) {
             Owlery.error(line, "unterminated string, reached end of file");
             return;
@@ -198,7 +230,7 @@ public class Lexer {
         // last "
         advance();
 
-        String value = source.substring(start + 1, current - 1);
+        String value = new String(source, start + 1, current - start - 2);
         addToken(TokenType.STRING, value);
     }
 
@@ -208,16 +240,98 @@ public class Lexer {
         if (peek(0) == '.' && isDigit(peek(1))) {
             advance();
             while (isDigit(peek(0))) advance();
-            addToken(TokenType.DOUBLE, Double.parseDouble(source.substring(start, current)));
+            addToken(TokenType.DOUBLE, Double.parseDouble(new String(source, start, current - start)));
             return;
         }
-        addToken(TokenType.INTEGER, Integer.parseInt(source.substring(start, current)));
+        addToken(TokenType.INTEGER, Integer.parseInt(chars, start, current, 10));
     }
 
     private void identifier() {
         while (isAlphaNumeric(peek(0))) advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        addToken(type == null ? TokenType.IDENTIFIER : type);
+        TokenType type = keyword();
+        if (type == TokenType.IDENTIFIER) {
+            tokens.add(new Token(type, intern(), null, line));
+        } else {
+            addToken(type);
+        }
+    }
+
+    // the keyword the current lexeme spells, found by its first character and length without cutting it out
+    private TokenType keyword() {
+        return switch (source[start]) {
+            case 'a' -> is("and") ? TokenType.AND : TokenType.IDENTIFIER;
+            case 'b' -> is("boolean") ? TokenType.T_BOOLEAN : TokenType.IDENTIFIER;
+            case 'c' -> is("class") ? TokenType.CLASS : is("callable") ? TokenType.T_CALLABLE : TokenType.IDENTIFIER;
+            case 'd' -> is("double") ? TokenType.T_DOUBLE : TokenType.IDENTIFIER;
+            case 'e' -> is("else") ? TokenType.ELSE : TokenType.IDENTIFIER;
+            case 'f' -> is("false") ? TokenType.FALSE : TokenType.IDENTIFIER;
+            case 'h' -> is("hoot") ? TokenType.PRINT : TokenType.IDENTIFIER;
+            case 'i' -> switch (current - start) {
+                case 2 -> is("if") ? TokenType.IF : is("in") ? TokenType.IN : is("is") ? TokenType.IS : TokenType.IDENTIFIER;
+                case 4 -> is("incl") ? TokenType.INCL : TokenType.IDENTIFIER;
+                case 7 -> is("integer") ? TokenType.T_INTEGER : TokenType.IDENTIFIER;
+                default -> TokenType.IDENTIFIER;
+            };
+            case 'l' -> is("loop") ? TokenType.LOOP : is("list") ? TokenType.T_LIST : TokenType.IDENTIFIER;
+            case 'n' -> is("not") ? TokenType.NOT : is("nothing") ? TokenType.NOTHING : TokenType.IDENTIFIER;
+            case 'o' -> is("or") ? TokenType.OR : TokenType.IDENTIFIER;
+            case 'r' -> is("return") ? TokenType.RETURN : TokenType.IDENTIFIER;
+            case 's' -> is("string") ? TokenType.T_STRING : TokenType.IDENTIFIER;
+            case 't' -> is("to") ? TokenType.TO : is("true") ? TokenType.TRUE : TokenType.IDENTIFIER;
+            case 'x' -> is("xor") ? TokenType.XOR : TokenType.IDENTIFIER;
+            case 'A' -> is("AND") ? TokenType.BIT_AND : TokenType.IDENTIFIER;
+            case 'N' -> is("NOT") ? TokenType.BIT_NOT : TokenType.IDENTIFIER;
+            case 'O' -> is("OR") ? TokenType.BIT_OR : TokenType.IDENTIFIER;
+            case 'X' -> is("XOR") ? TokenType.BIT_XOR : TokenType.IDENTIFIER;
+            default -> TokenType.IDENTIFIER;
+        };
+    }
+
+    private boolean is(String keyword) {
+        return keyword.length() == current - start && spells(keyword);
+    }
+
+    private boolean spells(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) != source[start + i]) return false;
+        }
+        return true;
+    }
+
+    // the one String for the current lexeme
+    private String intern() {
+        int length = current - start;
+        int hash = 0;
+        for (int i = start; i < current; i++) {
+            hash = 31 * hash + source[i];
+        }
+
+        int mask = names.length - 1;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        for (String name = names[index]; name != null; name = names[index]) {
+            if (name.length() == length && spells(name)) return name;
+            index = (index + 1) & mask;
+        }
+
+        String name = new String(source, start, length);
+        names[index] = name;
+        if (++nameCount * 2 > names.length) rehash();
+        return name;
+    }
+
+    // String.hashCode is the same hash intern() computes from the chars
+    private void rehash() {
+        String[] old = names;
+        names = new String[old.length * 2];
+        int mask = names.length - 1;
+        for (String name : old) {
+            if (name == null) continue;
+            int hash = name.hashCode();
+            int index = (hash ^ (hash >>> 16)) & mask;
+            while (names[index] != null) {
+                index = (index + 1) & mask;
+            }
+            names[index] = name;
+        }
     }
 }
@@ -0,0 +1,55 @@
+package owlery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The functions of lib.owlry. The file is read from the class path, so also from inside a jar, and
+ * parsed and resolved once per JVM, the first time a program looks up a global nobody defined.
+ * The resolved definitions are shared by every Interpreter and engine; a global Environment only
+ * turns one into a function of its engine when the program first looks up its name.
+ */
+final class Library {
+    // the class loader initializes this on first use, once, even with several threads asking
+    private static final class Definitions {
+        static final Map<String, Expr.Define> ALL = load();
+    }
+
+    private Library() {
+    }
+
+    // the definition of a library function, or null if the library defines no such global
+    static Expr.Define definition(String name) {
+        return Definitions.ALL.get(name);
+    }
+
+    private static Map<String, Expr.Define> load() {
+        byte[] source;
+        try (InputStream in = Library.class.getResourceAsStream("lib.owlry")) {
+            if (in == null) throw new IllegalStateException("lib.owlry is missing from the class path");
+            source = in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not read lib.owlry", e);
+        }
+
+        // parsed without the AstCache, an embedded engine does not write into the user's home
+        List<Stmt> statements = new Optimizer().optimize(new Parser(new Lexer(new String(source, StandardCharsets.UTF_8)).scanTokens()).parse());
+        new Resolver().resolve(statements);
+
+        Map<String, Expr.Define> definitions = new HashMap<>();
+        for (Stmt statement : statements) {
+            // running anything else would depend on which function is looked up first
+            if (!(statement instanceof Stmt.Expression s && s.expression instanceof Expr.Define define
+                    && define.value instanceof Expr.Function)) {
+                throw new IllegalStateException("lib.owlry may only define functions");
+            }
+            definitions.put(define.name.lexeme(), define);
+        }
+        return Map.copyOf(definitions);
+    }
+}
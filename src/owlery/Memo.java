@@ -0,0 +1,83 @@
+package owlery;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of a pure function (see Purity) by argument values, evicting the least recently used
+ * result once it holds capacity of them. Caching is off unless --memo sets a capacity; the hit and
+ * miss counters are reported by --stats. The workers of a parallel loop share the caches of the
+ * functions they call, so a cache locks itself.
+ */
+final class Memo {
+    static final int DEFAULT_CAPACITY = 1024;
+    // what get() returns for arguments without a result, nothing is a result too
+    static final Object MISSING = new Object();
+
+    private static final List<Memo> caches = new ArrayList<>();
+    static int capacity = 0;
+
+    private final Map<List<Object>, Object> results;
+    long hits = 0;
+    long misses = 0;
+    long evictions = 0;
+
+    private Memo(int limit) {
+        results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+                if (size() <= limit) return false;
+                evictions++;
+                return true;
+            }
+        };
+        synchronized (caches) {
+            caches.add(this);
+        }
+    }
+
+    // a cache for the function, or null if its calls can not or should not be cached
+    static Memo of(Expr.Function function) {
+        return function.pure && capacity > 0 ? new Memo(capacity) : null;
+    }
+
+    // ropes compare by their text, the key must too; a list can change after the call, so arguments
+    // with one get no key and the call is not cached
+    static List<Object> key(List<Object> args) {
+        Object[] key = args.toArray();
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] instanceof Rope rope) key[i] = rope.toString();
+            if (key[i] instanceof OList) return null;
+        }
+        return Arrays.asList(key);
+    }
+
+    synchronized Object get(List<Object> key) {
+        Object result = results.getOrDefault(key, MISSING);
+        if (result == MISSING) misses++;
+        else hits++;
+        return result;
+    }
+
+    // a rope result is stored as its text, appending to it from another thread would write its builder
+    synchronized void put(List<Object> key, Object result) {
+        results.put(key, result instanceof Rope rope ? rope.toString() : result);
+    }
+
+    static void report(PrintStream out) {
+        long hits = 0, misses = 0, evictions = 0;
+        synchronized (caches) {
+            for (Memo cache : caches) {
+                hits += cache.hits;
+                misses += cache.misses;
+                evictions += cache.evictions;
+            }
+        }
+        out.println("memo: " + caches.size() + " cached functions (capacity " + capacity + "), "
+                + hits + " hits, " + misses + " misses, " + evictions + " evictions");
+    }
+}
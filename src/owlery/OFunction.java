@@ -3,10 +3,12 @@ package owlery;
 import java.util.List;
 
 public class OFunction implements OCallable {
-    Expr.Function function;
+    final Expr.Function function;
+    final Memo memo;
 
     OFunction(Expr.Function function) {
         this.function = function;
+        this.memo = Memo.of(function);
     }
 
     @Override
@@ -16,16 +18,24 @@ public class OFunction implements OCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> args) {
-        Environment environment = new Environment(interpreter.globals);
+        if (memo == null) return run(interpreter, args);
+
+        List<Object> key = Memo.key(args);
+        if (key == null) return run(interpreter, args);
+        Object result = memo.get(key);
+        if (result == Memo.MISSING) {
+            result = run(interpreter, args);
+            memo.put(key, result);
+        }
+        return result;
+    }
+
+    private Object run(Interpreter interpreter, List<Object> args) {
+        Environment environment = new Environment(interpreter.globals, function.slots);
         int argCount = 0;
         for (Token param : function.params) {
-            environment.define(param, args.get(argCount++), OType.Flexible);
-        }
-        try {
-            interpreter.executeBlock(function.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+            environment.defineAt(argCount, param, args.get(argCount++), OType.Flexible);
         }
-        return null;
+        return interpreter.invoke(function, environment);
     }
 }
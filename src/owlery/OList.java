@@ -0,0 +1,126 @@
+package owlery;
+
+import java.util.Arrays;
+
+/**
+ * The value of a list literal like [1, 2, 3]. While every element is an #integer they are kept in
+ * an int[], while every one is a #double in a double[], so reading and looping over a list of
+ * numbers boxes nothing; the first element of any other type moves them into an Object[] for good.
+ * append! doubles the array when it is full, so appending costs amortized O(1). The language
+ * compares lists by their elements and prints them like the literal.
+ */
+final class OList {
+    private static final int[] NO_INTS = {};
+
+    // exactly one of them holds the elements; an empty list keeps them as ints until the first append
+    private int[] ints = NO_INTS;
+    private double[] doubles = null;
+    private Object[] objects = null;
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    // the type of every element: #integer or #double while the list is kept unboxed, otherwise flexible
+    OType type() {
+        if (ints != null) return OType.Integer;
+        if (doubles != null) return OType.Double;
+        return OType.Flexible;
+    }
+
+    // unboxed reads for callers that checked type() and the index first
+    int intAt(int index) {
+        return ints[index];
+    }
+
+    double doubleAt(int index) {
+        return doubles[index];
+    }
+
+    Object get(int index) {
+        if (ints != null) return ints[index];
+        if (doubles != null) return doubles[index];
+        return objects[index];
+    }
+
+    // the element at index, for xs[index]
+    Object get(Token name, int index) {
+        check(name, index);
+        return get(index);
+    }
+
+    void check(Token name, int index) {
+        if (index < 0 || index >= size) throw new RuntimeError(name, "index out of bounds for the given list");
+    }
+
+    void add(Object value) {
+        // the first element decides how the list starts out
+        if (size == 0 && !(value instanceof Integer)) {
+            ints = null;
+            if (value instanceof Double) {
+                doubles = new double[4];
+            } else {
+                objects = new Object[4];
+            }
+        }
+
+        if (ints != null && value instanceof Integer i) {
+            if (size == ints.length) ints = Arrays.copyOf(ints, grown());
+            ints[size++] = i;
+        } else if (doubles != null && value instanceof Double d) {
+            if (size == doubles.length) doubles = Arrays.copyOf(doubles, grown());
+            doubles[size++] = d;
+        } else {
+            if (objects == null) box();
+            if (size == objects.length) objects = Arrays.copyOf(objects, grown());
+            objects[size++] = value;
+        }
+    }
+
+    private int grown() {
+        return Math.max(4, size * 2);
+    }
+
+    // moves the elements into an Object[], from now on the list holds any type
+    private void box() {
+        objects = new Object[grown()];
+        for (int i = 0; i < size; i++) {
+            objects[i] = get(i);
+        }
+        ints = null;
+        doubles = null;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof OList list) || list.size != size) return false;
+        for (int i = 0; i < size; i++) {
+            if (!Interpreter.isEqual(get(i), list.get(i))) return false;
+        }
+        return true;
+    }
+
+    // ropes are equal to strings with their text, so they hash by it
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < size; i++) {
+            Object element = get(i);
+            if (element instanceof Rope rope) element = rope.toString();
+            hash = 31 * hash + (element == null ? 0 : element.hashCode());
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) text.append(", ");
+            text.append(Interpreter.stringify(get(i)));
+        }
+        return text.append(']').toString();
+    }
+}
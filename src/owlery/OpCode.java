@@ -0,0 +1,132 @@
+package owlery;
+
+/**
+ * Instruction set of the VM. Opcodes and their operands take an int each in the code, so the VM
+ * reads them without decoding, but operands are limited to 16 bits: unsigned, or signed for jump
+ * offsets, which are relative to the end of the instruction. Only an imm takes the whole int.
+ */
+final class OpCode {
+    private OpCode() {}
+
+    static final byte CONSTANT = 0;        // index               -> push constants[index]
+    static final byte POP = 1;
+    static final byte GET_LOCAL = 2;       // slot, name
+    static final byte SET_LOCAL = 3;       // slot, name           type checked, keeps the value
+    static final byte DEFINE_LOCAL = 4;    // slot, name, type     pops the value
+    static final byte LOAD = 5;            // slot                 hidden slots, no checks
+    static final byte STORE = 6;           // slot
+    static final byte CLEAR = 7;           // slot, count          forgets the variables of a block
+    static final byte GET_GLOBAL = 8;      // name
+    static final byte SET_GLOBAL = 9;      // name
+    static final byte DEFINE_GLOBAL = 10;  // name, type
+
+    static final byte ADD = 11;            // operator token for all arithmetic and comparisons
+    static final byte SUBTRACT = 12;
+    static final byte MULTIPLY = 13;
+    static final byte DIVIDE = 14;
+    static final byte MODULO = 15;
+    static final byte GREATER = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte LESS = 18;
+    static final byte LESS_EQUAL = 19;
+    static final byte EQUAL = 20;
+    static final byte NOT_EQUAL = 21;
+    static final byte CONCAT = 22;
+    static final byte CONCAT_SPACE = 23;
+    static final byte NEGATE = 24;         // operator
+    static final byte NOT = 25;
+    static final byte IS = 26;             // type
+    static final byte CONVERT = 27;        // type, operator
+    static final byte INDEX = 28;          // name
+
+    static final byte JUMP = 29;           // offset
+    static final byte JUMP_IF_FALSE = 30;  // offset               pops the condition
+    static final byte JUMP_IF_TRUE_OR_POP = 31;
+    static final byte JUMP_IF_FALSE_OR_POP = 32;
+    static final byte RANGE_LESS = 33;     // incl                 (int) counter < (int) to + incl
+    static final byte INCREMENT = 34;
+
+    static final byte CALL = 35;           // argument count, bang, inline cache
+    static final byte FUNCTION = 36;       // index of a Chunk in the constant pool
+    static final byte PRINT = 37;
+    static final byte RETURN = 38;
+
+    // fused forms for range loops, with the bound (plus one for an inclusive loop) in a slot of
+    // the primitive lane; each jumps back to the start of the body while the counter is below it
+    static final byte LOOP_NEXT = 39;      // counter slot, bound, offset     increments the counter
+    static final byte GLOBAL_LOOP_TEST = 40; // name, bound, offset           jumps out unless the global counter is below the bound
+    static final byte GLOBAL_LOOP_NEXT = 41; // name, bound, offset           increments the global counter
+
+    static final byte LIST = 42;           // count                pops count elements, pushes a list of them
+    // loops over a list, with the list, the next index and the size it started with in three hidden
+    // slots, the last two in the primitive lane
+    static final byte ITERATE = 43;        // slot, name           pops the list into the hidden slots
+    // slot, variable, name, offset   defines the variable (0xffff: global) as the next element, jumps out after the last
+    static final byte NEXT = 44;
+
+    // a variable whose definition might not have run, see Resolver.fallback: the first defined of
+    // the slots in the int[] constant is used, else the global
+    static final byte GET_FALLBACK = 45;   // slots, name
+    static final byte SET_FALLBACK = 46;   // slots, name
+
+    // locals with an #integer or #double lane are kept unboxed in the primitive lane, and so are
+    // the ints and doubles computed from them: the typed instructions work on its slots like on
+    // registers, d is the one they write, a and b the ones they read and imm an int in the code
+    static final byte MOVE = 47;           // d, a
+    static final byte INT = 48;            // d, imm
+    static final byte DOUBLE = 49;         // d, index of the double in the constants
+    static final byte INT_TO_DOUBLE = 50;  // d, a
+    static final byte NEGATE_DOUBLE = 51;  // d, a
+    static final byte BOX_INT = 52;        // a                    pushes the slot boxed
+    static final byte BOX_DOUBLE = 53;     // a
+    static final byte UNBOX_INT = 54;      // d                    pops into the slot, (int) cast like the other engines do for bounds
+    static final byte SET_UNBOXED = 55;    // slot, name           type checked, keeps the boxed value
+    static final byte DEFINE_PRIMITIVE = 56; // slot, a, type      defines the slot as a
+    static final byte DEFINE_UNBOXED = 57; // slot, name, type     type checked, pops the value
+    static final byte INDEX_INT = 58;      // a, name              INDEX with the index in a slot
+    static final byte INDEX_LOCAL_INT = 59; // slot, a, name       pushes the local indexed by a
+    static final byte ADD_INT = 60;        // d, a, b
+    static final byte SUBTRACT_INT = 61;
+    static final byte MULTIPLY_INT = 62;
+    static final byte DIVIDE_INT = 63;
+    static final byte MODULO_INT = 64;
+    static final byte ADD_INT_IMMEDIATE = 65; // d, a, imm
+    static final byte SUBTRACT_INT_IMMEDIATE = 66;
+    static final byte MULTIPLY_INT_IMMEDIATE = 67;
+    static final byte DIVIDE_INT_IMMEDIATE = 68;
+    static final byte MODULO_INT_IMMEDIATE = 69;
+    static final byte ADD_DOUBLE = 70;     // d, a, b
+    static final byte SUBTRACT_DOUBLE = 71;
+    static final byte MULTIPLY_DOUBLE = 72;
+    static final byte DIVIDE_DOUBLE = 73;
+    static final byte MODULO_DOUBLE = 74;
+
+    // comparisons fused with the jump of a condition, which jump when it does not hold
+    static final byte JUMP_UNLESS_GREATER_INT = 75; // a, b, offset
+    static final byte JUMP_UNLESS_GREATER_EQUAL_INT = 76;
+    static final byte JUMP_UNLESS_LESS_INT = 77;
+    static final byte JUMP_UNLESS_LESS_EQUAL_INT = 78;
+    static final byte JUMP_UNLESS_EQUAL_INT = 79;
+    static final byte JUMP_UNLESS_NOT_EQUAL_INT = 80;
+    static final byte JUMP_UNLESS_GREATER_INT_IMMEDIATE = 81; // a, imm, offset
+    static final byte JUMP_UNLESS_GREATER_EQUAL_INT_IMMEDIATE = 82;
+    static final byte JUMP_UNLESS_LESS_INT_IMMEDIATE = 83;
+    static final byte JUMP_UNLESS_LESS_EQUAL_INT_IMMEDIATE = 84;
+    static final byte JUMP_UNLESS_EQUAL_INT_IMMEDIATE = 85;
+    static final byte JUMP_UNLESS_NOT_EQUAL_INT_IMMEDIATE = 86;
+    static final byte JUMP_UNLESS_GREATER_DOUBLE = 87; // a, b, offset
+    static final byte JUMP_UNLESS_GREATER_EQUAL_DOUBLE = 88;
+    static final byte JUMP_UNLESS_LESS_DOUBLE = 89;
+    static final byte JUMP_UNLESS_LESS_EQUAL_DOUBLE = 90;
+    static final byte JUMP_UNLESS_GREATER = 91; // operator, offset  pops both operands
+    static final byte JUMP_UNLESS_GREATER_EQUAL = 92;
+    static final byte JUMP_UNLESS_LESS = 93;
+    static final byte JUMP_UNLESS_LESS_EQUAL = 94;
+    static final byte JUMP_UNLESS_EQUAL = 95;
+    static final byte JUMP_UNLESS_NOT_EQUAL = 96;
+
+    // `x: x op e` as a statement, with e on the stack: x is read after e, so the compiler only
+    // fuses it when e can not assign x; pops e
+    static final byte UPDATE_LOCAL = 97;   // slot, name, operator
+    static final byte UPDATE_GLOBAL = 98;  // name, operator
+}
@@ -0,0 +1,332 @@
+package owlery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static owlery.Interpreter.isTruthy;
+
+/**
+ * Rewrites the parsed tree before it is resolved. Operators on literals are folded with the
+ * interpreter's own code, so they give exactly the values they would give at run time (anything
+ * that would raise an error is left alone and still fails at run time). Branches on constant
+ * conditions are pruned, empty statements dropped, groupings and blocks that declare nothing
+ * flattened. Blocks that declare something keep their scope.
+ */
+public class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    int nodesBefore = 0;
+    int nodesAfter = 0;
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        nodesBefore += count(statements);
+        List<Stmt> optimized = optimizeAll(statements);
+        nodesAfter += count(optimized);
+        return optimized;
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt stmt = optimize(statement);
+            if (stmt instanceof Stmt.Empty) continue;
+
+            // a block that declares nothing needs no scope of its own
+            if (stmt instanceof Stmt.Block block && !declares(block.statements)) {
+                optimized.addAll(block.statements);
+            } else {
+                optimized.add(stmt);
+            }
+        }
+        return optimized;
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // the body of an if or a loop, with its scope dropped if it declares nothing
+    private Stmt body(Stmt stmt) {
+        Stmt body = optimize(stmt);
+        if (body instanceof Stmt.Block block && !declares(block.statements)) {
+            if (block.statements.isEmpty()) return new Stmt.Empty(0);
+            if (block.statements.size() == 1) return block.statements.get(0);
+        }
+        return body;
+    }
+
+    static boolean declares(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (declares(statement)) return true;
+        }
+        return false;
+    }
+
+    // whether the statement defines a variable in the scope it runs in; nested blocks and functions have their own
+    private static boolean declares(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression s) return declares(s.expression);
+        if (stmt instanceof Stmt.Print s) return declares(s.expression);
+        if (stmt instanceof Stmt.If s) {
+            return declares(s.cond) || declares(s.thenBlock) || (s.elseBlock != null && declares(s.elseBlock));
+        }
+        if (stmt instanceof Stmt.LoopCondition s) return declares(s.condition) || declares(s.body);
+        if (stmt instanceof Stmt.LoopRange s) {
+            return s.from instanceof Expr.Assign || declares(s.from) || declares(s.to) || declares(s.body);
+        }
+        if (stmt instanceof Stmt.LoopIn) return true;
+        if (stmt instanceof Stmt.Return s) return s.value != null && declares(s.value);
+        return false;
+    }
+
+    private static boolean declares(Expr expr) {
+        if (expr instanceof Expr.Define) return true;
+        if (expr instanceof Expr.Assign e) return declares(e.value);
+        if (expr instanceof Expr.BooleanBinary e) return declares(e.left) || declares(e.right);
+        if (expr instanceof Expr.Binary e) return declares(e.left) || declares(e.right);
+        if (expr instanceof Expr.Grouping e) return declares(e.expression);
+        if (expr instanceof Expr.Unary e) return declares(e.right);
+        if (expr instanceof Expr.Call e) {
+            if (declares(e.callee)) return true;
+            for (Expr argument : e.arguments) {
+                if (declares(argument)) return true;
+            }
+            return false;
+        }
+        if (expr instanceof Expr.Index e) return declares(e.index);
+        if (expr instanceof Expr.TypeBinary e) return declares(e.expression);
+        if (expr instanceof Expr.ListLiteral e) {
+            for (Expr element : e.elements) {
+                if (declares(element)) return true;
+            }
+            return false;
+        }
+        return false;
+    }
+
+    static int count(List<Stmt> statements) {
+        int count = 0;
+        for (Stmt statement : statements) {
+            count += count(statement);
+        }
+        return count;
+    }
+
+    private static int count(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression s) return 1 + count(s.expression);
+        if (stmt instanceof Stmt.Print s) return 1 + count(s.expression);
+        if (stmt instanceof Stmt.Block s) return 1 + count(s.statements);
+        if (stmt instanceof Stmt.If s) {
+            return 1 + count(s.cond) + count(s.thenBlock) + (s.elseBlock != null ? count(s.elseBlock) : 0);
+        }
+        if (stmt instanceof Stmt.LoopCondition s) return 1 + count(s.condition) + count(s.body);
+        if (stmt instanceof Stmt.LoopRange s) return 1 + count(s.from) + count(s.to) + count(s.body);
+        if (stmt instanceof Stmt.LoopIn s) return 1 + count(s.list) + count(s.body);
+        if (stmt instanceof Stmt.Return s) return 1 + (s.value != null ? count(s.value) : 0);
+        return 1;
+    }
+
+    private static int count(Expr expr) {
+        if (expr instanceof Expr.Define e) return 1 + count(e.value);
+        if (expr instanceof Expr.Assign e) return 1 + count(e.value);
+        if (expr instanceof Expr.BooleanBinary e) return 1 + count(e.left) + count(e.right);
+        if (expr instanceof Expr.Binary e) return 1 + count(e.left) + count(e.right);
+        if (expr instanceof Expr.Grouping e) return 1 + count(e.expression);
+        if (expr instanceof Expr.Unary e) return 1 + count(e.right);
+        if (expr instanceof Expr.Call e) {
+            int count = 1 + count(e.callee);
+            for (Expr argument : e.arguments) {
+                count += count(argument);
+            }
+            return count;
+        }
+        if (expr instanceof Expr.Function e) return 1 + count(e.body);
+        if (expr instanceof Expr.Index e) return 1 + count(e.index);
+        if (expr instanceof Expr.TypeBinary e) return 1 + count(e.expression);
+        if (expr instanceof Expr.ListLiteral e) {
+            int count = 1;
+            for (Expr element : e.elements) {
+                count += count(element);
+            }
+            return count;
+        }
+        return 1;
+    }
+
+    @Override
+    public Expr visitDefineExpr(Expr.Define expr) {
+        return new Expr.Define(expr.name, optimize(expr.value), expr.type);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return new Expr.Assign(expr.name, optimize(expr.value));
+    }
+
+    @Override
+    public Expr visitBooleanBinaryExpr(Expr.BooleanBinary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal literal) {
+            switch (expr.operator.type) {
+                case OR -> {
+                    return isTruthy(literal.value) ? left : right;
+                }
+                case AND -> {
+                    return !isTruthy(literal.value) ? left : right;
+                }
+                default -> {
+                    return right;
+                }
+            }
+        }
+        return new Expr.BooleanBinary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr.Binary binary = new Expr.Binary(optimize(expr.left), expr.operator, optimize(expr.right));
+        if (binary.left instanceof Expr.Literal l && binary.right instanceof Expr.Literal r) {
+            try {
+                Object value = Interpreter.binary(binary, l.value, r.value);
+                // literals stay plain strings, the engines only build ropes at run time
+                return new Expr.Literal(value instanceof Rope rope ? rope.toString() : value);
+            } catch (RuntimeError | ArithmeticException e) {
+                // keep it, so the error is raised when and where the program would raise it
+            }
+        }
+        return binary;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal literal) {
+            if (expr.operator.type == TokenType.NOT) return new Expr.Literal(!isTruthy(literal.value));
+            if (expr.operator.type == TokenType.MINUS && literal.value instanceof Double d) return new Expr.Literal(-d);
+        }
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(optimize(argument));
+        }
+        return new Expr.Call(optimize(expr.callee), expr.bang, arguments);
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        return new Expr.Function(expr.params, optimizeAll(expr.body));
+    }
+
+    @Override
+    public Expr visitIndexExpr(Expr.Index expr) {
+        return new Expr.Index(expr.name, optimize(expr.index));
+    }
+
+    @Override
+    public Expr visitListLiteralExpr(Expr.ListLiteral expr) {
+        List<Expr> elements = new ArrayList<>();
+        for (Expr element : expr.elements) {
+            elements.add(optimize(element));
+        }
+        // a fresh list every time, append! changes it, so it never becomes a literal
+        return new Expr.ListLiteral(expr.bracket, elements);
+    }
+
+    @Override
+    public Expr visitTypeBinaryExpr(Expr.TypeBinary expr) {
+        Expr expression = optimize(expr.expression);
+        if (expression instanceof Expr.Literal literal) {
+            if (expr.op.type == TokenType.IS) {
+                return new Expr.Literal(Value.compatible(expr.type, literal.value));
+            }
+            try {
+                return new Expr.Literal(VM.convert(literal.value, expr.type, expr.op));
+            } catch (RuntimeError e) {
+                // not convertible, fails at run time
+            }
+        }
+        return new Expr.TypeBinary(expression, expr.op, expr.type);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        return new Stmt.Expression(optimize(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(optimize(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitEmptyStmt(Stmt.Empty stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        return new Stmt.Block(optimizeAll(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr cond = optimize(stmt.cond);
+        if (cond instanceof Expr.Literal literal) {
+            if (isTruthy(literal.value)) return optimize(stmt.thenBlock);
+            return stmt.elseBlock != null ? optimize(stmt.elseBlock) : new Stmt.Empty(0);
+        }
+        return new Stmt.If(cond, body(stmt.thenBlock), stmt.elseBlock != null ? body(stmt.elseBlock) : null);
+    }
+
+    @Override
+    public Stmt visitLoopConditionStmt(Stmt.LoopCondition stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal literal && !isTruthy(literal.value)) {
+            return new Stmt.Empty(0);
+        }
+        return new Stmt.LoopCondition(condition, body(stmt.body));
+    }
+
+    @Override
+    public Stmt visitLoopRangeStmt(Stmt.LoopRange stmt) {
+        Expr from = optimize(stmt.from);
+        Expr to = optimize(stmt.to);
+        // an unnamed loop over an empty constant range does nothing, a named one still defines its counter
+        if (from instanceof Expr.Literal f && f.value instanceof Integer start
+                && to instanceof Expr.Literal t && t.value instanceof Integer end && start >= end) {
+            return new Stmt.Empty(0);
+        }
+        return new Stmt.LoopRange(from, to, body(stmt.body), stmt.incl, stmt.parallel);
+    }
+
+    @Override
+    public Stmt visitLoopInStmt(Stmt.LoopIn stmt) {
+        return new Stmt.LoopIn(stmt.name, optimize(stmt.list), body(stmt.body));
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        return new Stmt.Return(stmt.keyword, stmt.value != null ? optimize(stmt.value) : null);
+    }
+}
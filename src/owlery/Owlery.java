@@ -5,9 +5,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Owlery {
@@ -15,9 +16,61 @@ public class Owlery {
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
+    private static String engine = "tree";
+    private static boolean stats = false;
+    // samples per second of --profile, 0 when not profiling
+    private static int profileRate = 0;
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("You can run a file by \"owlery <file>\"");
+        while (args.length > 0 && args[0].startsWith("--")) {
+            if (args[0].startsWith("--engine=")) {
+                engine = args[0].substring("--engine=".length());
+                if (!List.of("tree", "closure", "vm").contains(engine)) {
+                    System.out.println("Unknown engine, use \"--engine=tree\", \"--engine=closure\" or \"--engine=vm\"");
+                    System.exit(64);
+                }
+            } else if (args[0].equals("--memo")) {
+                Memo.capacity = Memo.DEFAULT_CAPACITY;
+            } else if (args[0].startsWith("--memo=")) {
+                try {
+                    Memo.capacity = Integer.parseInt(args[0].substring("--memo=".length()));
+                } catch (NumberFormatException e) {
+                    System.out.println("The memo capacity must be a number, like \"--memo=1024\"");
+                    System.exit(64);
+                }
+            } else if (args[0].equals("--cache")) {
+                AstCache.enabled = true;
+            } else if (args[0].equals("--profile")) {
+                profileRate = Profiler.DEFAULT_RATE;
+            } else if (args[0].startsWith("--profile=")) {
+                try {
+                    profileRate = Integer.parseInt(args[0].substring("--profile=".length()));
+                } catch (NumberFormatException e) {
+                    profileRate = 0;
+                }
+                if (profileRate <= 0) {
+                    System.out.println("The profile rate must be a positive number of samples a second, like \"--profile=1000\"");
+                    System.exit(64);
+                }
+            } else if (args[0].equals("--stats")) {
+                stats = true;
+                InlineCache.tracking = true;
+            } else {
+                System.out.println("Unknown option " + args[0]);
+                System.exit(64);
+            }
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+
+        if (profileRate > 0 && !engine.equals("tree")) {
+            System.out.println("Only the tree engine can be profiled, leave out \"--engine\" or use \"--engine=tree\"");
+            System.exit(64);
+        }
+
+        if (args.length == 2 && args[0].equals("compile")) {
+            compileFile(args[1]);
+        } else if (args.length > 1) {
+            System.out.println("You can run a file by \"owlery [--engine=tree|closure|vm] [--memo[=capacity]] [--cache] [--stats] [--profile[=rate]] <file>\" or compile it by \"owlery [--cache] [--stats] compile <file>\"");
             System.exit(64);
         } else if (args.length == 1) {
             runFile(args[0]);
@@ -27,15 +80,42 @@ public class Owlery {
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        Path file = Paths.get(path);
+        run(AstCache.parse(file));
+        if (interpreter.profiler != null) interpreter.profiler.finish(file, System.err);
+        if (stats) {
+            if (AstCache.enabled) AstCache.report(System.err);
+            InlineCache.report(System.err);
+            if (Memo.capacity > 0) Memo.report(System.err);
+        }
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
+    private static void compileFile(String path) throws IOException {
+        Path file = Paths.get(path);
+        List<Stmt> statements = AstCache.parse(file);
+        if (hadError) System.exit(65);
+
+        statements = optimize(statements);
+        new Resolver().resolve(statements);
+        // the compiled loops run in order, but a program the engines reject should not compile
+        Purity.analyze(statements);
+        if (hadError) System.exit(65);
+        if (!JvmCompiler.compile(file, statements)) System.exit(hadError ? 65 : 70);
+
+        Path directory = file.toAbsolutePath().getParent();
+        System.out.println("compiled to " + directory.resolve(JvmCompiler.className(file) + ".class")
+                + ", run it with \"java -cp <owlery>" + File.pathSeparator + directory + " " + JvmCompiler.className(file) + "\"");
+    }
+
     private static void runPromt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
+        // every line is analyzed on its own, a later line could redefine a function found pure
+        Memo.capacity = 0;
+        // a profile is written when a file ends, a prompt has none
+        profileRate = 0;
 
         while (true) {
             System.out.print("→ owlery • ");
@@ -50,32 +130,69 @@ public class Owlery {
     private static void run(String source) {
         Lexer lexer = new Lexer(source);
         List<Token> tokens = lexer.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+        run(new Parser(tokens).parse());
+    }
 
+    private static void run(List<Stmt> statements) {
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        statements = optimize(statements);
+        new Resolver().resolve(statements);
+        if (hadError) return;
+        Purity.analyze(statements);
+        if (hadError) return;
+        if (profileRate > 0) interpreter.profiler = new Profiler(statements, profileRate);
+        switch (engine) {
+            case "closure" -> new ClosureCompiler(interpreter).interpret(statements);
+            case "vm" -> vm().interpret(statements);
+            default -> interpreter.interpret(statements);
+        }
+    }
+
+    private static List<Stmt> optimize(List<Stmt> statements) {
+        Optimizer optimizer = new Optimizer();
+        statements = optimizer.optimize(statements);
+        if (stats) {
+            System.err.println("optimizer: " + optimizer.nodesBefore + " nodes -> " + optimizer.nodesAfter + " nodes");
+        }
+        return statements;
+    }
+
+    private static VM vm;
+
+    private static VM vm() {
+        if (vm == null) vm = new VM(interpreter);
+        return vm;
     }
 
     static void error(int line, String message) {
+        if (collected(line, message)) return;
         hadError = true;
         report(line, "", message);
     }
     static void error(Token token, String message) {
+        if (collected(token.line, message)) return;
         hadError = true;
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
         } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            report(token.line, " at '" + token.lexeme() + "'", message);
         }
     }
 
     static void warning(int line, String message) {
+        AstCache.warned(line, message);
+        Diagnostics diagnostics = Owlery.diagnostics.get();
+        if (diagnostics != null) {
+            diagnostics.warnings.add("[line " + line + "] " + message);
+            return;
+        }
         System.out.println("\u001B[33m" + "warning!\n[line "+ line +"] " + message + "\u001B[0m");
     }
 
     static void runtimeError(RuntimeError e) {
+        // only the tree engine knows the function
+        Events.runtimeError(e, engine.equals("tree") ? Events.name(e.function) : null);
         if (e.token != null) {
             System.err.println("\nruntime error\n[line " + e.token.line + "] " + e.getMessage());
         } else {
@@ -84,6 +201,28 @@ public class Owlery {
         hadRuntimeError = true;
     }
 
+    // what the lexer, parser and resolver report while an OwleryEngine compiles on this thread; they print
+    // and set hadError otherwise
+    private static final ThreadLocal<Diagnostics> diagnostics = new ThreadLocal<>();
+
+    static final class Diagnostics {
+        final List<String> errors = new ArrayList<>();
+        final List<String> warnings = new ArrayList<>();
+    }
+
+    // reports of this thread go to diagnostics until collect(null)
+    static void collect(Diagnostics diagnostics) {
+        if (diagnostics == null) Owlery.diagnostics.remove();
+        else Owlery.diagnostics.set(diagnostics);
+    }
+
+    private static boolean collected(int line, String message) {
+        Diagnostics diagnostics = Owlery.diagnostics.get();
+        if (diagnostics == null) return false;
+        diagnostics.errors.add("[line " + line + "] " + message);
+        return true;
+    }
+
     private static void report(int line, String where, String message) {
         System.out.println("[line " + line + "] " + message);
     }
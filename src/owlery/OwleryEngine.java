@@ -0,0 +1,148 @@
+package owlery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs Owlery programs inside a Java application, any number of them at the same time. A program
+ * is compiled once, lexed, parsed, optimized and resolved, and its tree is then shared by every run
+ * of it: the passes are done with it, and what the tree engine still writes into it at run time,
+ * type feedback and inline caches, stays correct when threads race on it. Every run gets an
+ * Interpreter of its own, with its own globals, output and input, so runs see nothing of each
+ * other. Lexer, parser, resolver and purity errors are thrown as a CompileError, a runtime error ends the run and is
+ * returned in its Result; nothing is printed to System.out or System.err.
+ *
+ * The engine runs submitted programs on a fixed pool of a platform thread per processor, or on any
+ * executor it is given; on Java 21 Executors.newVirtualThreadPerTaskExecutor() gives every run a
+ * virtual thread. The --memo, --stats, --profile and --cache options of the command line stay with it.
+ *
+ * Programs only run on the tree engine; the closure compiler and the VM are not offered here. Every
+ * run also builds a new Scanner over its input, even when the program never reads, which is part
+ * of the cost of a short run.
+ */
+public final class OwleryEngine implements AutoCloseable {
+    private final ExecutorService executor;
+    // shut down by close() if the engine made it
+    private final boolean owned;
+
+    public OwleryEngine() {
+        this(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "owlery-engine");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    // the caller shuts the executor down
+    public OwleryEngine(ExecutorService executor) {
+        this(executor, false);
+    }
+
+    private OwleryEngine(ExecutorService executor, boolean owned) {
+        this.executor = executor;
+        this.owned = owned;
+    }
+
+    public static final class Program {
+        private final String name;
+        private final List<Stmt> statements;
+        private final List<String> warnings;
+
+        private Program(String name, List<Stmt> statements, List<String> warnings) {
+            this.name = name;
+            this.statements = statements;
+            this.warnings = warnings;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public List<String> warnings() {
+            return warnings;
+        }
+    }
+
+    public static final class Result {
+        private final String output;
+        private final String error;
+
+        private Result(String output, String error) {
+            this.output = output;
+            this.error = error;
+        }
+
+        // what the program printed, up to a runtime error
+        public String output() {
+            return output;
+        }
+
+        // the runtime error that ended the program, like "[line 3] operand must be a number.", or null
+        public String error() {
+            return error;
+        }
+
+        public boolean succeeded() {
+            return error == null;
+        }
+    }
+
+    // compiles a program for any number of runs, on any thread; the name only labels errors
+    public Program compile(String name, String source) {
+        Owlery.Diagnostics diagnostics = new Owlery.Diagnostics();
+        Owlery.collect(diagnostics);
+        try {
+            List<Stmt> statements;
+            try {
+                statements = new Parser(new Lexer(source).scanTokens()).parse();
+            } catch (RuntimeException e) {
+                // the parser gives up on some errors, they are reported before
+                if (diagnostics.errors.isEmpty()) throw e;
+                statements = null;
+            }
+            if (!diagnostics.errors.isEmpty()) throw new CompileError(name, diagnostics.errors);
+
+            statements = new Optimizer().optimize(statements);
+            new Resolver().resolve(statements);
+            if (!diagnostics.errors.isEmpty()) throw new CompileError(name, diagnostics.errors);
+            Purity.analyze(statements);
+            if (!diagnostics.errors.isEmpty()) throw new CompileError(name, diagnostics.errors);
+            return new Program(name, List.copyOf(statements), List.copyOf(diagnostics.warnings));
+        } finally {
+            Owlery.collect(null);
+        }
+    }
+
+    // runs the program on the calling thread, read! gets the lines of input
+    public Result run(Program program, String input) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output, false, StandardCharsets.UTF_8);
+        Interpreter interpreter = new Interpreter(out, new Scanner(input));
+
+        String error = null;
+        try {
+            interpreter.execute(program.statements);
+        } catch (RuntimeError e) {
+            Events.runtimeError(e, Events.name(e.function));
+            error = e.token != null ? "[line " + e.token.line + "] " + e.getMessage() : e.getMessage();
+        }
+        out.flush();
+        return new Result(output.toString(StandardCharsets.UTF_8), error);
+    }
+
+    // runs the program on the engine's executor
+    public CompletableFuture<Result> submit(Program program, String input) {
+        return CompletableFuture.supplyAsync(() -> run(program, input), executor);
+    }
+
+    @Override
+    public void close() {
+        if (owned) executor.shutdown();
+    }
+}
@@ -4,10 +4,35 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class Parser {
-    private final List<Token> tokens;
+    // left associative binary operators by how tightly they bind, 0 for every other token
+    private static final int[] PRECEDENCE = new int[TokenType.values().length];
+    static {
+        PRECEDENCE[TokenType.OR.ordinal()] = 1;
+        PRECEDENCE[TokenType.AND.ordinal()] = 2;
+        for (TokenType type : new TokenType[] {TokenType.BANG_EQUAL, TokenType.EQUAL}) {
+            PRECEDENCE[type.ordinal()] = 3;
+        }
+        for (TokenType type : new TokenType[] {TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL}) {
+            PRECEDENCE[type.ordinal()] = 4;
+        }
+        for (TokenType type : new TokenType[] {TokenType.MINUS, TokenType.PLUS, TokenType.VERTICAL_BAR, TokenType.DOUBLE_VERTICAL_BAR}) {
+            PRECEDENCE[type.ordinal()] = 5;
+        }
+        for (TokenType type : new TokenType[] {TokenType.SLASH, TokenType.STAR, TokenType.PERCENT}) {
+            PRECEDENCE[type.ordinal()] = 6;
+        }
+    }
+
+    private final TokenStream tokens;
     private int current = 0;
+    // the identifiers before this token are known not to start a function, see functionAhead
+    private int notFunctionBefore = 0;
 
     Parser(List<Token> tokens) {
+        this(new TokenStream(tokens));
+    }
+
+    Parser(TokenStream tokens) {
         this.tokens = tokens;
     }
 
@@ -24,8 +49,7 @@ public class Parser {
     }
 
     private Expr assignment() {
-        Expr expr = or();
-
+        Expr expr = binary(1);
 
         if (match(TokenType.COLON)) {
             Token colon = previous();
@@ -62,81 +86,27 @@ public class Parser {
         return expr;
     }
 
-    private Expr or() {
-        Expr expr = and();
-
-        while (match(TokenType.OR)) {
-            Token op = previous();
-            Expr r = and();
-            expr = new Expr.BooleanBinary(expr, op, r);
-        }
-
-        return expr;
-    }
-
-    private Expr and() {
-        Expr expr = equality();
-
-        while (match(TokenType.AND)) {
-            Token op = previous();
-            Expr r = equality();
-            expr = new Expr.BooleanBinary(expr, op, r);
-        }
-
-        return expr;
-    }
-
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(TokenType.BANG_EQUAL, TokenType.EQUAL)) {
-            Token op = previous();
-            Expr r = comparison();
-            expr = new Expr.Binary(expr, op, r);
-        }
-
-        return expr;
-    }
-
-    private Expr comparison() {
-        Expr expr = term();
-
-        while(match(TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL)) {
-            Token op = previous();
-            Expr r = term();
-            expr = new Expr.Binary(expr, op, r);
-        }
-
-        return expr;
-    }
-
-    private Expr term() {
-        Expr expr = factor();
-
-        while(match(TokenType.MINUS, TokenType.PLUS, TokenType.VERTICAL_BAR, TokenType.DOUBLE_VERTICAL_BAR)) {
-            Token op = previous();
-            Expr r = factor();
-            expr = new Expr.Binary(expr, op, r);
-        }
-
-        return expr;
-    }
-
-    private Expr factor() {
+    // the operators that bind at least as tightly as precedence, which is at least 1, and their operands
+    private Expr binary(int precedence) {
         Expr expr = unary();
 
-        while(match(TokenType.SLASH, TokenType.STAR, TokenType.PERCENT)) {
-            Token op = previous();
-            Expr r = unary();
-            expr = new Expr.Binary(expr, op, r);
-        }
+        while (true) {
+            Token op = peek();
+            int binds = PRECEDENCE[op.type.ordinal()];
+            if (binds < precedence) return expr;
 
-        return expr;
+            advance();
+            Expr r = binary(binds + 1);
+            expr = op.type == TokenType.OR || op.type == TokenType.AND
+                    ? new Expr.BooleanBinary(expr, op, r)
+                    : new Expr.Binary(expr, op, r);
+        }
     }
 
     private Expr unary() {
-        if (match(TokenType.NOT, TokenType.MINUS)) {
-            Token op = previous();
+        Token op = peek();
+        if (op.type == TokenType.NOT || op.type == TokenType.MINUS) {
+            advance();
             Expr r = unary();
             return new Expr.Unary(op, r);
         }
@@ -190,51 +160,75 @@ public class Parser {
         return expr;
     }
 
-    private boolean funcAhead() {
-        int freeze = current;
-        skip(TokenType.IDENTIFIER);
-        if (match(TokenType.ARROW)) {
-            current = freeze;
-            return true;
-        }
-        current = freeze;
+    // whether the identifiers from the current token on are the parameters of a function. The token
+    // after the first one mostly decides it; a run of identifiers, like the arguments of f! a b c, is
+    // only looked past once, every identifier in it shares the answer
+    private boolean functionAhead() {
+        if (current < notFunctionBefore) return false;
+
+        int ahead = current + 1;
+        TokenType next = tokens.get(ahead).type;
+        if (next == TokenType.ARROW) return true;
+        if (next != TokenType.IDENTIFIER) return false;
+
+        while (tokens.get(ahead).type == TokenType.IDENTIFIER) ahead++;
+        if (tokens.get(ahead).type == TokenType.ARROW) return true;
+        notFunctionBefore = ahead;
         return false;
     }
 
     private Expr primary() {
-        if (funcAhead()) return function();
-
-        if (match(TokenType.FALSE)) return new Expr.Literal(false);
-        if (match(TokenType.TRUE)) return new Expr.Literal(true);
-        if (match(TokenType.NOTHING)) return new Expr.Literal(null);
-
-        if (match(TokenType.DOUBLE, TokenType.INTEGER, TokenType.STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
-
-        if (match(TokenType.IDENTIFIER)) {
-            Token name = previous();
-            if (match(TokenType.LEFT_BRACKET)) {
-                Expr index = expression();
-                consume(TokenType.RIGHT_BRACKET, "expected: ']' after index notation");
-                return new Expr.Index(name, index);
+        Token token = peek();
+        switch (token.type) {
+            case ARROW -> {
+                return function();
+            }
+            case IDENTIFIER -> {
+                if (functionAhead()) return function();
+                advance();
+                if (match(TokenType.LEFT_BRACKET)) {
+                    Expr index = expression();
+                    consume(TokenType.RIGHT_BRACKET, "expected: ']' after index notation");
+                    return new Expr.Index(token, index);
+                }
+                return new Expr.Variable(token);
+            }
+            case FALSE -> {
+                advance();
+                return new Expr.Literal(false);
+            }
+            case TRUE -> {
+                advance();
+                return new Expr.Literal(true);
+            }
+            case NOTHING -> {
+                advance();
+                return new Expr.Literal(null);
+            }
+            case DOUBLE, INTEGER, STRING -> {
+                advance();
+                return new Expr.Literal(token.literal);
+            }
+            case LEFT_PAREN -> {
+                advance();
+                Expr expr = expression();
+                consume(TokenType.RIGHT_PAREN, "expected: <)> after grouping expression");
+                return new Expr.Grouping(expr);
+            }
+            case LEFT_BRACKET -> {
+                advance();
+                List<Expr> elements = expressionList();
+                consume(TokenType.RIGHT_BRACKET, "expected: <]> after list elements");
+                return new Expr.ListLiteral(token, elements);
             }
-            return new Expr.Variable(name);
-        }
-
-        if (match(TokenType.LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "expected: <)> after grouping expression");
-            return new Expr.Grouping(expr);
         }
-        System.out.println(peek());
         throw error(peek(), "expected: expression");
     }
 
     private List<Expr> expressionList() {
         List<Expr> exprList = new ArrayList<>();
 
-        if (!check(TokenType.EOS) && !check(TokenType.RIGHT_PAREN))
+        if (!check(TokenType.EOS) && !check(TokenType.RIGHT_PAREN) && !check(TokenType.RIGHT_BRACKET))
         do {
             exprList.add(expression());
         } while (match(TokenType.COMMA));
@@ -243,7 +237,9 @@ public class Parser {
 
     private List<Expr> arguments() {
         List<Expr> arguments = new ArrayList<>();
-        while (!check(TokenType.EOS) && !check(TokenType.RIGHT_PAREN) && !isAtEnd()) {
+        // a call can be an element of a list, [length! a, length! b]
+        while (!check(TokenType.EOS) && !check(TokenType.RIGHT_PAREN) && !check(TokenType.COMMA)
+                && !check(TokenType.RIGHT_BRACKET) && !isAtEnd()) {
             arguments.add(expression());
         }
         return arguments;
@@ -257,6 +253,14 @@ public class Parser {
         return params;
     }
 
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
+        }
+        return false;
+    }
+
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
             if(check(type)) {
@@ -275,6 +279,7 @@ public class Parser {
     private Token advance() {
         if (!isAtEnd()) {
             current++;
+            tokens.release(current - 1);
         }
         return previous();
     }
@@ -403,15 +408,28 @@ public class Parser {
     }
 
     private Stmt loopStatement() {
+        // parallel is no keyword, it only marks a loop when a name follows it
+        boolean parallel = check(TokenType.IDENTIFIER) && peek().lexeme().equals("parallel")
+                && tokens.get(current + 1).type == TokenType.IDENTIFIER;
+        if (parallel) advance();
+        if (!parallel && check(TokenType.IDENTIFIER) && tokens.get(current + 1).type == TokenType.IN) {
+            Token name = advance();
+            advance();
+            Expr list = expression();
+            skip(TokenType.EOS);
+            consume(TokenType.LEFT_BRACE, "exptected: block after loop head");
+            return new Stmt.LoopIn(name, list, blockStatement());
+        }
         Expr val = expression();
 
+        if (parallel && !check(TokenType.TO)) throw error(peek(), "exptected: <to> after parallel loop head");
         if (match(TokenType.TO)) {
             boolean incl = match(TokenType.INCL);
             Expr to = expression();
             skip(TokenType.EOS);
             consume(TokenType.LEFT_BRACE, "exptected: block after loop head");
             Stmt body = blockStatement();
-            return new Stmt.LoopRange(val, to, body, incl);
+            return new Stmt.LoopRange(val, to, body, incl, parallel);
         }
 
         skip(TokenType.EOS);
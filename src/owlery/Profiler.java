@@ -0,0 +1,291 @@
+package owlery;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A sampling profiler for the tree engine. The Interpreter publishes the statement it runs and its
+ * stack of Owlery functions here with plain writes; a daemon thread looks at them a given number of
+ * times a second, without stopping the interpreter or synchronizing with it. A sample may so see a
+ * stack one call ahead or behind the statement, which over thousands of samples does not matter.
+ * At the end the samples are counted per function and per line, self (the function or line was
+ * running) and total (it was on the stack), and written with the stacks in the collapsed format of
+ * flame graph tools, "frame;frame;frame count".
+ */
+final class Profiler {
+    static final int DEFAULT_RATE = 1000;
+
+    // written by the interpreter thread only
+    Stmt statement;
+    private Expr.Function[] functions = new Expr.Function[64];
+    // the statement of the caller each function was called from, restored when it returns
+    private Stmt[] callers = new Stmt[64];
+    private int depth = 0;
+
+    private final List<Stmt> program;
+    private final long interval;
+    private final Thread sampler;
+    private volatile boolean running = true;
+    // a stack of alternating functions and statements, the top-level statement first; owned by the sampler
+    private final Map<List<Object>, Integer> samples = new HashMap<>();
+    private int sampleCount = 0;
+
+    Profiler(List<Stmt> program, int rate) {
+        this.program = program;
+        this.interval = 1_000_000_000L / rate;
+        sampler = new Thread(this::sample, "owlery-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    void enter(Expr.Function function) {
+        if (depth == functions.length) {
+            callers = Arrays.copyOf(callers, depth * 2);
+            functions = Arrays.copyOf(functions, depth * 2);
+        }
+        callers[depth] = statement;
+        functions[depth] = function;
+        depth++;
+    }
+
+    // a tail call runs in the frame of the function that returned it
+    void replace(Expr.Function function) {
+        functions[depth - 1] = function;
+    }
+
+    void exit() {
+        depth--;
+        statement = callers[depth];
+    }
+
+    private void sample() {
+        while (running) {
+            LockSupport.parkNanos(interval);
+            // the arrays may be replaced and depth may change while they are read, each is read once
+            Expr.Function[] functions = this.functions;
+            Stmt[] callers = this.callers;
+            int depth = Math.min(this.depth, Math.min(functions.length, callers.length));
+            Stmt statement = this.statement;
+            if (statement == null) continue;
+
+            Object[] stack = new Object[depth * 2 + 1];
+            for (int i = 0; i < depth; i++) {
+                stack[i * 2] = callers[i];
+                stack[i * 2 + 1] = functions[i];
+            }
+            stack[depth * 2] = statement;
+            samples.merge(Arrays.asList(stack), 1, Integer::sum);
+            sampleCount++;
+        }
+    }
+
+    // stops sampling, writes <script>.profile and <script>.collapsed and prints the busiest functions
+    void finish(Path script, PrintStream out) throws IOException {
+        running = false;
+        LockSupport.unpark(sampler);
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Names names = new Names(script.getFileName().toString(), program);
+        Map<String, int[]> functionCounts = new HashMap<>();
+        Map<String, int[]> lineCounts = new HashMap<>();
+        Map<String, Integer> collapsed = new HashMap<>();
+
+        for (Map.Entry<List<Object>, Integer> sample : samples.entrySet()) {
+            List<Object> stack = sample.getKey();
+            int count = sample.getValue();
+
+            // frames from the outermost in: the top level of the script, then every function
+            List<String> frames = new ArrayList<>();
+            List<String> lines = new ArrayList<>();
+            Expr.Function function = null;
+            for (int i = 0; i < stack.size(); i += 2) {
+                String line = names.line(function, (Stmt) stack.get(i));
+                frames.add(names.function(function) + " (" + line + ")");
+                lines.add(line);
+                if (i + 1 < stack.size()) function = (Expr.Function) stack.get(i + 1);
+            }
+            collapsed.merge(String.join(";", frames), count, Integer::sum);
+
+            // recursion puts a function on the stack more than once, its total counts the sample once
+            Set<String> seen = new HashSet<>();
+            function = null;
+            for (int i = 0; i < stack.size(); i += 2) {
+                String name = names.function(function);
+                if (seen.add(name)) functionCounts.computeIfAbsent(name, k -> new int[2])[1] += count;
+                if (i + 1 < stack.size()) function = (Expr.Function) stack.get(i + 1);
+            }
+            functionCounts.get(names.function(function))[0] += count;
+            seen.clear();
+            for (String line : lines) {
+                if (seen.add(line)) lineCounts.computeIfAbsent(line, k -> new int[2])[1] += count;
+            }
+            lineCounts.get(lines.get(lines.size() - 1))[0] += count;
+        }
+
+        Path profile = script.resolveSibling(script.getFileName() + ".profile");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(profile, StandardCharsets.UTF_8))) {
+            writer.printf("%d samples, %.3f ms apart%n%n", sampleCount, interval / 1e6);
+            table(writer, "function", functionCounts, Integer.MAX_VALUE);
+            writer.println();
+            table(writer, "line", lineCounts, Integer.MAX_VALUE);
+        }
+        Path stacks = script.resolveSibling(script.getFileName() + ".collapsed");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(stacks, StandardCharsets.UTF_8))) {
+            collapsed.entrySet().stream()
+                    .sorted(Map.Entry.comparingByKey())
+                    .forEach(stack -> writer.println(stack.getKey() + " " + stack.getValue()));
+        }
+
+        out.println("profile: " + sampleCount + " samples, written to " + profile + " and " + stacks);
+        PrintWriter writer = new PrintWriter(out, true);
+        table(writer, "function", functionCounts, 10);
+    }
+
+    private void table(PrintWriter writer, String what, Map<String, int[]> counts, int limit) {
+        writer.printf("%-40s %10s %7s %10s %7s%n", what, "self ms", "self %", "total ms", "total %");
+        counts.entrySet().stream()
+                .sorted(Comparator.comparingInt((Map.Entry<String, int[]> entry) -> -entry.getValue()[0])
+                        .thenComparingInt(entry -> -entry.getValue()[1])
+                        .thenComparing(Map.Entry::getKey))
+                .limit(limit)
+                .forEach(entry -> {
+                    int[] count = entry.getValue();
+                    writer.printf("%-40s %10.1f %7.1f %10.1f %7.1f%n", entry.getKey(),
+                            count[0] * interval / 1e6, percent(count[0]), count[1] * interval / 1e6, percent(count[1]));
+                });
+    }
+
+    private double percent(int count) {
+        return sampleCount == 0 ? 0 : 100.0 * count / sampleCount;
+    }
+
+    // the line of the first token in a statement, 0 for one of literals only
+    static int line(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression s) return line(s.expression);
+        if (stmt instanceof Stmt.Print s) return line(s.expression);
+        if (stmt instanceof Stmt.Block s) return line(s.statements);
+        if (stmt instanceof Stmt.If s) return first(line(s.cond), line(s.thenBlock));
+        if (stmt instanceof Stmt.LoopCondition s) return first(line(s.condition), line(s.body));
+        if (stmt instanceof Stmt.LoopRange s) return first(first(line(s.from), line(s.to)), line(s.body));
+        if (stmt instanceof Stmt.LoopIn s) return s.name.line;
+        if (stmt instanceof Stmt.Return s) return s.keyword.line;
+        return 0;
+    }
+
+    private static int line(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            int line = line(statement);
+            if (line > 0) return line;
+        }
+        return 0;
+    }
+
+    private static int line(Expr expr) {
+        if (expr instanceof Expr.Define e) return e.name.line;
+        if (expr instanceof Expr.Assign e) return e.name.line;
+        if (expr instanceof Expr.Binary e) return first(line(e.left), e.operator.line);
+        if (expr instanceof Expr.BooleanBinary e) return first(line(e.left), e.operator.line);
+        if (expr instanceof Expr.Grouping e) return line(e.expression);
+        if (expr instanceof Expr.Unary e) return e.operator.line;
+        if (expr instanceof Expr.Variable e) return e.name.line;
+        if (expr instanceof Expr.Call e) return first(line(e.callee), e.bang != null ? e.bang.line : 0);
+        if (expr instanceof Expr.Function e) return line(e.body);
+        if (expr instanceof Expr.Index e) return e.name.line;
+        if (expr instanceof Expr.TypeBinary e) return first(line(e.expression), e.op.line);
+        if (expr instanceof Expr.ListLiteral e) return e.bracket.line;
+        return 0;
+    }
+
+    private static int first(int line, int otherwise) {
+        return line > 0 ? line : otherwise;
+    }
+
+    // names of functions and lines of statements, worked out once the program is done
+    private static final class Names {
+        private final String script;
+        // the functions of the script, any other is from the library
+        private final Set<Expr.Function> functions = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Map<Stmt, Integer> lines = new IdentityHashMap<>();
+
+        Names(String script, List<Stmt> program) {
+            this.script = script;
+            for (Stmt statement : program) {
+                collect(statement);
+            }
+        }
+
+        // the top level is named after the script
+        String function(Expr.Function function) {
+            if (function == null) return "<" + script + ">";
+            return function.name != null ? function.name.lexeme() : "anonymous@" + Profiler.line(function.body);
+        }
+
+        String line(Expr.Function function, Stmt statement) {
+            String file = function == null || functions.contains(function) ? script : "lib.owlry";
+            int line = lines.computeIfAbsent(statement, Profiler::line);
+            return file + ":" + (line > 0 ? line : "?");
+        }
+
+        private void collect(Stmt stmt) {
+            if (stmt instanceof Stmt.Expression s) collect(s.expression);
+            else if (stmt instanceof Stmt.Print s) collect(s.expression);
+            else if (stmt instanceof Stmt.Block s) s.statements.forEach(this::collect);
+            else if (stmt instanceof Stmt.If s) {
+                collect(s.cond);
+                collect(s.thenBlock);
+                if (s.elseBlock != null) collect(s.elseBlock);
+            } else if (stmt instanceof Stmt.LoopCondition s) {
+                collect(s.condition);
+                collect(s.body);
+            } else if (stmt instanceof Stmt.LoopRange s) {
+                collect(s.from);
+                collect(s.to);
+                collect(s.body);
+            } else if (stmt instanceof Stmt.LoopIn s) {
+                collect(s.list);
+                collect(s.body);
+            } else if (stmt instanceof Stmt.Return s && s.value != null) collect(s.value);
+        }
+
+        private void collect(Expr expr) {
+            if (expr instanceof Expr.Define e) collect(e.value);
+            else if (expr instanceof Expr.Assign e) collect(e.value);
+            else if (expr instanceof Expr.Function e) {
+                functions.add(e);
+                e.body.forEach(this::collect);
+            } else if (expr instanceof Expr.Binary e) {
+                collect(e.left);
+                collect(e.right);
+            } else if (expr instanceof Expr.BooleanBinary e) {
+                collect(e.left);
+                collect(e.right);
+            } else if (expr instanceof Expr.Grouping e) collect(e.expression);
+            else if (expr instanceof Expr.Unary e) collect(e.right);
+            else if (expr instanceof Expr.Call e) {
+                collect(e.callee);
+                e.arguments.forEach(this::collect);
+            } else if (expr instanceof Expr.Index e) collect(e.index);
+            else if (expr instanceof Expr.TypeBinary e) collect(e.expression);
+            else if (expr instanceof Expr.ListLiteral e) e.elements.forEach(this::collect);
+        }
+    }
+}
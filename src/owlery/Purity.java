@@ -0,0 +1,188 @@
+package owlery;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Marks the top level functions whose result only depends on their arguments, so their calls can
+ * be answered from a Memo. A pure function prints nothing, writes and reads no global other than
+ * pure functions, creates no functions and only calls pure functions or side effect free builtins.
+ * Only functions that the program writes exactly once, by their own definition, are considered:
+ * any other global could be replaced by an impure value after the analysis.
+ *
+ * The body of a parallel loop may only call pure functions: the workers of the tree engine each
+ * write a copy of the globals, so the writes of any other function would be lost. append! is left
+ * to the Resolver, which lets it append to the lists of the body only.
+ */
+final class Purity {
+    private static final Set<String> PURE_BUILTINS = Set.of("length");
+
+    static void analyze(List<Stmt> statements) {
+        Map<String, Integer> writes = JvmCompiler.globalWrites(statements);
+        Map<String, Expr.Function> functions = JvmCompiler.directFunctions(statements);
+
+        Set<String> pure = new HashSet<>(functions.keySet());
+        for (String builtin : PURE_BUILTINS) {
+            if (!writes.containsKey(builtin)) pure.add(builtin);
+        }
+
+        // every candidate starts pure and loses it when it does something impure or calls a function
+        // that lost it, which keeps mutual recursion between pure functions pure
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, Expr.Function> function : functions.entrySet()) {
+                if (pure.contains(function.getKey()) && !pure(function.getValue().body, pure)) {
+                    pure.remove(function.getKey());
+                    changed = true;
+                }
+            }
+        }
+
+        for (Map.Entry<String, Expr.Function> function : functions.entrySet()) {
+            function.getValue().pure = pure.contains(function.getKey());
+        }
+
+        if (!writes.containsKey("append")) pure.add("append");
+        for (Stmt statement : statements) {
+            parallel(statement, false, pure);
+        }
+    }
+
+    // reports the calls of impure functions in the bodies of parallel loops
+    private static void parallel(Stmt stmt, boolean body, Set<String> pure) {
+        if (stmt instanceof Stmt.Expression s) {
+            parallel(s.expression, body, pure);
+        } else if (stmt instanceof Stmt.Print s) {
+            parallel(s.expression, body, pure);
+        } else if (stmt instanceof Stmt.Block s) {
+            for (Stmt statement : s.statements) {
+                parallel(statement, body, pure);
+            }
+        } else if (stmt instanceof Stmt.If s) {
+            parallel(s.cond, body, pure);
+            parallel(s.thenBlock, body, pure);
+            if (s.elseBlock != null) parallel(s.elseBlock, body, pure);
+        } else if (stmt instanceof Stmt.LoopCondition s) {
+            parallel(s.condition, body, pure);
+            parallel(s.body, body, pure);
+        } else if (stmt instanceof Stmt.LoopRange s) {
+            parallel(s.from, body, pure);
+            parallel(s.to, body, pure);
+            parallel(s.body, body || s.parallel, pure);
+        } else if (stmt instanceof Stmt.LoopIn s) {
+            parallel(s.list, body, pure);
+            parallel(s.body, body, pure);
+        } else if (stmt instanceof Stmt.Return s && s.value != null) {
+            parallel(s.value, body, pure);
+        }
+    }
+
+    private static void parallel(Expr expr, boolean body, Set<String> pure) {
+        if (expr instanceof Expr.Define e) {
+            parallel(e.value, body, pure);
+        } else if (expr instanceof Expr.Assign e) {
+            parallel(e.value, body, pure);
+        } else if (expr instanceof Expr.BooleanBinary e) {
+            parallel(e.left, body, pure);
+            parallel(e.right, body, pure);
+        } else if (expr instanceof Expr.Binary e) {
+            parallel(e.left, body, pure);
+            parallel(e.right, body, pure);
+        } else if (expr instanceof Expr.Grouping e) {
+            parallel(e.expression, body, pure);
+        } else if (expr instanceof Expr.Unary e) {
+            parallel(e.right, body, pure);
+        } else if (expr instanceof Expr.Call e) {
+            if (body && !(e.callee instanceof Expr.Variable callee && callee.depth == -1 && pure(callee, pure))) {
+                String name = e.callee instanceof Expr.Variable callee ? "<" + callee.name.lexeme() + ">" : "this function";
+                Owlery.error(e.bang, "a parallel loop can only call pure functions, " + name
+                        + " might print, read or write a global");
+            }
+            parallel(e.callee, body, pure);
+            for (Expr argument : e.arguments) {
+                parallel(argument, body, pure);
+            }
+        } else if (expr instanceof Expr.Function e) {
+            // the body of a function only runs when it is called
+            for (Stmt statement : e.body) {
+                parallel(statement, false, pure);
+            }
+        } else if (expr instanceof Expr.Index e) {
+            parallel(e.index, body, pure);
+        } else if (expr instanceof Expr.TypeBinary e) {
+            parallel(e.expression, body, pure);
+        } else if (expr instanceof Expr.ListLiteral e) {
+            for (Expr element : e.elements) {
+                parallel(element, body, pure);
+            }
+        }
+    }
+
+    private static boolean pure(List<Stmt> statements, Set<String> pure) {
+        for (Stmt statement : statements) {
+            if (!pure(statement, pure)) return false;
+        }
+        return true;
+    }
+
+    private static boolean pure(Stmt stmt, Set<String> pure) {
+        if (stmt instanceof Stmt.Expression s) {
+            return pure(s.expression, pure);
+        } else if (stmt instanceof Stmt.Print) {
+            return false;
+        } else if (stmt instanceof Stmt.Block s) {
+            return pure(s.statements, pure);
+        } else if (stmt instanceof Stmt.If s) {
+            return pure(s.cond, pure) && pure(s.thenBlock, pure) && (s.elseBlock == null || pure(s.elseBlock, pure));
+        } else if (stmt instanceof Stmt.LoopCondition s) {
+            return pure(s.condition, pure) && pure(s.body, pure);
+        } else if (stmt instanceof Stmt.LoopRange s) {
+            return pure(s.from, pure) && pure(s.to, pure) && pure(s.body, pure);
+        } else if (stmt instanceof Stmt.LoopIn s) {
+            return s.slot != -1 && pure(s.list, pure) && pure(s.body, pure);
+        } else if (stmt instanceof Stmt.Return s) {
+            return s.value == null || pure(s.value, pure);
+        }
+        return true;
+    }
+
+    private static boolean pure(Expr expr, Set<String> pure) {
+        if (expr instanceof Expr.Define e) {
+            return e.slot != -1 && pure(e.value, pure);
+        } else if (expr instanceof Expr.Assign e) {
+            // with a fallback the assignment goes to the global when the local definition did not run
+            return e.depth != -1 && e.fallback == null && pure(e.value, pure);
+        } else if (expr instanceof Expr.Variable e) {
+            return (e.depth != -1 && e.fallback == null) || pure.contains(e.name.lexeme());
+        } else if (expr instanceof Expr.BooleanBinary e) {
+            return pure(e.left, pure) && pure(e.right, pure);
+        } else if (expr instanceof Expr.Binary e) {
+            return pure(e.left, pure) && pure(e.right, pure);
+        } else if (expr instanceof Expr.Grouping e) {
+            return pure(e.expression, pure);
+        } else if (expr instanceof Expr.Unary e) {
+            return pure(e.right, pure);
+        } else if (expr instanceof Expr.Call e) {
+            // a local callee could hold any function
+            if (!(e.callee instanceof Expr.Variable callee) || callee.depth != -1 || !pure(callee, pure)) return false;
+            for (Expr argument : e.arguments) {
+                if (!pure(argument, pure)) return false;
+            }
+            return true;
+        } else if (expr instanceof Expr.Function) {
+            // every call would return a new function, a cached one is not the same
+            return false;
+        } else if (expr instanceof Expr.Index e) {
+            return e.depth != -1 && e.fallback == null && pure(e.index, pure);
+        } else if (expr instanceof Expr.TypeBinary e) {
+            return pure(e.expression, pure);
+        } else if (expr instanceof Expr.ListLiteral) {
+            // every call would return a new list, append! would change the cached one
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,564 @@
+package owlery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static pass between the parser and the interpreter. Every local variable gets a (depth, slot)
+ * coordinate, so the interpreter can index the environment directly instead of hashing names.
+ * Anything that is not found in an enclosing local scope is a global and keeps depth -1.
+ * Slots that are declared exactly once and unconditionally are marked as fixed: they are always
+ * defined before they are read and always hold the declared type, which the JvmCompiler uses to
+ * keep them in plain (possibly primitive) Java locals. Every slot also gets the type all of its
+ * declarations agree on, Flexible where they differ, which lets the VM keep #integer and #double
+ * slots unboxed even where they are declared more than once, like a counter used by two loops. A variable whose definition in its scope
+ * might not have run, like <c and (x #integer: 5)>, gets the coordinates of the definitions of the
+ * same name around it as a fallback: while its slot is undefined the engines go on to those and
+ * then to the globals, as the lookup by name did. Range loops whose bound can not change
+ * while they run are marked invariant, so the engines evaluate the bound only once. The body of a
+ * parallel loop may only assign the variables around it as reductions, which get marked, and may
+ * not append to them.
+ */
+public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // functions only see their own scopes and the globals, so every function starts a fresh stack
+    private List<Map<String, Integer>> scopes = new ArrayList<>();
+    // declarations per slot, parallel to scopes; a conditional declaration counts twice
+    private List<List<Integer>> declarations = new ArrayList<>();
+    // the type every declaration of a slot gave it so far, Flexible once two differ
+    private List<List<OType>> types = new ArrayList<>();
+    private int conditional = 0;
+    // names per scope that a declaration defined for sure once the resolved code runs
+    private List<Set<String>> definite = new ArrayList<>();
+    private boolean inFunction = false;
+    // the parallel loop whose body is resolved, null outside of one and in the functions in it
+    private Parallel parallel = null;
+
+    private static final class Parallel {
+        final Stmt.LoopRange loop;
+        // scopes around the body, a variable in one of them is outside the loop
+        final int scopes;
+        // the operator every variable outside is reduced with
+        final Map<String, TokenType> operators = new HashMap<>();
+        // reads of variables outside, and which of them are the left operand of a reduction
+        final List<Token> reads = new ArrayList<>();
+        final Set<Token> operands = Collections.newSetFromMap(new IdentityHashMap<>());
+        // the assignment of the statement being resolved, only a whole statement can be a reduction
+        Expr statement = null;
+        // the variables of the body appended to, and the ones given something other than a list literal
+        final List<Token> appended = new ArrayList<>();
+        final Set<String> unmade = new HashSet<>();
+
+        Parallel(Stmt.LoopRange loop, int scopes) {
+            this.loop = loop;
+            this.scopes = scopes;
+        }
+    }
+
+    void resolve(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void beginScope() {
+        scopes.add(new HashMap<>());
+        declarations.add(new ArrayList<>());
+        types.add(new ArrayList<>());
+        definite.add(new HashSet<>());
+    }
+
+    private boolean[] endScope() {
+        scopes.remove(scopes.size() - 1);
+        definite.remove(definite.size() - 1);
+        types.remove(types.size() - 1);
+        List<Integer> counts = declarations.remove(declarations.size() - 1);
+        boolean[] fixed = new boolean[counts.size()];
+        for (int i = 0; i < fixed.length; i++) {
+            fixed[i] = counts.get(i) == 1;
+        }
+        return fixed;
+    }
+
+    // the types of the slots of the innermost scope, read before it ends
+    private OType[] types() {
+        return types.get(types.size() - 1).toArray(new OType[0]);
+    }
+
+    // redefining a name in the same scope reuses its slot, like the HashMap put did before
+    private int declare(Token name, OType type) {
+        if (scopes.isEmpty()) return -1;
+
+        Map<String, Integer> scope = scopes.get(scopes.size() - 1);
+        Integer slot = scope.get(name.lexeme());
+        List<Integer> counts = declarations.get(declarations.size() - 1);
+        List<OType> slotTypes = types.get(types.size() - 1);
+        if (slot == null) {
+            slot = scope.size();
+            scope.put(name.lexeme(), slot);
+            counts.add(0);
+            slotTypes.add(type);
+        } else if (slotTypes.get(slot) != type) {
+            slotTypes.set(slot, OType.Flexible);
+        }
+        counts.set(slot, counts.get(slot) + (conditional > 0 ? 2 : 1));
+        if (conditional == 0) definite.get(definite.size() - 1).add(name.lexeme());
+        return slot;
+    }
+
+    private int[] lookUp(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(name.lexeme());
+            if (slot != null) {
+                return new int[] {scopes.size() - 1 - i, slot};
+            }
+        }
+        return new int[] {-1, -1};
+    }
+
+    // depth and slot of every definition of the name around the one at depth, up to the first that
+    // is defined for sure, or null if the one at depth is; the globals come after all of them
+    private int[] fallback(Token name, int depth) {
+        if (depth == -1 || definite.get(scopes.size() - 1 - depth).contains(name.lexeme())) return null;
+
+        List<Integer> coordinates = new ArrayList<>();
+        for (int i = scopes.size() - 2 - depth; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(name.lexeme());
+            if (slot == null) continue;
+            coordinates.add(scopes.size() - 1 - i);
+            coordinates.add(slot);
+            if (definite.get(i).contains(name.lexeme())) break;
+        }
+        return coordinates.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // a function is named after the variable it is first stored in, for profiles and recordings
+    private void name(Expr value, Token name) {
+        if (value instanceof Expr.Function function && function.name == null) function.name = name;
+    }
+
+    @Override
+    public Void visitDefineExpr(Expr.Define expr) {
+        name(expr.value, expr.name);
+        resolve(expr.value);
+        expr.slot = declare(expr.name, expr.type);
+        unmade(expr.name, expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        name(expr.value, expr.name);
+        resolve(expr.value);
+        int[] coordinate = lookUp(expr.name);
+        expr.depth = coordinate[0];
+        expr.slot = coordinate[1];
+        expr.fallback = fallback(expr.name, expr.depth);
+        if (parallel != null && expr.fallback != null) {
+            // the variable it assigns might be one around the loop, which the reductions do not cover
+            Owlery.error(expr.name, "a parallel loop can not assign <" + expr.name.lexeme() + ">, its definition might not have run");
+        } else if (parallel != null && outside(expr.depth)) {
+            reduction(expr);
+        } else {
+            unmade(expr.name, expr.value);
+        }
+        return null;
+    }
+
+    // whether a variable at depth is declared around the parallel loop, not in its body
+    private boolean outside(int depth) {
+        return depth == -1 || scopes.size() - 1 - depth < parallel.scopes;
+    }
+
+    // every iteration of a parallel loop gets copies of the variables around it, so an assignment to
+    // one would be lost; it may only take part in a reduction like <v: v + x>, which the workers
+    // add up on their own and add to the variable at the end
+    private void reduction(Expr.Assign expr) {
+        if (parallel.loop.from instanceof Expr.Assign counter && counter.name.lexeme().equals(expr.name.lexeme())) {
+            Owlery.error(expr.name, "the counter of a parallel loop can not be assigned in it");
+            return;
+        }
+        if (!(expr.value instanceof Expr.Binary binary && isReduction(binary.operator.type)
+                && binary.left instanceof Expr.Variable variable && variable.name.lexeme().equals(expr.name.lexeme())
+                && parallel.statement == expr)) {
+            Owlery.error(expr.name, "a parallel loop can only assign <" + expr.name.lexeme()
+                    + "> in a reduction, like <" + expr.name.lexeme() + ": " + expr.name.lexeme() + " + 1>, with +, *, | or ||");
+            return;
+        }
+        parallel.operands.add(variable.name);
+        TokenType operator = parallel.operators.putIfAbsent(expr.name.lexeme(), binary.operator.type);
+        if (operator != null && operator != binary.operator.type) {
+            Owlery.error(expr.name, "a parallel loop can only reduce <" + expr.name.lexeme() + "> with one operator");
+            return;
+        }
+        expr.reduction = true;
+    }
+
+    // operators whose partial results can be combined in any grouping, in the order of the range
+    private static boolean isReduction(TokenType operator) {
+        return switch (operator) {
+            case PLUS, STAR, VERTICAL_BAR, DOUBLE_VERTICAL_BAR -> true;
+            default -> false;
+        };
+    }
+
+    @Override
+    public Void visitBooleanBinaryExpr(Expr.BooleanBinary expr) {
+        resolve(expr.left);
+        conditional++;
+        resolve(expr.right);
+        conditional--;
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        int[] coordinate = lookUp(expr.name);
+        expr.depth = coordinate[0];
+        expr.slot = coordinate[1];
+        expr.fallback = fallback(expr.name, expr.depth);
+        if (parallel != null && outside(expr.depth)) parallel.reads.add(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        resolve(expr.callee);
+        for (Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+        if (parallel != null && expr.callee instanceof Expr.Variable callee && callee.depth == -1
+                && callee.name.lexeme().equals("append") && !expr.arguments.isEmpty()) {
+            appended(expr.bang, expr.arguments.get(0));
+        }
+        return null;
+    }
+
+    // append! changes its list for every variable that holds it, and the workers share the lists
+    // around the loop; a body may only append to a list it made, by a variable of the body that is
+    // only ever given list literals, which parallel() checks once the body is resolved
+    private void appended(Token bang, Expr list) {
+        if (list instanceof Expr.ListLiteral) return;
+        if (list instanceof Expr.Variable variable && variable.fallback == null && !outside(variable.depth)) {
+            parallel.appended.add(variable.name);
+        } else if (list instanceof Expr.Variable variable) {
+            Owlery.error(variable.name, "a parallel loop can not append to <" + variable.name.lexeme() + ">, a list from outside it");
+        } else {
+            Owlery.error(bang, "a parallel loop can only append to a list made in it, by its variable");
+        }
+    }
+
+    // a variable of the body that might hold a list from outside the loop
+    private void unmade(Token name, Expr value) {
+        if (parallel != null && !(value instanceof Expr.ListLiteral)) parallel.unmade.add(name.lexeme());
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+        List<Map<String, Integer>> enclosing = scopes;
+        List<List<Integer>> enclosingDeclarations = declarations;
+        List<List<OType>> enclosingTypes = types;
+        List<Set<String>> enclosingDefinite = definite;
+        int enclosingConditional = conditional;
+        boolean enclosingFunction = inFunction;
+        Parallel enclosingParallel = parallel;
+        scopes = new ArrayList<>();
+        declarations = new ArrayList<>();
+        types = new ArrayList<>();
+        definite = new ArrayList<>();
+        conditional = 0;
+        inFunction = true;
+        parallel = null;
+
+        beginScope();
+        // the arguments are bound to the slots in the order of the parameters, so every name needs its own
+        for (int i = 0; i < expr.params.size(); i++) {
+            Token param = expr.params.get(i);
+            if (declare(param, OType.Flexible) != i) Owlery.error(param, "a function can not have two parameters named <" + param.lexeme() + ">");
+        }
+        resolve(expr.body);
+        expr.types = types();
+        expr.fixed = endScope();
+        expr.slots = expr.fixed.length;
+
+        scopes = enclosing;
+        declarations = enclosingDeclarations;
+        types = enclosingTypes;
+        definite = enclosingDefinite;
+        conditional = enclosingConditional;
+        inFunction = enclosingFunction;
+        parallel = enclosingParallel;
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        int[] coordinate = lookUp(expr.name);
+        expr.depth = coordinate[0];
+        expr.slot = coordinate[1];
+        expr.fallback = fallback(expr.name, expr.depth);
+        if (parallel != null && outside(expr.depth)) parallel.reads.add(expr.name);
+        resolve(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitTypeBinaryExpr(Expr.TypeBinary expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitListLiteralExpr(Expr.ListLiteral expr) {
+        for (Expr element : expr.elements) {
+            resolve(element);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (parallel != null) parallel.statement = stmt.expression;
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitEmptyStmt(Stmt.Empty stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // a block that declares nothing runs in the scope around it, the engines see it by its zero slots
+        if (!Optimizer.declares(stmt.statements)) {
+            resolve(stmt.statements);
+            stmt.fixed = new boolean[0];
+            stmt.types = new OType[0];
+            stmt.slots = 0;
+            return null;
+        }
+
+        beginScope();
+        resolve(stmt.statements);
+        stmt.types = types();
+        stmt.fixed = endScope();
+        stmt.slots = stmt.fixed.length;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.cond);
+        resolve(stmt.thenBlock);
+        if (stmt.elseBlock != null) resolve(stmt.elseBlock);
+        return null;
+    }
+
+    @Override
+    public Void visitLoopConditionStmt(Stmt.LoopCondition stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitLoopRangeStmt(Stmt.LoopRange stmt) {
+        if (stmt.from instanceof Expr.Assign assignment) {
+            // the counter is defined in the scope around the loop, not in its body
+            resolve(assignment.value);
+            assignment.slot = declare(assignment.name, OType.Integer);
+            assignment.depth = assignment.slot == -1 ? -1 : 0;
+        } else {
+            resolve(stmt.from);
+        }
+        resolve(stmt.to);
+        if (stmt.parallel) {
+            parallel(stmt);
+        } else {
+            resolve(stmt.body);
+        }
+        stmt.invariant = invariant(stmt);
+        return null;
+    }
+
+    private void parallel(Stmt.LoopRange stmt) {
+        if (parallel != null) Owlery.error(Profiler.line(stmt), "a parallel loop can not be in another parallel loop");
+
+        Parallel enclosing = parallel;
+        parallel = new Parallel(stmt, scopes.size());
+        resolve(stmt.body);
+        // the workers only know their own part of a reduction, nothing else of the loop can see it
+        for (Token read : parallel.reads) {
+            if (parallel.operators.containsKey(read.lexeme()) && !parallel.operands.contains(read)) {
+                Owlery.error(read, "a parallel loop can only read <" + read.lexeme() + "> in its reduction");
+            }
+        }
+        for (Token name : parallel.appended) {
+            if (parallel.unmade.contains(name.lexeme())) {
+                Owlery.error(name, "a parallel loop can only append to a list made in it, <" + name.lexeme()
+                        + "> might hold another");
+            }
+        }
+        parallel = enclosing;
+    }
+
+    @Override
+    public Void visitLoopInStmt(Stmt.LoopIn stmt) {
+        resolve(stmt.list);
+        // the elements are lists of the list, not made in the body
+        if (parallel != null) parallel.unmade.add(stmt.name.lexeme());
+        // like a counter the variable is defined in the scope around the loop; it takes the type of
+        // the elements, which is only known when the loop runs, so it never counts as fixed
+        conditional++;
+        stmt.slot = declare(stmt.name, OType.Flexible);
+        conditional--;
+        // the body only runs for an element, which defines the variable; after an empty list it is not
+        if (stmt.slot != -1 && definite.get(definite.size() - 1).add(stmt.name.lexeme())) {
+            resolve(stmt.body);
+            definite.get(definite.size() - 1).remove(stmt.name.lexeme());
+        } else {
+            resolve(stmt.body);
+        }
+        return null;
+    }
+
+    // the bound of a range loop only has to be evaluated once if the body can not change it: it may
+    // only read variables the body never writes, and globals only if the body calls nothing
+    private static boolean invariant(Stmt.LoopRange stmt) {
+        Set<String> writes = new HashSet<>();
+        if (stmt.from instanceof Expr.Assign assignment) writes.add(assignment.name.lexeme());
+        boolean calls = writes(stmt.body, writes);
+        return reads(stmt.to, writes, calls);
+    }
+
+    // collects the names the statement assigns or defines, returns whether it calls anything
+    private static boolean writes(Stmt stmt, Set<String> writes) {
+        if (stmt instanceof Stmt.Expression s) return writes(s.expression, writes);
+        if (stmt instanceof Stmt.Print s) return writes(s.expression, writes);
+        if (stmt instanceof Stmt.Block s) {
+            boolean calls = false;
+            for (Stmt statement : s.statements) calls |= writes(statement, writes);
+            return calls;
+        }
+        if (stmt instanceof Stmt.If s) {
+            boolean calls = writes(s.cond, writes) | writes(s.thenBlock, writes);
+            return s.elseBlock != null ? writes(s.elseBlock, writes) | calls : calls;
+        }
+        if (stmt instanceof Stmt.LoopCondition s) return writes(s.condition, writes) | writes(s.body, writes);
+        if (stmt instanceof Stmt.LoopRange s) {
+            return writes(s.from, writes) | writes(s.to, writes) | writes(s.body, writes);
+        }
+        if (stmt instanceof Stmt.LoopIn s) {
+            writes.add(s.name.lexeme());
+            return writes(s.list, writes) | writes(s.body, writes);
+        }
+        if (stmt instanceof Stmt.Return s) return s.value != null && writes(s.value, writes);
+        return false;
+    }
+
+    private static boolean writes(Expr expr, Set<String> writes) {
+        if (expr instanceof Expr.Define e) {
+            writes.add(e.name.lexeme());
+            return writes(e.value, writes);
+        }
+        if (expr instanceof Expr.Assign e) {
+            writes.add(e.name.lexeme());
+            return writes(e.value, writes);
+        }
+        if (expr instanceof Expr.BooleanBinary e) return writes(e.left, writes) | writes(e.right, writes);
+        if (expr instanceof Expr.Binary e) return writes(e.left, writes) | writes(e.right, writes);
+        if (expr instanceof Expr.Grouping e) return writes(e.expression, writes);
+        if (expr instanceof Expr.Unary e) return writes(e.right, writes);
+        if (expr instanceof Expr.Call e) {
+            writes(e.callee, writes);
+            for (Expr argument : e.arguments) writes(argument, writes);
+            return true;
+        }
+        if (expr instanceof Expr.Function e) {
+            boolean calls = false;
+            for (Stmt statement : e.body) calls |= writes(statement, writes);
+            return calls;
+        }
+        if (expr instanceof Expr.Index e) return writes(e.index, writes);
+        if (expr instanceof Expr.TypeBinary e) return writes(e.expression, writes);
+        if (expr instanceof Expr.ListLiteral e) {
+            boolean calls = false;
+            for (Expr element : e.elements) calls |= writes(element, writes);
+            return calls;
+        }
+        return false;
+    }
+
+    // whether the expression has no effects and only reads variables that stay the same
+    private static boolean reads(Expr expr, Set<String> writes, boolean calls) {
+        if (expr instanceof Expr.Literal) return true;
+        if (expr instanceof Expr.Variable e) return unchanged(e.name, e.depth, writes, calls);
+        if (expr instanceof Expr.Index e) {
+            return unchanged(e.name, e.depth, writes, calls) && reads(e.index, writes, calls);
+        }
+        if (expr instanceof Expr.BooleanBinary e) return reads(e.left, writes, calls) && reads(e.right, writes, calls);
+        if (expr instanceof Expr.Binary e) return reads(e.left, writes, calls) && reads(e.right, writes, calls);
+        if (expr instanceof Expr.Grouping e) return reads(e.expression, writes, calls);
+        if (expr instanceof Expr.Unary e) return reads(e.right, writes, calls);
+        if (expr instanceof Expr.TypeBinary e) return reads(e.expression, writes, calls);
+        return false;
+    }
+
+    private static boolean unchanged(Token name, int depth, Set<String> writes, boolean calls) {
+        // functions only enclose the globals, so a call can not reach the locals
+        return !writes.contains(name.lexeme()) && (depth != -1 || !calls);
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        // the engines run a returned call in the frame of the function returning it
+        stmt.tail = inFunction && stmt.value instanceof Expr.Call;
+        if (parallel != null) Owlery.error(stmt.keyword, "a parallel loop can not return");
+        if (stmt.value != null) resolve(stmt.value);
+        return null;
+    }
+}
@@ -0,0 +1,59 @@
+package owlery;
+
+/**
+ * A string built by concatenation. A rope is a prefix of a StringBuilder it shares with the ropes
+ * it was appended to or from. Appending to the newest of them only appends to the builder, so
+ * building a string piece by piece costs amortized O(1) per piece instead of copying everything
+ * built so far. Appending to an older rope copies its prefix into a builder of its own.
+ * The language can not tell a rope from a java.lang.String: a rope has the same type, truthiness
+ * and equality, and toString flattens it once.
+ */
+final class Rope implements CharSequence {
+    private final StringBuilder text;
+    private final int length;
+    private String flat;
+
+    private Rope(StringBuilder text, int length) {
+        this.text = text;
+        this.length = length;
+    }
+
+    // the value of `left | right`, or of `left || right` with a " " separator
+    static Rope concat(Object left, String separator, Object right) {
+        String tail = Interpreter.stringify(right);
+        StringBuilder text;
+        if (left instanceof Rope rope && rope.text.length() == rope.length) {
+            text = rope.text;
+        } else if (left instanceof Rope rope) {
+            text = new StringBuilder(Math.max(16, 2 * (rope.length + tail.length()))).append(rope.text, 0, rope.length);
+        } else {
+            String head = Interpreter.stringify(left);
+            text = new StringBuilder(Math.max(16, 2 * (head.length() + tail.length()))).append(head);
+        }
+        text.append(separator).append(tail);
+        return new Rope(text, text.length());
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    // the prefix of the builder never changes, so reading it needs no flattening
+    @Override
+    public char charAt(int index) {
+        if (index >= length) throw new IndexOutOfBoundsException(index);
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flat = text.substring(0, length);
+        return flat;
+    }
+}
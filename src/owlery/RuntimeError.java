@@ -2,6 +2,8 @@ package owlery;
 
 public class RuntimeError extends RuntimeException {
     final Token token;
+    // the function it happened in, known to the tree engine while a profile or recording follows calls
+    Expr.Function function = null;
 
     RuntimeError(Token token, String message) {
         super(message);
@@ -0,0 +1,285 @@
+package owlery;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static owlery.Interpreter.checkNumberOperand;
+import static owlery.Interpreter.checkNumberOperands;
+
+/**
+ * Runtime support for classes generated by the JvmCompiler. Every compiled script extends this
+ * class, so the generated code can call the helpers below without qualification. Globals, builtins
+ * and lib.owlry live in an ordinary Interpreter, which keeps them shared with the other engines.
+ */
+public abstract class Script {
+    private static final Interpreter interpreter = new Interpreter();
+    private static final Environment globals = interpreter.globals;
+
+    protected Script() {
+    }
+
+    /** A compiled Owlery function, which calls the static method it was compiled to. */
+    public static final class Function implements OCallable {
+        private final int arity;
+        private final java.util.function.Function<List<Object>, Object> body;
+
+        public Function(int arity, java.util.function.Function<List<Object>, Object> body) {
+            this.arity = arity;
+            this.body = body;
+        }
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> args) {
+            return body.apply(args);
+        }
+    }
+
+    /** A local whose type can change or which might be read before it is defined. */
+    public static final class Slot {
+        private OType type;
+        private Object value;
+
+        public Object define(Token name, Object value, OType type) {
+            if (!Value.compatible(type, value)) {
+                throw new RuntimeError(name, "incompatible types");
+            }
+            this.type = type;
+            this.value = value;
+            return null;
+        }
+
+        public boolean defined() {
+            return type != null;
+        }
+
+        public Object get(Token name) {
+            if (type == null) {
+                throw new RuntimeError(name, "variable <" + name.lexeme() +"> is not defined in this scope.");
+            }
+            return value;
+        }
+
+        public Object assign(Token name, Object value) {
+            get(name);
+            if (!Value.compatible(type, value)) {
+                throw new RuntimeError(name, "incompatible types");
+            }
+            this.value = value;
+            return value;
+        }
+    }
+
+    protected static void run(Runnable program) {
+        try {
+            program.run();
+            Value mainFunction = globals.defined("main");
+
+            if (mainFunction != null && (mainFunction.value instanceof Function || mainFunction.value instanceof OFunction)) {
+                ((OCallable) mainFunction.value).call(interpreter, List.of(0));
+            }
+        } catch (RuntimeError e) {
+            Owlery.runtimeError(e);
+            System.exit(70);
+        }
+    }
+
+    // the tokens a program names, the parts hold one "<line> <lexeme>" a line
+    protected static Token[] tokens(String... parts) {
+        String table = String.join("", parts);
+        if (table.isEmpty()) return new Token[0];
+        String[] entries = table.split("\n");
+        Token[] tokens = new Token[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            int space = entries[i].indexOf(' ');
+            tokens[i] = new Token(TokenType.IDENTIFIER, entries[i].substring(space + 1), null, Integer.parseInt(entries[i].substring(0, space)));
+        }
+        return tokens;
+    }
+
+    protected static Object global(Token name) {
+        return globals.get(name).value;
+    }
+
+    protected static Object defineGlobal(Token name, Object value, OType type) {
+        globals.define(name, value, type);
+        return null;
+    }
+
+    protected static Object assignGlobal(Token name, Object value) {
+        globals.assign(name, value);
+        return value;
+    }
+
+    protected static Object undefined(Token name) {
+        return global(name);
+    }
+
+    protected static int asInt(Token name, Object value) {
+        if (value instanceof Integer i) return i;
+        throw new RuntimeError(name, "incompatible types");
+    }
+
+    protected static double asDouble(Token name, Object value) {
+        if (value instanceof Double d) return d;
+        throw new RuntimeError(name, "incompatible types");
+    }
+
+    protected static Object checked(Token name, OType type, Object value) {
+        if (Value.compatible(type, value)) return value;
+        throw new RuntimeError(name, "incompatible types");
+    }
+
+    protected static Object call(Token bang, Object callee, Object... args) {
+        if (!(callee instanceof OCallable function)) {
+            throw new RuntimeError(bang, "only functions and classes can be called.");
+        }
+
+        if (args.length != function.arity()) {
+            throw new RuntimeError(bang, "expected: " + function.arity() + "arguments\nbut got " + args.length);
+        }
+
+        return function.call(interpreter, Arrays.asList(args));
+    }
+
+    protected static Object nothing(Object ignored) {
+        return null;
+    }
+
+    protected static void discard(Object ignored) {
+    }
+
+    protected static Object second(Object first, Object second) {
+        return second;
+    }
+
+    protected static String stringify(Object object) {
+        return Interpreter.stringify(object);
+    }
+
+    protected static Object concat(Object l, String separator, Object r) {
+        return Rope.concat(l, separator, r);
+    }
+
+    protected static boolean isTruthy(Object object) {
+        return Interpreter.isTruthy(object);
+    }
+
+    protected static boolean isTruthy(boolean b) {
+        return b;
+    }
+
+    protected static boolean isEqual(Object a, Object b) {
+        return Interpreter.isEqual(a, b);
+    }
+
+    protected static boolean is(OType type, Object value) {
+        return Value.compatible(type, value);
+    }
+
+    protected static Object convert(Token op, OType type, Object value) {
+        return VM.convert(value, type, op);
+    }
+
+    protected static Object index(Token name, Object value, Object index) {
+        if (index instanceof Integer i && value instanceof CharSequence str) {
+            if (i >= 0 && i < str.length()) {
+                return "" + str.charAt(i);
+            }
+            throw new RuntimeError(name, "index out of bounds for the given string");
+        }
+        if (index instanceof Integer i && value instanceof OList list) {
+            return list.get(name, i);
+        }
+        return null;
+    }
+
+    protected static Object list(Object... elements) {
+        OList list = new OList();
+        for (Object element : elements) {
+            list.add(element instanceof Rope rope ? rope.toString() : element);
+        }
+        return list;
+    }
+
+    // the list a loop runs over, with its size, elements and their type for the loop in the generated code
+    protected static Object iterated(Token name, Object value) {
+        if (value instanceof OList) return value;
+        throw new RuntimeError(name, "can only loop over a list");
+    }
+
+    protected static int size(Object list) {
+        return ((OList) list).size();
+    }
+
+    protected static Object element(Object list, int index) {
+        return ((OList) list).get(index);
+    }
+
+    protected static OType elementType(Object list) {
+        return ((OList) list).type();
+    }
+
+    protected static Object negate(Token operator, Object operand) {
+        checkNumberOperand(operator, operand);
+        return -(double) operand;
+    }
+
+    protected static Object add(Token operator, Object l, Object r) {
+        checkNumberOperands(operator, l, r);
+        if (l instanceof Integer a && r instanceof Integer b) return a + b;
+        return ((Number) l).doubleValue() + ((Number) r).doubleValue();
+    }
+
+    protected static Object subtract(Token operator, Object l, Object r) {
+        checkNumberOperands(operator, l, r);
+        if (l instanceof Integer a && r instanceof Integer b) return a - b;
+        return ((Number) l).doubleValue() - ((Number) r).doubleValue();
+    }
+
+    protected static Object multiply(Token operator, Object l, Object r) {
+        checkNumberOperands(operator, l, r);
+        if (l instanceof Integer a && r instanceof Integer b) return a * b;
+        return ((Number) l).doubleValue() * ((Number) r).doubleValue();
+    }
+
+    protected static Object divide(Token operator, Object l, Object r) {
+        checkNumberOperands(operator, l, r);
+        if (l instanceof Integer a && r instanceof Integer b) return a / b;
+        return ((Number) l).doubleValue() / ((Number) r).doubleValue();
+    }
+
+    protected static Object modulo(Token operator, Object l, Object r) {
+        checkNumberOperands(operator, l, r);
+        if (l instanceof Integer a && r instanceof Integer b) return a % b;
+        return ((Number) l).doubleValue() % ((Number) r).doubleValue();
+    }
+
+    protected static boolean greater(Token operator, Object l, Object r) {
+        checkNumberOperands(operator, l, r);
+        if (l instanceof Integer a && r instanceof Integer b) return a > b;
+        return ((Number) l).doubleValue() > ((Number) r).doubleValue();
+    }
+
+    protected static boolean greaterEqual(Token operator, Object l, Object r) {
+        checkNumberOperands(operator, l, r);
+        if (l instanceof Integer a && r instanceof Integer b) return a >= b;
+        return ((Number) l).doubleValue() >= ((Number) r).doubleValue();
+    }
+
+    protected static boolean less(Token operator, Object l, Object r) {
+        checkNumberOperands(operator, l, r);
+        if (l instanceof Integer a && r instanceof Integer b) return a < b;
+        return ((Number) l).doubleValue() < ((Number) r).doubleValue();
+    }
+
+    protected static boolean lessEqual(Token operator, Object l, Object r) {
+        checkNumberOperands(operator, l, r);
+        if (l instanceof Integer a && r instanceof Integer b) return a <= b;
+        return ((Number) l).doubleValue() <= ((Number) r).doubleValue();
+    }
+}
@@ -11,6 +11,7 @@ abstract class Stmt {
     R visitIfStmt(If stmt);
     R visitLoopConditionStmt(LoopCondition stmt);
     R visitLoopRangeStmt(LoopRange stmt);
+    R visitLoopInStmt(LoopIn stmt);
     R visitReturnStmt(Return stmt);
   }
   static class Expression extends Stmt {
@@ -60,6 +61,10 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+
+    int slots = 0;
+    boolean[] fixed = null;
+    OType[] types = null;
   }
   static class If extends Stmt {
     If(Expr cond, Stmt thenBlock, Stmt elseBlock) {
@@ -92,11 +97,12 @@ abstract class Stmt {
     final Stmt body;
   }
   static class LoopRange extends Stmt {
-    LoopRange(Expr from, Expr to, Stmt body, boolean incl) {
+    LoopRange(Expr from, Expr to, Stmt body, boolean incl, boolean parallel) {
       this.from = from;
       this.to = to;
       this.body = body;
       this.incl = incl;
+      this.parallel = parallel;
     }
 
     @Override
@@ -108,6 +114,27 @@ abstract class Stmt {
     final Expr to;
     final Stmt body;
     final boolean incl;
+    final boolean parallel;
+
+    boolean invariant = false;
+  }
+  static class LoopIn extends Stmt {
+    LoopIn(Token name, Expr list, Stmt body) {
+      this.name = name;
+      this.list = list;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLoopInStmt(this);
+    }
+
+    final Token name;
+    final Expr list;
+    final Stmt body;
+
+    int slot = -1;
   }
   static class Return extends Stmt {
     Return(Token keyword, Expr value) {
@@ -122,6 +149,8 @@ abstract class Stmt {
 
     final Token keyword;
     final Expr value;
+
+    boolean tail = false;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
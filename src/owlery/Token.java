@@ -2,21 +2,43 @@ package owlery;
 
 public class Token {
     final TokenType type;
-    final String lexeme;
     final Object literal;
     final int line;
 
+    // where the token is in the source, its lexeme is only cut out when asked for
+    private final char[] source;
+    private final int start;
+    private final int length;
+    private String lexeme;
+
     Token (TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.source = null;
+        this.start = 0;
+        this.length = 0;
+    }
+
+    Token (TokenType type, char[] source, int start, int length, Object literal, int line) {
+        this.type = type;
+        this.literal = literal;
+        this.line = line;
+        this.source = source;
+        this.start = start;
+        this.length = length;
+    }
+
+    String lexeme() {
+        if (lexeme == null) lexeme = new String(source, start, length);
+        return lexeme;
     }
 
     public String toString() {
         if (type == TokenType.EOS) {
             return "End of statement";
         }
-        return type + ": " + lexeme + " " + (literal != null ? literal : "");
+        return type + ": " + lexeme() + " " + (literal != null ? literal : "");
     }
 }
@@ -0,0 +1,134 @@
+package owlery;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The tokens the Parser reads. A stream over a file memory-maps it, decodes it a piece of whole
+ * lines at a time and lexes a piece when the Parser reaches its end. It only keeps the tokens the
+ * Parser can still ask for, from the one before the current token on, so parsing a large script
+ * holds the AST and one piece of the source instead of the file's bytes, its text and all its tokens.
+ */
+final class TokenStream implements AutoCloseable {
+    private static final int PIECE = 1 << 16;
+    // a mapping can not be larger than 2 GB
+    private static final long SEGMENT = 1L << 28;
+    // how many used tokens are dropped at once
+    private static final int RELEASE = 1 << 12;
+
+    private final List<Token> tokens;
+    // the index of tokens.get(0) in the whole stream
+    private int offset = 0;
+
+    // the file, for a stream over one
+    private FileChannel channel;
+    private long size;
+    private long mapped;
+    private MappedByteBuffer bytes;
+    private CharsetDecoder decoder;
+    private boolean flushing = false;
+    private boolean decoded = false;
+    private Lexer lexer;
+    // decoded text that is not lexed yet
+    private char[] text;
+    private int length = 0;
+
+    TokenStream(List<Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    static TokenStream open(Path file) throws IOException {
+        TokenStream stream = new TokenStream(new ArrayList<>());
+        stream.channel = FileChannel.open(file, StandardOpenOption.READ);
+        stream.size = stream.channel.size();
+        stream.decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        stream.lexer = new Lexer();
+        stream.text = new char[PIECE];
+        stream.map(0);
+        return stream;
+    }
+
+    Token get(int index) {
+        while (index - offset >= tokens.size()) {
+            fill();
+        }
+        return tokens.get(index - offset);
+    }
+
+    // the Parser does not go back before index anymore
+    void release(int index) {
+        if (lexer != null && index - offset >= RELEASE) {
+            tokens.subList(0, index - offset).clear();
+            offset = index;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+
+    // lexes the next piece; it ends after a newline, so no token but a string that spans lines is cut
+    private void fill() {
+        try {
+            boolean end = decode();
+            int cut = length;
+            if (!end) {
+                while (cut > 0 && text[cut - 1] != '\n') cut--;
+            }
+
+            int scanned = lexer.scan(text, cut, end, tokens);
+            System.arraycopy(text, scanned, text, 0, length - scanned);
+            length -= scanned;
+
+            // a line, or a string, that does not fit into a piece
+            if (scanned == 0 && length == text.length) {
+                text = Arrays.copyOf(text, text.length * 2);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // decodes into the free end of text, true once the whole file is decoded
+    private boolean decode() throws IOException {
+        CharBuffer out = CharBuffer.wrap(text, length, text.length - length);
+        while (!decoded && out.hasRemaining()) {
+            boolean last = mapped + bytes.capacity() == size;
+            if (!flushing) {
+                CoderResult result = decoder.decode(bytes, out, last);
+                if (result.isOverflow()) break;
+                if (!last) {
+                    // a character cut at the end of the segment starts the next one
+                    map(mapped + bytes.position());
+                    continue;
+                }
+                flushing = true;
+            }
+            if (decoder.flush(out).isOverflow()) break;
+            decoded = true;
+            channel.close();
+        }
+        length = out.position();
+        return decoded;
+    }
+
+    private void map(long position) throws IOException {
+        mapped = position;
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT, size - position));
+    }
+}
@@ -0,0 +1,850 @@
+package owlery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static owlery.Interpreter.checkNumberOperand;
+import static owlery.Interpreter.checkNumberOperands;
+import static owlery.Interpreter.isEqual;
+import static owlery.Interpreter.isTruthy;
+import static owlery.Interpreter.stringify;
+
+/**
+ * Stack based virtual machine for Chunks. Locals and operands of all active frames share one
+ * value array; the declared type of every local lives next to it in a parallel array, so
+ * type checked assignments do not allocate. Locals the BytecodeCompiler gave an #integer or
+ * #double lane and the operands it knows to be ints or doubles are kept unboxed in a third
+ * parallel array instead (doubles as raw bits), which the typed instructions work on. Calls
+ * between Owlery functions push a frame onto arrays the VM keeps from call to call instead of
+ * recursing on the Java stack, builtins are called through OCallable as usual. A chunk keeps
+ * the Value of every global it looked up, so it hashes each name only once.
+ */
+public class VM {
+    private static final OType[] TYPES = OType.values();
+    // line of the tokens in the constants, the chunk's line table has the line they were used on
+    static final int NO_LINE = -1;
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+
+    private Object[] values = new Object[1024];
+    private OType[] types = new OType[1024];
+    private long[] primitives = new long[1024];
+    private int top = 0;
+    // the frames below the running one: their chunk, base and where they go on after the call
+    private Chunk[] frameChunks = new Chunk[64];
+    private int[] frameBases = new int[64];
+    private int[] frameIps = new int[64];
+    private int frames = 0;
+
+    VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+        globals.library(function -> new Function(new BytecodeCompiler().function(function), this));
+    }
+
+    static class Function implements OCallable {
+        final Chunk chunk;
+        private final VM vm;
+
+        Function(Chunk chunk, VM vm) {
+            this.chunk = chunk;
+            this.vm = vm;
+        }
+
+        @Override
+        public int arity() {
+            return chunk.params.size();
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> args) {
+            return vm.call(chunk, args);
+        }
+    }
+
+    void interpret(List<Stmt> statements) {
+        try {
+            Chunk script = new BytecodeCompiler().compile(statements);
+            if (script == null) return;
+            run(script);
+            Value mainFunction = globals.defined("main");
+
+            if (mainFunction != null && (mainFunction.value instanceof Function || mainFunction.value instanceof OFunction)) {
+                ((OCallable) mainFunction.value).call(interpreter, List.of(0));
+            }
+        } catch (RuntimeError e) {
+            Owlery.runtimeError(e);
+        }
+    }
+
+    void run(Chunk script) {
+        call(script, List.of());
+    }
+
+    private Object call(Chunk chunk, List<Object> args) {
+        int entry = top;
+        int entryFrames = frames;
+        try {
+            int base = top;
+            push(chunk, base);
+            for (int i = 0; i < args.size(); i++) {
+                values[base + i] = args.get(i);
+                types[base + i] = OType.Flexible;
+            }
+            return execute(chunk, base);
+        } finally {
+            top = entry;
+            frames = entryFrames;
+        }
+    }
+
+    private void push(Chunk chunk, int base) {
+        int needed = base + chunk.slots + chunk.maxStack;
+        if (needed > values.length) {
+            int capacity = Math.max(needed, values.length * 2);
+            values = Arrays.copyOf(values, capacity);
+            types = Arrays.copyOf(types, capacity);
+            primitives = Arrays.copyOf(primitives, capacity);
+        }
+        Arrays.fill(types, base, base + chunk.slots, null);
+        top = base + chunk.slots;
+    }
+
+    private void pushFrame(Chunk chunk, int base, int ip) {
+        if (frames == frameChunks.length) {
+            frameChunks = Arrays.copyOf(frameChunks, frames * 2);
+            frameBases = Arrays.copyOf(frameBases, frames * 2);
+            frameIps = Arrays.copyOf(frameIps, frames * 2);
+        }
+        frameChunks[frames] = chunk;
+        frameBases[frames] = base;
+        frameIps[frames] = ip;
+        frames++;
+    }
+
+    private Object execute(Chunk chunk, int base) {
+        // the frames below are the ones of the executes further up the Java stack
+        int floor = frames;
+        int[] code = chunk.code;
+        Object[] constants = chunk.constants;
+        Value[] cells = chunk.cells;
+        int ip = 0;
+        int sp = top;
+        // cached in locals, reloaded whenever a call may have grown the arrays
+        Object[] values = this.values;
+        OType[] types = this.types;
+        long[] primitives = this.primitives;
+
+        try {
+            while (true) {
+                int op = code[ip++];
+                switch (op) {
+                    case OpCode.CONSTANT -> values[sp++] = constants[code[ip++]];
+                    case OpCode.POP -> sp--;
+                    case OpCode.GET_LOCAL -> {
+                        int slot = base + code[ip];
+                        if (types[slot] == null) throw undefined((Token) constants[code[ip + 1]]);
+                        values[sp++] = values[slot];
+                        ip += 2;
+                    }
+                    case OpCode.SET_LOCAL -> {
+                        int slot = base + code[ip];
+                        Token name = (Token) constants[code[ip + 1]];
+                        if (types[slot] == null) throw undefined(name);
+                        if (!Value.compatible(types[slot], values[sp - 1])) {
+                            throw new RuntimeError(name, "incompatible types");
+                        }
+                        values[slot] = values[sp - 1];
+                        ip += 2;
+                    }
+                    case OpCode.DEFINE_LOCAL -> {
+                        int slot = base + code[ip];
+                        OType type = TYPES[code[ip + 2]];
+                        Object value = values[sp - 1];
+                        if (!Value.compatible(type, value)) {
+                            throw new RuntimeError((Token) constants[code[ip + 1]], "incompatible types");
+                        }
+                        values[slot] = value;
+                        types[slot] = type;
+                        sp--;
+                        ip += 3;
+                    }
+                    case OpCode.SET_UNBOXED -> {
+                        int slot = base + code[ip];
+                        Token name = (Token) constants[code[ip + 1]];
+                        if (types[slot] == null) throw undefined(name);
+                        if (!Value.compatible(types[slot], values[sp - 1])) {
+                            throw new RuntimeError(name, "incompatible types");
+                        }
+                        primitives[slot] = unbox(values[sp - 1]);
+                        ip += 2;
+                    }
+                    case OpCode.DEFINE_PRIMITIVE -> {
+                        int slot = base + code[ip];
+                        primitives[slot] = primitives[base + code[ip + 1]];
+                        types[slot] = TYPES[code[ip + 2]];
+                        ip += 3;
+                    }
+                    case OpCode.DEFINE_UNBOXED -> {
+                        int slot = base + code[ip];
+                        OType type = TYPES[code[ip + 2]];
+                        if (!Value.compatible(type, values[sp - 1])) {
+                            throw new RuntimeError((Token) constants[code[ip + 1]], "incompatible types");
+                        }
+                        primitives[slot] = unbox(values[sp - 1]);
+                        types[slot] = type;
+                        sp--;
+                        ip += 3;
+                    }
+                    case OpCode.LOAD -> values[sp++] = values[base + code[ip++]];
+                    case OpCode.STORE -> values[base + code[ip++]] = values[--sp];
+                    case OpCode.CLEAR -> {
+                        int from = base + code[ip];
+                        Arrays.fill(types, from, from + code[ip + 1], null);
+                        ip += 2;
+                    }
+                    case OpCode.GET_FALLBACK -> {
+                        int slot = defined(types, base, (int[]) constants[code[ip]]);
+                        values[sp++] = slot == -1 ? globals.get((Token) constants[code[ip + 1]]).value : load(slot);
+                        ip += 2;
+                    }
+                    case OpCode.SET_FALLBACK -> {
+                        int slot = defined(types, base, (int[]) constants[code[ip]]);
+                        Token name = (Token) constants[code[ip + 1]];
+                        if (slot == -1) {
+                            globals.assign(name, values[sp - 1]);
+                        } else if (!Value.compatible(types[slot >> 2], values[sp - 1])) {
+                            throw new RuntimeError(name, "incompatible types");
+                        } else {
+                            store(slot, values[sp - 1]);
+                        }
+                        ip += 2;
+                    }
+                    case OpCode.GET_GLOBAL -> {
+                        values[sp++] = global(cells, constants, code[ip]).value;
+                        ip += 1;
+                    }
+                    case OpCode.SET_GLOBAL -> {
+                        Value global = global(cells, constants, code[ip]);
+                        if (!global.compatibleTypes(values[sp - 1])) {
+                            throw new RuntimeError((Token) constants[code[ip]], "incompatible types");
+                        }
+                        global.value = values[sp - 1];
+                        ip += 1;
+                    }
+                    case OpCode.DEFINE_GLOBAL -> {
+                        globals.define((Token) constants[code[ip]], values[sp - 1], TYPES[code[ip + 1]]);
+                        sp--;
+                        ip += 2;
+                    }
+
+                    case OpCode.UPDATE_LOCAL -> {
+                        int slot = base + code[ip];
+                        Token name = (Token) constants[code[ip + 1]];
+                        if (types[slot] == null) throw undefined(name);
+                        Object value = operate((Token) constants[code[ip + 2]], values[slot], values[sp - 1]);
+                        if (!Value.compatible(types[slot], value)) {
+                            throw new RuntimeError(name, "incompatible types");
+                        }
+                        values[slot] = value;
+                        sp--;
+                        ip += 3;
+                    }
+                    case OpCode.UPDATE_GLOBAL -> {
+                        Value global = global(cells, constants, code[ip]);
+                        Object value = operate((Token) constants[code[ip + 1]], global.value, values[sp - 1]);
+                        if (!global.compatibleTypes(value)) {
+                            throw new RuntimeError((Token) constants[code[ip]], "incompatible types");
+                        }
+                        global.value = value;
+                        sp--;
+                        ip += 2;
+                    }
+
+                    case OpCode.ADD -> {
+                        Object l = values[sp - 2], r = values[--sp];
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            values[sp - 1] = a + b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            values[sp - 1] = ((Number) l).doubleValue() + ((Number) r).doubleValue();
+                        }
+                        ip += 1;
+                    }
+                    case OpCode.SUBTRACT -> {
+                        Object l = values[sp - 2], r = values[--sp];
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            values[sp - 1] = a - b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            values[sp - 1] = ((Number) l).doubleValue() - ((Number) r).doubleValue();
+                        }
+                        ip += 1;
+                    }
+                    case OpCode.MULTIPLY -> {
+                        Object l = values[sp - 2], r = values[--sp];
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            values[sp - 1] = a * b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            values[sp - 1] = ((Number) l).doubleValue() * ((Number) r).doubleValue();
+                        }
+                        ip += 1;
+                    }
+                    case OpCode.DIVIDE -> {
+                        Object l = values[sp - 2], r = values[--sp];
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            values[sp - 1] = a / b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            values[sp - 1] = ((Number) l).doubleValue() / ((Number) r).doubleValue();
+                        }
+                        ip += 1;
+                    }
+                    case OpCode.MODULO -> {
+                        Object l = values[sp - 2], r = values[--sp];
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            values[sp - 1] = a % b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            values[sp - 1] = ((Number) l).doubleValue() % ((Number) r).doubleValue();
+                        }
+                        ip += 1;
+                    }
+                    case OpCode.GREATER -> {
+                        Object l = values[sp - 2], r = values[--sp];
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            values[sp - 1] = a > b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            values[sp - 1] = ((Number) l).doubleValue() > ((Number) r).doubleValue();
+                        }
+                        ip += 1;
+                    }
+                    case OpCode.GREATER_EQUAL -> {
+                        Object l = values[sp - 2], r = values[--sp];
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            values[sp - 1] = a >= b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            values[sp - 1] = ((Number) l).doubleValue() >= ((Number) r).doubleValue();
+                        }
+                        ip += 1;
+                    }
+                    case OpCode.LESS -> {
+                        Object l = values[sp - 2], r = values[--sp];
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            values[sp - 1] = a < b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            values[sp - 1] = ((Number) l).doubleValue() < ((Number) r).doubleValue();
+                        }
+                        ip += 1;
+                    }
+                    case OpCode.LESS_EQUAL -> {
+                        Object l = values[sp - 2], r = values[--sp];
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            values[sp - 1] = a <= b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            values[sp - 1] = ((Number) l).doubleValue() <= ((Number) r).doubleValue();
+                        }
+                        ip += 1;
+                    }
+                    case OpCode.EQUAL -> {
+                        Object r = values[--sp];
+                        values[sp - 1] = isEqual(values[sp - 1], r);
+                        ip += 1;
+                    }
+                    case OpCode.NOT_EQUAL -> {
+                        Object r = values[--sp];
+                        values[sp - 1] = !isEqual(values[sp - 1], r);
+                        ip += 1;
+                    }
+                    case OpCode.CONCAT -> {
+                        Object r = values[--sp];
+                        values[sp - 1] = Rope.concat(values[sp - 1], "", r);
+                        ip += 1;
+                    }
+                    case OpCode.CONCAT_SPACE -> {
+                        Object r = values[--sp];
+                        values[sp - 1] = Rope.concat(values[sp - 1], " ", r);
+                        ip += 1;
+                    }
+
+                    // the typed instructions name their slots relative to the frame's base
+                    case OpCode.MOVE -> {
+                        primitives[base + code[ip]] = primitives[base + code[ip + 1]];
+                        ip += 2;
+                    }
+                    case OpCode.INT -> {
+                        primitives[base + code[ip]] = code[ip + 1];
+                        ip += 2;
+                    }
+                    case OpCode.DOUBLE -> {
+                        primitives[base + code[ip]] = bits((double) constants[code[ip + 1]]);
+                        ip += 2;
+                    }
+                    case OpCode.INT_TO_DOUBLE -> {
+                        primitives[base + code[ip]] = bits((int) primitives[base + code[ip + 1]]);
+                        ip += 2;
+                    }
+                    case OpCode.NEGATE_DOUBLE -> {
+                        primitives[base + code[ip]] = bits(-number(primitives[base + code[ip + 1]]));
+                        ip += 2;
+                    }
+                    case OpCode.BOX_INT -> values[sp++] = (int) primitives[base + code[ip++]];
+                    case OpCode.BOX_DOUBLE -> values[sp++] = number(primitives[base + code[ip++]]);
+                    case OpCode.UNBOX_INT -> primitives[base + code[ip++]] = (int) values[--sp];
+                    case OpCode.ADD_INT -> {
+                        primitives[base + code[ip]] = (int) primitives[base + code[ip + 1]] + (int) primitives[base + code[ip + 2]];
+                        ip += 3;
+                    }
+                    case OpCode.SUBTRACT_INT -> {
+                        primitives[base + code[ip]] = (int) primitives[base + code[ip + 1]] - (int) primitives[base + code[ip + 2]];
+                        ip += 3;
+                    }
+                    case OpCode.MULTIPLY_INT -> {
+                        primitives[base + code[ip]] = (int) primitives[base + code[ip + 1]] * (int) primitives[base + code[ip + 2]];
+                        ip += 3;
+                    }
+                    case OpCode.DIVIDE_INT -> {
+                        primitives[base + code[ip]] = (int) primitives[base + code[ip + 1]] / (int) primitives[base + code[ip + 2]];
+                        ip += 3;
+                    }
+                    case OpCode.MODULO_INT -> {
+                        primitives[base + code[ip]] = (int) primitives[base + code[ip + 1]] % (int) primitives[base + code[ip + 2]];
+                        ip += 3;
+                    }
+                    case OpCode.ADD_INT_IMMEDIATE -> {
+                        primitives[base + code[ip]] = (int) primitives[base + code[ip + 1]] + code[ip + 2];
+                        ip += 3;
+                    }
+                    case OpCode.SUBTRACT_INT_IMMEDIATE -> {
+                        primitives[base + code[ip]] = (int) primitives[base + code[ip + 1]] - code[ip + 2];
+                        ip += 3;
+                    }
+                    case OpCode.MULTIPLY_INT_IMMEDIATE -> {
+                        primitives[base + code[ip]] = (int) primitives[base + code[ip + 1]] * code[ip + 2];
+                        ip += 3;
+                    }
+                    case OpCode.DIVIDE_INT_IMMEDIATE -> {
+                        primitives[base + code[ip]] = (int) primitives[base + code[ip + 1]] / code[ip + 2];
+                        ip += 3;
+                    }
+                    case OpCode.MODULO_INT_IMMEDIATE -> {
+                        primitives[base + code[ip]] = (int) primitives[base + code[ip + 1]] % code[ip + 2];
+                        ip += 3;
+                    }
+                    case OpCode.ADD_DOUBLE -> {
+                        primitives[base + code[ip]] = bits(number(primitives[base + code[ip + 1]]) + number(primitives[base + code[ip + 2]]));
+                        ip += 3;
+                    }
+                    case OpCode.SUBTRACT_DOUBLE -> {
+                        primitives[base + code[ip]] = bits(number(primitives[base + code[ip + 1]]) - number(primitives[base + code[ip + 2]]));
+                        ip += 3;
+                    }
+                    case OpCode.MULTIPLY_DOUBLE -> {
+                        primitives[base + code[ip]] = bits(number(primitives[base + code[ip + 1]]) * number(primitives[base + code[ip + 2]]));
+                        ip += 3;
+                    }
+                    case OpCode.DIVIDE_DOUBLE -> {
+                        primitives[base + code[ip]] = bits(number(primitives[base + code[ip + 1]]) / number(primitives[base + code[ip + 2]]));
+                        ip += 3;
+                    }
+                    case OpCode.MODULO_DOUBLE -> {
+                        primitives[base + code[ip]] = bits(number(primitives[base + code[ip + 1]]) % number(primitives[base + code[ip + 2]]));
+                        ip += 3;
+                    }
+                    // ints are kept sign extended, so comparing the longs compares the ints
+                    case OpCode.JUMP_UNLESS_GREATER_INT -> ip += primitives[base + code[ip]] > primitives[base + code[ip + 1]] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_GREATER_EQUAL_INT -> ip += primitives[base + code[ip]] >= primitives[base + code[ip + 1]] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_LESS_INT -> ip += primitives[base + code[ip]] < primitives[base + code[ip + 1]] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_LESS_EQUAL_INT -> ip += primitives[base + code[ip]] <= primitives[base + code[ip + 1]] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_EQUAL_INT -> ip += primitives[base + code[ip]] == primitives[base + code[ip + 1]] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_NOT_EQUAL_INT -> ip += primitives[base + code[ip]] != primitives[base + code[ip + 1]] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_GREATER_INT_IMMEDIATE -> ip += primitives[base + code[ip]] > code[ip + 1] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_GREATER_EQUAL_INT_IMMEDIATE -> ip += primitives[base + code[ip]] >= code[ip + 1] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_LESS_INT_IMMEDIATE -> ip += primitives[base + code[ip]] < code[ip + 1] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_LESS_EQUAL_INT_IMMEDIATE -> ip += primitives[base + code[ip]] <= code[ip + 1] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_EQUAL_INT_IMMEDIATE -> ip += primitives[base + code[ip]] == code[ip + 1] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_NOT_EQUAL_INT_IMMEDIATE -> ip += primitives[base + code[ip]] != code[ip + 1] ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_GREATER_DOUBLE -> ip += number(primitives[base + code[ip]]) > number(primitives[base + code[ip + 1]]) ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_GREATER_EQUAL_DOUBLE -> ip += number(primitives[base + code[ip]]) >= number(primitives[base + code[ip + 1]]) ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_LESS_DOUBLE -> ip += number(primitives[base + code[ip]]) < number(primitives[base + code[ip + 1]]) ? 3 : code[ip + 2] + 3;
+                    case OpCode.JUMP_UNLESS_LESS_EQUAL_DOUBLE -> ip += number(primitives[base + code[ip]]) <= number(primitives[base + code[ip + 1]]) ? 3 : code[ip + 2] + 3;
+
+                    case OpCode.NEGATE -> {
+                        checkNumberOperand((Token) constants[code[ip]], values[sp - 1]);
+                        values[sp - 1] = -(double) values[sp - 1];
+                        ip += 1;
+                    }
+                    case OpCode.NOT -> values[sp - 1] = !isTruthy(values[sp - 1]);
+                    case OpCode.IS -> values[sp - 1] = new Value(OType.Flexible, values[sp - 1]).is(TYPES[code[ip++]]);
+                    case OpCode.CONVERT -> { values[sp - 1] = convert(values[sp - 1], TYPES[code[ip]], (Token) constants[code[ip + 1]]); ip += 2; }
+                    case OpCode.INDEX -> {
+                        Object index = values[--sp];
+                        values[sp - 1] = index instanceof Integer i ? index(values[sp - 1], i, (Token) constants[code[ip]]) : null;
+                        ip += 1;
+                    }
+                    case OpCode.INDEX_INT -> {
+                        values[sp - 1] = index(values[sp - 1], (int) primitives[base + code[ip]], (Token) constants[code[ip + 1]]);
+                        ip += 2;
+                    }
+                    case OpCode.INDEX_LOCAL_INT -> {
+                        int slot = base + code[ip];
+                        Token name = (Token) constants[code[ip + 2]];
+                        if (types[slot] == null) throw undefined(name);
+                        values[sp++] = index(values[slot], (int) primitives[base + code[ip + 1]], name);
+                        ip += 3;
+                    }
+                    case OpCode.LIST -> {
+                        int count = code[ip];
+                        OList list = new OList();
+                        for (int i = sp - count; i < sp; i++) {
+                            list.add(values[i] instanceof Rope rope ? rope.toString() : values[i]);
+                        }
+                        sp -= count;
+                        values[sp++] = list;
+                        ip += 1;
+                    }
+
+                    case OpCode.JUMP -> ip += code[ip] + 1;
+                    case OpCode.JUMP_IF_FALSE -> {
+                        if (!isTruthy(values[--sp])) {
+                            ip += code[ip];
+                        }
+                        ip += 1;
+                    }
+                    case OpCode.JUMP_IF_TRUE_OR_POP -> {
+                        if (isTruthy(values[sp - 1])) {
+                            ip += code[ip];
+                        } else {
+                            sp--;
+                        }
+                        ip += 1;
+                    }
+                    case OpCode.JUMP_IF_FALSE_OR_POP -> {
+                        if (!isTruthy(values[sp - 1])) {
+                            ip += code[ip];
+                        } else {
+                            sp--;
+                        }
+                        ip += 1;
+                    }
+                    // a comparison and the JUMP_IF_FALSE after it in one, the result is never boxed
+                    case OpCode.JUMP_UNLESS_GREATER -> {
+                        Object l = values[sp - 2], r = values[sp - 1];
+                        sp -= 2;
+                        boolean holds;
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            holds = a > b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            holds = ((Number) l).doubleValue() > ((Number) r).doubleValue();
+                        }
+                        ip += holds ? 2 : code[ip + 1] + 2;
+                    }
+                    case OpCode.JUMP_UNLESS_GREATER_EQUAL -> {
+                        Object l = values[sp - 2], r = values[sp - 1];
+                        sp -= 2;
+                        boolean holds;
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            holds = a >= b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            holds = ((Number) l).doubleValue() >= ((Number) r).doubleValue();
+                        }
+                        ip += holds ? 2 : code[ip + 1] + 2;
+                    }
+                    case OpCode.JUMP_UNLESS_LESS -> {
+                        Object l = values[sp - 2], r = values[sp - 1];
+                        sp -= 2;
+                        boolean holds;
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            holds = a < b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            holds = ((Number) l).doubleValue() < ((Number) r).doubleValue();
+                        }
+                        ip += holds ? 2 : code[ip + 1] + 2;
+                    }
+                    case OpCode.JUMP_UNLESS_LESS_EQUAL -> {
+                        Object l = values[sp - 2], r = values[sp - 1];
+                        sp -= 2;
+                        boolean holds;
+                        if (l instanceof Integer a && r instanceof Integer b) {
+                            holds = a <= b;
+                        } else {
+                            checkNumberOperands((Token) constants[code[ip]], l, r);
+                            holds = ((Number) l).doubleValue() <= ((Number) r).doubleValue();
+                        }
+                        ip += holds ? 2 : code[ip + 1] + 2;
+                    }
+                    case OpCode.JUMP_UNLESS_EQUAL -> {
+                        sp -= 2;
+                        ip += isEqual(values[sp], values[sp + 1]) ? 2 : code[ip + 1] + 2;
+                    }
+                    case OpCode.JUMP_UNLESS_NOT_EQUAL -> {
+                        sp -= 2;
+                        ip += !isEqual(values[sp], values[sp + 1]) ? 2 : code[ip + 1] + 2;
+                    }
+                    case OpCode.RANGE_LESS -> {
+                        int to = (int) values[--sp];
+                        values[sp - 1] = (int) values[sp - 1] < to + code[ip];
+                        ip += 1;
+                    }
+                    case OpCode.INCREMENT -> values[sp - 1] = (int) values[sp - 1] + 1;
+                    case OpCode.LOOP_NEXT -> {
+                        int slot = base + code[ip];
+                        int counter = (int) primitives[slot] + 1;
+                        primitives[slot] = counter;
+                        ip += counter < primitives[base + code[ip + 1]] ? code[ip + 2] + 3 : 3;
+                    }
+                    case OpCode.GLOBAL_LOOP_TEST -> {
+                        Value counter = global(cells, constants, code[ip]);
+                        ip += (int) counter.value < primitives[base + code[ip + 1]] ? 3 : code[ip + 2] + 3;
+                    }
+                    case OpCode.GLOBAL_LOOP_NEXT -> {
+                        Value counter = global(cells, constants, code[ip]);
+                        int next = (int) counter.value + 1;
+                        counter.value = next;
+                        ip += next < primitives[base + code[ip + 1]] ? code[ip + 2] + 3 : 3;
+                    }
+                    case OpCode.ITERATE -> {
+                        int slot = base + code[ip];
+                        if (!(values[--sp] instanceof OList list)) {
+                            throw new RuntimeError((Token) constants[code[ip + 1]], "can only loop over a list");
+                        }
+                        values[slot] = list;
+                        primitives[slot + 1] = 0;
+                        primitives[slot + 2] = list.size();
+                        ip += 2;
+                    }
+                    case OpCode.NEXT -> {
+                        int slot = base + code[ip];
+                        int index = (int) primitives[slot + 1];
+                        if (index >= primitives[slot + 2]) {
+                            ip += code[ip + 3];
+                        } else {
+                            OList list = (OList) values[slot];
+                            primitives[slot + 1] = index + 1;
+                            int variable = code[ip + 1];
+                            if (variable == 0xffff) {
+                                globals.define((Token) constants[code[ip + 2]], list.get(index), list.type());
+                            } else {
+                                values[base + variable] = list.get(index);
+                                types[base + variable] = list.type();
+                            }
+                        }
+                        ip += 4;
+                    }
+
+                    case OpCode.CALL -> {
+                        int argCount = code[ip];
+                        int calleeAt = sp - argCount - 1;
+                        Object callee = values[calleeAt];
+                        InlineCache cache = chunk.caches[code[ip + 2]];
+
+                        if (!cache.hit(callee)) {
+                            Token bang = (Token) constants[code[ip + 1]];
+                            if (!(callee instanceof OCallable)) {
+                                throw new RuntimeError(bang, "only functions and classes can be called.");
+                            }
+                            if (argCount != ((OCallable) callee).arity()) {
+                                throw new RuntimeError(bang, "expected: " + ((OCallable) callee).arity() + "arguments\nbut got " + argCount);
+                            }
+                            cache.add((OCallable) callee);
+                        }
+                        OCallable callable = (OCallable) callee;
+
+                        if (callable instanceof Function function && function.vm == this) {
+                            // the arguments already sit where the callee's first slots go
+                            pushFrame(chunk, base, ip + 3);
+                            top = sp;
+                            chunk = function.chunk;
+                            base = calleeAt + 1;
+                            push(chunk, base);
+                            values = this.values;
+                            types = this.types;
+                            primitives = this.primitives;
+                            Arrays.fill(types, base, base + argCount, OType.Flexible);
+                            code = chunk.code;
+                            constants = chunk.constants;
+                            cells = chunk.cells;
+                            ip = 0;
+                            sp = top;
+                            continue;
+                        }
+
+                        List<Object> args = new ArrayList<>(argCount);
+                        for (int i = calleeAt + 1; i < sp; i++) {
+                            args.add(values[i]);
+                        }
+                        top = sp;
+                        Object result = callable.call(interpreter, args);
+                        values = this.values;
+                        types = this.types;
+                        primitives = this.primitives;
+                        sp = calleeAt + 1;
+                        values[calleeAt] = result;
+                        ip += 3;
+                    }
+                    case OpCode.FUNCTION -> values[sp++] = new Function((Chunk) constants[code[ip++]], this);
+                    case OpCode.PRINT -> interpreter.out().println(stringify(values[--sp]));
+                    case OpCode.RETURN -> {
+                        Object result = values[--sp];
+                        if (frames == floor) {
+                            return result;
+                        }
+                        // the callee sat right below the frame's first slot
+                        sp = base - 1;
+                        values[sp++] = result;
+                        frames--;
+                        chunk = frameChunks[frames];
+                        base = frameBases[frames];
+                        ip = frameIps[frames];
+                        code = chunk.code;
+                        constants = chunk.constants;
+                        cells = chunk.cells;
+                    }
+                    default -> throw new RuntimeError("[vm] unknown opcode " + op);
+                }
+            }
+        } catch (RuntimeError e) {
+            // the instruction that failed starts right before ip
+            if (e.token == null || e.token.line != NO_LINE) throw e;
+            Token token = new Token(e.token.type, e.token.lexeme(), e.token.literal, chunk.lines[ip - 1]);
+            throw new RuntimeError(token, e.getMessage());
+        }
+    }
+
+    private static RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "variable <" + name.lexeme() +"> is not defined in this scope.");
+    }
+
+    // the Value of a global, looked up by name the first time the chunk uses it; a redefinition
+    // keeps the Value, see Environment.define
+    private Value global(Value[] cells, Object[] constants, int name) {
+        Value global = cells[name];
+        if (global == null) {
+            global = globals.get((Token) constants[name]);
+            cells[name] = global;
+        }
+        return global;
+    }
+
+    // the first of the slots that is defined with its lane in the low two bits, see
+    // BytecodeCompiler.slots, or -1
+    private static int defined(OType[] types, int base, int[] slots) {
+        for (int slot : slots) {
+            if (types[base + (slot >> 2)] != null) return slot + (base << 2);
+        }
+        return -1;
+    }
+
+    // the value of a slot with its lane, as defined gives it
+    private Object load(int slot) {
+        return switch (slot & 3) {
+            case BytecodeCompiler.INT_LANE -> (int) primitives[slot >> 2];
+            case BytecodeCompiler.DOUBLE_LANE -> number(primitives[slot >> 2]);
+            default -> values[slot >> 2];
+        };
+    }
+
+    private void store(int slot, Object value) {
+        if ((slot & 3) == BytecodeCompiler.OBJECT_LANE) {
+            values[slot >> 2] = value;
+        } else {
+            primitives[slot >> 2] = unbox(value);
+        }
+    }
+
+    // an #integer or #double in the primitive lane
+    private static long unbox(Object value) {
+        return value instanceof Integer i ? i : bits((Double) value);
+    }
+
+    private static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    private static double number(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    // the value of `l op r` for an arithmetic operator or a concatenation, like its instruction
+    private static Object operate(Token operator, Object l, Object r) {
+        if (operator.type == TokenType.VERTICAL_BAR) return Rope.concat(l, "", r);
+        if (operator.type == TokenType.DOUBLE_VERTICAL_BAR) return Rope.concat(l, " ", r);
+        if (l instanceof Integer a && r instanceof Integer b) {
+            return switch (operator.type) {
+                case PLUS -> a + b;
+                case MINUS -> a - b;
+                case STAR -> a * b;
+                case SLASH -> a / b;
+                default -> a % b;
+            };
+        }
+        checkNumberOperands(operator, l, r);
+        double a = ((Number) l).doubleValue(), b = ((Number) r).doubleValue();
+        return switch (operator.type) {
+            case PLUS -> a + b;
+            case MINUS -> a - b;
+            case STAR -> a * b;
+            case SLASH -> a / b;
+            default -> a % b;
+        };
+    }
+
+    private static Object index(Object value, int index, Token name) {
+        if (value instanceof CharSequence str) {
+            if (index >= 0 && index < str.length()) {
+                return "" + str.charAt(index);
+            }
+            throw new RuntimeError(name, "index out of bounds for the given string");
+        }
+        if (value instanceof OList list) {
+            return list.get(name, index);
+        }
+        return null;
+    }
+
+    static Object convert(Object value, OType type, Token op) {
+        switch (type) {
+            case String -> {
+                return stringify(value);
+            }
+            case Integer -> {
+                if (value instanceof CharSequence s) {
+                    try {
+                        return Integer.parseInt(s.toString());
+                    } catch (NumberFormatException e) {
+                        throw new RuntimeError(op, "given string can not be converted to an integer");
+                    }
+                }
+                if (value instanceof Double d) return d.intValue();
+                if (value instanceof Integer i) return i;
+                if (value instanceof Boolean b) return b ? 1 : 0;
+            }
+            case Double -> {
+                if (value instanceof CharSequence s) {
+                    try {
+                        return Double.parseDouble(s.toString());
+                    } catch (NumberFormatException e) {
+                        throw new RuntimeError(op, "given string can not be converted to an integer");
+                    }
+                }
+                if (value instanceof Double d) return d;
+                if (value instanceof Integer i) return (double) i;
+                if (value instanceof Boolean b) return b ? 1.0 : 0.0;
+            }
+            case Boolean -> {
+                return isTruthy(value);
+            }
+        }
+        return null;
+    }
+}
@@ -1,7 +1,6 @@
 package owlery;
 
 import java.awt.*;
-import java.util.List;
 
 public class Value {
     OType type;
@@ -13,12 +12,16 @@ public class Value {
     }
 
     public boolean compatibleTypes(Object o) {
+        return compatible(type, o);
+    }
+
+    static boolean compatible(OType type, Object o) {
         return switch (type) {
             case Integer -> o instanceof Integer;
             case Double -> o instanceof Double;
-            case String -> o instanceof String;
+            case String -> o instanceof String || o instanceof Rope;
             case Boolean -> o instanceof Boolean;
-            case List -> o instanceof List<?>;
+            case List -> o instanceof OList;
             case Callable -> o instanceof OCallable;
             case Flexible -> true;
         };
@@ -28,9 +31,9 @@ public class Value {
         return switch (type) {
             case Integer -> value instanceof Integer;
             case Double -> value instanceof Double;
-            case String -> value instanceof String;
+            case String -> value instanceof String || value instanceof Rope;
             case Boolean -> value instanceof Boolean;
-            case List -> value instanceof List<?>;
+            case List -> value instanceof OList;
             case Callable -> value instanceof OCallable;
             case Flexible -> true;
         };
@@ -2,6 +2,7 @@ package tools;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -13,31 +14,37 @@ public class ASTGenerator {
         }
         String outputDir = args[0];
 
-        defineAst(outputDir, "Expr", Arrays.asList(
-                "Define : Token name, Expr value, OType type",
-                "Assign : Token name, Expr value",
+        List<String> exprTypes = Arrays.asList(
+                "Define : Token name, Expr value, OType type ; int slot = -1",
+                "Assign : Token name, Expr value ; int depth = -1, int slot = -1, int[] fallback = null, boolean reduction = false",
                 "BooleanBinary : Expr left, Token operator, Expr right",
-                "Binary   : Expr left, Token operator, Expr right",
+                "Binary   : Expr left, Token operator, Expr right ; int feedback = 0",
                 "Grouping : Expr expression",
                 "Literal  : Object value",
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name",
-                "Call : Expr callee, Token bang, List<Expr> arguments",
-                "Function : List<Token> params, List<Stmt> body",
-                "Index : Token name, Expr index",
-                "TypeBinary : Expr expression, Token op, OType type"
-        ));
-
-        defineAst(outputDir, "Stmt", Arrays.asList(
+                "Variable : Token name ; int depth = -1, int slot = -1, int[] fallback = null",
+                "Call : Expr callee, Token bang, List<Expr> arguments ; InlineCache cache = null",
+                "Function : List<Token> params, List<Stmt> body ; int slots = 0, boolean[] fixed = null, OType[] types = null, boolean pure = false, Token name = null",
+                "Index : Token name, Expr index ; int depth = -1, int slot = -1, int[] fallback = null",
+                "TypeBinary : Expr expression, Token op, OType type",
+                "ListLiteral : Token bracket, List<Expr> elements"
+        );
+
+        List<String> stmtTypes = Arrays.asList(
                 "Expression : Expr expression",
                 "Print : Expr expression",
                 "Empty : int i",
-                "Block : List<Stmt> statements",
+                "Block : List<Stmt> statements ; int slots = 0, boolean[] fixed = null, OType[] types = null",
                 "If : Expr cond, Stmt thenBlock, Stmt elseBlock",
                 "LoopCondition : Expr condition, Stmt body",
-                "LoopRange : Expr from, Expr to, Stmt body, boolean incl",
-                "Return : Token keyword, Expr value"
-        ));
+                "LoopRange : Expr from, Expr to, Stmt body, boolean incl, boolean parallel ; boolean invariant = false",
+                "LoopIn : Token name, Expr list, Stmt body ; int slot = -1",
+                "Return : Token keyword, Expr value ; boolean tail = false"
+        );
+
+        defineAst(outputDir, "Expr", exprTypes);
+        defineAst(outputDir, "Stmt", stmtTypes);
+        defineCodec(outputDir, exprTypes, stmtTypes);
     }
 
 
@@ -56,7 +63,12 @@ public class ASTGenerator {
         for (String type : types) {
             String className = type.split(":")[0].trim();
             String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String resolved = null;
+            if (fields.contains(";")) {
+                resolved = fields.split(";")[1].trim();
+                fields = fields.split(";")[0].trim();
+            }
+            defineType(writer, baseName, className, fields, resolved);
         }
 
         writer.println();
@@ -67,7 +79,108 @@ public class ASTGenerator {
         writer.close();
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    // reads and writes the trees the parser builds for an AstCache, only the fields before the ';'
+    private static void defineCodec(String outputDir, List<String> exprTypes, List<String> stmtTypes) throws IOException {
+        String path = outputDir + "/AstCodec.java";
+        PrintWriter writer = new PrintWriter(path, "UTF-8");
+
+        writer.println("package owlery;");
+        writer.println();
+        writer.println("import java.io.IOException;");
+        writer.println("import java.util.ArrayList;");
+        writer.println("import java.util.List;");
+        writer.println();
+        writer.println("final class AstCodec {");
+        writer.println("  // changes with the node types, a cache written for other ones is not read");
+        writer.println("  static final int VERSION = " + (String.join("\n", exprTypes) + String.join("\n", stmtTypes)).hashCode() + ";");
+
+        for (String baseName : new String[] {"Expr", "Stmt"}) {
+            List<String> types = baseName.equals("Expr") ? exprTypes : stmtTypes;
+            String name = baseName.toLowerCase();
+
+            writer.println();
+            writer.println("  static void write(AstCache.Output out, " + baseName + " " + name + ") throws IOException {");
+            writer.println("    if (" + name + " == null) {");
+            writer.println("      out.number(0);");
+            for (int tag = 1; tag <= types.size(); tag++) {
+                String className = types.get(tag - 1).split(":")[0].trim();
+                writer.println("    } else if (" + name + " instanceof " + baseName + "." + className + " node) {");
+                writer.println("      out.number(" + tag + ");");
+                for (String field : fields(types.get(tag - 1))) {
+                    String fieldName = "node." + field.split(" ")[1];
+                    writer.println("      " + switch (field.split(" ")[0]) {
+                        case "Expr", "Stmt" -> "write(out, " + fieldName + ");";
+                        case "List<Expr>" -> "writeExprs(out, " + fieldName + ");";
+                        case "List<Stmt>" -> "writeStmts(out, " + fieldName + ");";
+                        case "List<Token>" -> "out.tokens(" + fieldName + ");";
+                        case "Token" -> "out.token(" + fieldName + ");";
+                        case "OType" -> "out.type(" + fieldName + ");";
+                        case "Object" -> "out.literal(" + fieldName + ");";
+                        case "int" -> "out.number(" + fieldName + ");";
+                        case "boolean" -> "out.flag(" + fieldName + ");";
+                        default -> throw new IllegalArgumentException("no encoding for " + field);
+                    });
+                }
+            }
+            writer.println("    }");
+            writer.println("  }");
+
+            writer.println();
+            writer.println("  static " + baseName + " read" + baseName + "(AstCache.Input in) throws IOException {");
+            writer.println("    return switch (in.number()) {");
+            writer.println("      case 0 -> null;");
+            for (int tag = 1; tag <= types.size(); tag++) {
+                String className = types.get(tag - 1).split(":")[0].trim();
+                List<String> arguments = new ArrayList<>();
+                for (String field : fields(types.get(tag - 1))) {
+                    arguments.add(switch (field.split(" ")[0]) {
+                        case "Expr" -> "readExpr(in)";
+                        case "Stmt" -> "readStmt(in)";
+                        case "List<Expr>" -> "readExprs(in)";
+                        case "List<Stmt>" -> "readStmts(in)";
+                        case "List<Token>" -> "in.tokens()";
+                        case "Token" -> "in.token()";
+                        case "OType" -> "in.type()";
+                        case "Object" -> "in.literal()";
+                        case "int" -> "in.number()";
+                        case "boolean" -> "in.flag()";
+                        default -> throw new IllegalArgumentException("no encoding for " + field);
+                    });
+                }
+                writer.println("      case " + tag + " -> new " + baseName + "." + className + "(" + String.join(", ", arguments) + ");");
+            }
+            writer.println("      default -> throw new IOException(\"unknown " + name + " in the AST cache\");");
+            writer.println("    };");
+            writer.println("  }");
+
+            writer.println();
+            writer.println("  static void write" + baseName + "s(AstCache.Output out, List<" + baseName + "> " + name + "s) throws IOException {");
+            writer.println("    out.number(" + name + "s.size());");
+            writer.println("    for (" + baseName + " " + name + " : " + name + "s) {");
+            writer.println("      write(out, " + name + ");");
+            writer.println("    }");
+            writer.println("  }");
+
+            writer.println();
+            writer.println("  static List<" + baseName + "> read" + baseName + "s(AstCache.Input in) throws IOException {");
+            writer.println("    int size = in.number();");
+            writer.println("    List<" + baseName + "> " + name + "s = new ArrayList<>(size);");
+            writer.println("    for (int i = 0; i < size; i++) {");
+            writer.println("      " + name + "s.add(read" + baseName + "(in));");
+            writer.println("    }");
+            writer.println("    return " + name + "s;");
+            writer.println("  }");
+        }
+
+        writer.println("}");
+        writer.close();
+    }
+
+    private static String[] fields(String type) {
+        return type.split(":")[1].split(";")[0].trim().split(", ");
+    }
+
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList, String resolvedList) {
         writer.println("  static class " + className + " extends " + baseName + " {");
 
         // Constructor.
@@ -95,6 +208,14 @@ public class ASTGenerator {
             writer.println("    final " + field + ";");
         }
 
+        // Mutable fields, filled in by the Resolver or by an engine at run time.
+        if (resolvedList != null) {
+            writer.println();
+            for (String field : resolvedList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
         writer.println("  }");
     }
 